@@ -0,0 +1,149 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Benchmark data and operations: the graph, the queries from path_params.txt and
+ * raster_params.txt, the routes those path queries produce, and autocomplete prefixes
+ * taken from the location names. Paths default to the ones the tests use and can be
+ * changed with system properties, e.g.
+ * -Djmh.args="-jvmArgsAppend -Dbench.osm=/data/berkeley-2018.osm.xml".
+ * <ul>
+ *     <li>bench.osm: OSM XML file (default as in TestRouter)</li>
+ *     <li>bench.img: tile image folder, ending in a separator</li>
+ *     <li>bench.params: folder containing path_params.txt and raster_params.txt</li>
+ * </ul>
+ */
+public class BenchmarkWorkload implements bench.Workload {
+    private static final String OSM_DB_PATH = System.getProperty("bench.osm",
+            "../library-sp18/library-sp18/data/berkeley-2018.osm.xml");
+    private static final String IMG_ROOT = System.getProperty("bench.img",
+            "../library-sp18/library-sp18/data/proj3_imgs/");
+    private static final String PARAMS_DIR = System.getProperty("bench.params", ".");
+    private static final int NUM_QUERIES = 8;
+    private static final int MAX_PREFIXES = 300;
+
+    private GraphDB graph;
+    private Rasterer rasterer;
+    private List<Map<String, Double>> pathParams;
+    private List<Map<String, Double>> rasterParams;
+    private List<Map<String, Object>> rasterResults;
+    private List<List<Long>> routes;
+    private List<String> prefixes;
+
+    @Override
+    public void setUp() throws IOException {
+        MapServer.initialize(OSM_DB_PATH, IMG_ROOT);
+        /* Share MapServer's graph, which writeImages draws routes on; the reference is kept
+         * for the lifetime of the benchmark JVM. */
+        MapData data = MapServer.acquireMapData();
+        graph = data.graph;
+        rasterer = data.rasterer;
+        pathParams = readParams("path_params.txt",
+                "start_lon", "start_lat", "end_lon", "end_lat");
+        rasterParams = readParams("raster_params.txt",
+                "ullon", "ullat", "lrlon", "lrlat", "w", "h");
+
+        routes = new ArrayList<>();
+        for (Map<String, Double> params : pathParams) {
+            routes.add(Router.shortestPath(graph, params.get("start_lon"),
+                    params.get("start_lat"), params.get("end_lon"), params.get("end_lat")));
+        }
+        rasterResults = new ArrayList<>();
+        for (Map<String, Double> params : rasterParams) {
+            rasterResults.add(rasterer.getMapRaster(params));
+        }
+
+        prefixes = new ArrayList<>();
+        for (String name : graph.locations.keySet()) {
+            String cleaned = GraphDB.cleanString(name);
+            for (int length = 1; length <= 3 && length <= cleaned.length(); length++) {
+                prefixes.add(cleaned.substring(0, length));
+            }
+            if (prefixes.size() >= MAX_PREFIXES) {
+                break;
+            }
+        }
+    }
+
+    /** Reads NUM_QUERIES groups of keys.length doubles, skipping the two comment lines. */
+    private static List<Map<String, Double>> readParams(String file, String... keys)
+            throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(PARAMS_DIR, file),
+                Charset.defaultCharset());
+        List<Map<String, Double>> result = new ArrayList<>();
+        int lineIdx = 2;
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            Map<String, Double> params = new HashMap<>();
+            for (String key : keys) {
+                params.put(key, Double.parseDouble(lines.get(lineIdx)));
+                lineIdx++;
+            }
+            result.add(params);
+        }
+        return result;
+    }
+
+    @Override
+    public int pathQueryCount() {
+        return pathParams.size();
+    }
+
+    @Override
+    public int rasterQueryCount() {
+        return rasterParams.size();
+    }
+
+    @Override
+    public int prefixCount() {
+        return prefixes.size();
+    }
+
+    @Override
+    public Object shortestPath(int i) {
+        Map<String, Double> params = pathParams.get(i);
+        return Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
+                params.get("end_lon"), params.get("end_lat"));
+    }
+
+    @Override
+    public Object routeDirections(int i) {
+        return Router.routeDirections(graph, routes.get(i));
+    }
+
+    @Override
+    public long closestStart(int i) {
+        Map<String, Double> params = pathParams.get(i);
+        return graph.closest(params.get("start_lon"), params.get("start_lat"));
+    }
+
+    @Override
+    public long closestEnd(int i) {
+        Map<String, Double> params = pathParams.get(i);
+        return graph.closest(params.get("end_lon"), params.get("end_lat"));
+    }
+
+    @Override
+    public Object getMapRaster(int i) {
+        return rasterer.getMapRaster(rasterParams.get(i));
+    }
+
+    @Override
+    public int writeImages(int i) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        MapServer.writeImagesToOutputStream(new HashMap<>(rasterResults.get(i)),
+                routes.get(0), os);
+        return os.size();
+    }
+
+    @Override
+    public Object getPrefixes(int i) {
+        return graph.prefixTrie().getPrefixes(prefixes.get(i));
+    }
+}
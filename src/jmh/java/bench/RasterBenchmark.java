@@ -0,0 +1,38 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raster benchmarks. One operation handles all raster_params.txt queries;
+ * writeImagesToOutputStream also draws the first path_params.txt route on each image.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RasterBenchmark {
+
+    @Benchmark
+    public void getMapRaster(WorkloadState state, Blackhole bh) {
+        for (int i = 0; i < state.workload.rasterQueryCount(); i++) {
+            bh.consume(state.workload.getMapRaster(i));
+        }
+    }
+
+    @Benchmark
+    public void writeImagesToOutputStream(WorkloadState state, Blackhole bh) {
+        for (int i = 0; i < state.workload.rasterQueryCount(); i++) {
+            bh.consume(state.workload.writeImages(i));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing benchmarks. One operation runs all path_params.txt queries.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouterBenchmark {
+
+    @Benchmark
+    public void shortestPath(WorkloadState state, Blackhole bh) {
+        for (int i = 0; i < state.workload.pathQueryCount(); i++) {
+            bh.consume(state.workload.shortestPath(i));
+        }
+    }
+
+    @Benchmark
+    public void routeDirections(WorkloadState state, Blackhole bh) {
+        for (int i = 0; i < state.workload.pathQueryCount(); i++) {
+            bh.consume(state.workload.routeDirections(i));
+        }
+    }
+
+    @Benchmark
+    public void closest(WorkloadState state, Blackhole bh) {
+        for (int i = 0; i < state.workload.pathQueryCount(); i++) {
+            bh.consume(state.workload.closestStart(i));
+            bh.consume(state.workload.closestEnd(i));
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Autocomplete benchmark. One operation looks up the 1-3 letter prefixes of the first
+ * location names (up to 300 prefixes).
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrieBenchmark {
+
+    @Benchmark
+    public void getPrefixes(WorkloadState state, Blackhole bh) {
+        for (int i = 0; i < state.workload.prefixCount(); i++) {
+            bh.consume(state.workload.getPrefixes(i));
+        }
+    }
+}
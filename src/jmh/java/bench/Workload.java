@@ -0,0 +1,43 @@
+package bench;
+
+/**
+ * The operations the benchmarks measure. The project's classes live in the default package,
+ * which code in a named package cannot import, while JMH requires benchmarks to be in a
+ * named package. BenchmarkWorkload (default package) implements this interface and is
+ * loaded by name in WorkloadState.
+ */
+public interface Workload {
+
+    /** Loads the graph, tiles and query files. */
+    void setUp() throws Exception;
+
+    /** Number of path_params.txt queries. */
+    int pathQueryCount();
+
+    /** Number of raster_params.txt queries. */
+    int rasterQueryCount();
+
+    /** Number of autocomplete prefixes. */
+    int prefixCount();
+
+    /** Router.shortestPath for path query i. */
+    Object shortestPath(int i);
+
+    /** Router.routeDirections for the route of path query i. */
+    Object routeDirections(int i);
+
+    /** GraphDB.closest for the start point of path query i. */
+    long closestStart(int i);
+
+    /** GraphDB.closest for the end point of path query i. */
+    long closestEnd(int i);
+
+    /** Rasterer.getMapRaster for raster query i. */
+    Object getMapRaster(int i);
+
+    /** MapServer.writeImagesToOutputStream for raster query i; returns the PNG size. */
+    int writeImages(int i);
+
+    /** Trie.getPrefixes for prefix i. */
+    Object getPrefixes(int i);
+}
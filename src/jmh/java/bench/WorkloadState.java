@@ -0,0 +1,22 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmark-wide state holding the default-package BenchmarkWorkload.
+ */
+@State(Scope.Benchmark)
+public class WorkloadState {
+
+    Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = (Workload) Class.forName("BenchmarkWorkload")
+                .getDeclaredConstructor().newInstance();
+        workload.setUp();
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A* search over the CSR arrays of a GraphDB using only primitive, int-indexed state.
+ *
+ * One instance is reused for many searches (Router keeps one per thread). Instead of
+ * clearing its arrays between searches it bumps a generation counter: a vertex's distance,
+ * parent and heuristic are only valid if reached[v] equals the current generation, and it
+ * is settled only if settled[v] does. Edge lengths come from the graph's precomputed
+ * weights; the heuristic (great-circle distance to the destination) is computed once per
+ * vertex per search, and the fringe is an
+ * IndexedMinHeap, so vertices are decreased in place instead of being re-added.
+ */
+class AStarSearch {
+
+    private double[] distTo = new double[0];
+    private double[] heuristic = new double[0];
+    private int[] edgeTo = new int[0];
+    private int[] reached = new int[0];
+    private int[] settled = new int[0];
+    private int generation = 0;
+    private final IndexedMinHeap fringe = new IndexedMinHeap(0);
+
+    /**
+     * Finds the shortest path between two vertex indices of g.
+     * @param g The graph to search.
+     * @param start Index of the start vertex.
+     * @param destination Index of the destination vertex.
+     * @return The OSM ids along the path, or an empty list if destination is unreachable.
+     */
+    List<Long> shortestPath(GraphDB g, int start, int destination) {
+        prepare(g.vertexCount());
+        double destLon = g.lonOf(destination);
+        double destLat = g.latOf(destination);
+
+        reached[start] = generation;
+        distTo[start] = 0.0;
+        edgeTo[start] = -1;
+        heuristic[start] = GraphDB.distance(g.lonOf(start), g.latOf(start), destLon, destLat);
+        fringe.insertOrDecrease(start, heuristic[start]);
+
+        boolean found = false;
+        while (!fringe.isEmpty()) {
+            int v = fringe.poll();
+            if (v == destination) {
+                found = true;
+                break;
+            }
+            settled[v] = generation;
+
+            for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                int w = g.edgeTarget(e);
+                if (settled[w] == generation) {
+                    continue;
+                }
+                double d = distTo[v] + g.edgeWeight(e);
+                if (reached[w] != generation) {
+                    reached[w] = generation;
+                    heuristic[w] = GraphDB.distance(g.lonOf(w), g.latOf(w), destLon, destLat);
+                } else if (d >= distTo[w]) {
+                    continue;
+                }
+                distTo[w] = d;
+                edgeTo[w] = v;
+                fringe.insertOrDecrease(w, d + heuristic[w]);
+            }
+        }
+        fringe.clear();
+
+        List<Long> path = new ArrayList<>();
+        if (found) {
+            for (int v = destination; v != -1; v = edgeTo[v]) {
+                path.add(g.idOf(v));
+            }
+            Collections.reverse(path);
+        }
+        return path;
+    }
+
+    /** Sizes the arrays for a graph of n vertices and starts a new generation. */
+    private void prepare(int n) {
+        if (distTo.length < n) {
+            distTo = new double[n];
+            heuristic = new double[n];
+            edgeTo = new int[n];
+            reached = new int[n];
+            settled = new int[n];
+            generation = 0;
+            fringe.ensureCapacity(n);
+        }
+        generation++;
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(reached, 0);
+            Arrays.fill(settled, 0);
+            generation = 1;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Bidirectional A* over the CSR arrays of a GraphDB.
+ *
+ * Both searches use the average potential pf(v) = (h_t(v) - h_s(v)) / 2 (and pr = -pf for
+ * the reverse search), where h_t and h_s are great-circle distances to the destination and
+ * from the start. These potentials are consistent for both directions, so the two searches
+ * run Dijkstra on the same non-negative reduced edge costs, and the search can stop as soon
+ * as the smallest forward key plus the smallest reverse key reaches the best path length
+ * mu found so far. Roads are undirected, so the reverse search walks the same adjacency.
+ * In addition, a vertex is not labeled if its distance plus the full great-circle bound to
+ * the far end already reaches mu, since no shorter path can run through it.
+ *
+ * Like AStarSearch, an instance is reused across searches and invalidates its arrays with
+ * a generation counter.
+ */
+class BidirectionalAStarSearch {
+
+    /** Great-circle distance from each vertex to the destination and from the start. */
+    private double[] toDestination = new double[0];
+    private double[] fromStart = new double[0];
+    private int[] estimated = new int[0];
+    private final Side forward = new Side();
+    private final Side reverse = new Side();
+    private int generation = 0;
+
+    /** Search state of one direction. */
+    private static class Side {
+        double[] distTo = new double[0];
+        int[] edgeTo = new int[0];
+        int[] reached = new int[0];
+        int[] settled = new int[0];
+        final IndexedMinHeap fringe = new IndexedMinHeap(0);
+
+        void resize(int n) {
+            distTo = new double[n];
+            edgeTo = new int[n];
+            reached = new int[n];
+            settled = new int[n];
+            fringe.ensureCapacity(n);
+        }
+
+        void reset() {
+            Arrays.fill(reached, 0);
+            Arrays.fill(settled, 0);
+        }
+    }
+
+    /**
+     * Finds the shortest path between two vertex indices of g.
+     * @param g The graph to search.
+     * @param start Index of the start vertex.
+     * @param destination Index of the destination vertex.
+     * @return The OSM ids along the path, or an empty list if destination is unreachable.
+     */
+    List<Long> shortestPath(GraphDB g, int start, int destination) {
+        prepare(g.vertexCount());
+        double startLon = g.lonOf(start);
+        double startLat = g.latOf(start);
+        double destLon = g.lonOf(destination);
+        double destLat = g.latOf(destination);
+
+        estimate(g, start, startLon, startLat, destLon, destLat);
+        estimate(g, destination, startLon, startLat, destLon, destLat);
+        label(forward, start, 0.0, -1);
+        forward.fringe.insertOrDecrease(start, potential(start));
+        label(reverse, destination, 0.0, -1);
+        reverse.fringe.insertOrDecrease(destination, -potential(destination));
+
+        double mu = Double.POSITIVE_INFINITY;
+        int meeting = start == destination ? start : -1;
+        if (meeting >= 0) {
+            mu = 0.0;
+        }
+
+        while (!forward.fringe.isEmpty() && !reverse.fringe.isEmpty()) {
+            if (forward.fringe.minKey() + reverse.fringe.minKey() >= mu) {
+                break;
+            }
+            boolean isForward = forward.fringe.size() <= reverse.fringe.size();
+            Side side = isForward ? forward : reverse;
+            Side other = isForward ? reverse : forward;
+            double sign = isForward ? 1.0 : -1.0;
+            double[] bound = isForward ? toDestination : fromStart;
+
+            int v = side.fringe.poll();
+            side.settled[v] = generation;
+            for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                int w = g.edgeTarget(e);
+                if (side.settled[w] == generation) {
+                    continue;
+                }
+                double d = side.distTo[v] + g.edgeWeight(e);
+                if (side.reached[w] == generation && d >= side.distTo[w]) {
+                    continue;
+                }
+                estimate(g, w, startLon, startLat, destLon, destLat);
+                if (d + bound[w] >= mu) {
+                    continue;
+                }
+                label(side, w, d, v);
+                side.fringe.insertOrDecrease(w, d + sign * potential(w));
+                if (other.reached[w] == generation && d + other.distTo[w] < mu) {
+                    mu = d + other.distTo[w];
+                    meeting = w;
+                }
+            }
+        }
+        forward.fringe.clear();
+        reverse.fringe.clear();
+
+        List<Long> path = new ArrayList<>();
+        if (meeting >= 0) {
+            for (int v = meeting; v != -1; v = forward.edgeTo[v]) {
+                path.add(g.idOf(v));
+            }
+            Collections.reverse(path);
+            for (int v = reverse.edgeTo[meeting]; v != -1; v = reverse.edgeTo[v]) {
+                path.add(g.idOf(v));
+            }
+        }
+        return path;
+    }
+
+    private void label(Side side, int v, double distance, int parent) {
+        side.reached[v] = generation;
+        side.distTo[v] = distance;
+        side.edgeTo[v] = parent;
+    }
+
+    /** Computes the great-circle bounds of v once per search. */
+    private void estimate(GraphDB g, int v, double startLon, double startLat,
+                          double destLon, double destLat) {
+        if (estimated[v] != generation) {
+            double lon = g.lonOf(v);
+            double lat = g.latOf(v);
+            toDestination[v] = GraphDB.distance(lon, lat, destLon, destLat);
+            fromStart[v] = GraphDB.distance(startLon, startLat, lon, lat);
+            estimated[v] = generation;
+        }
+    }
+
+    /** Forward potential pf(v); estimate(v) must have been called this search. */
+    private double potential(int v) {
+        return (toDestination[v] - fromStart[v]) / 2.0;
+    }
+
+    /** Sizes the arrays for a graph of n vertices and starts a new generation. */
+    private void prepare(int n) {
+        if (estimated.length < n) {
+            toDestination = new double[n];
+            fromStart = new double[n];
+            estimated = new int[n];
+            forward.resize(n);
+            reverse.resize(n);
+            generation = 0;
+        }
+        generation++;
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(estimated, 0);
+            forward.reset();
+            reverse.reset();
+            generation = 1;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A* search over the ChainGraph of a GraphDB, so that only core vertices go through the
+ * fringe and each chain of shape points is relaxed as a single edge.
+ *
+ * A start or destination in the middle of a chain is handled without changing the
+ * overlay: the search is seeded with both ends of the start's chain at their distances
+ * along it, and every settled end of the destination's chain offers a candidate path that
+ * walks the rest of the chain. If both lie on the same chain, walking straight along it is
+ * a candidate too. The search stops once the smallest key in the fringe is no shorter than
+ * the best candidate, which the great-circle heuristic makes exact.
+ *
+ * The returned path is expanded back into every graph vertex along the way, so it is the
+ * same list of ids AStarSearch returns. State is reused across searches with a generation
+ * counter, as in AStarSearch.
+ */
+class ChainAStarSearch {
+
+    /** edgeTo value of a core vertex that is the start itself. */
+    private static final int START = -1;
+    /** edgeTo value of a core vertex seeded by walking the start's chain towards chainFrom. */
+    private static final int SEED_BACKWARD = -2;
+    /** edgeTo value of a core vertex seeded by walking the start's chain towards chainTo. */
+    private static final int SEED_FORWARD = -3;
+
+    private double[] distTo = new double[0];
+    private double[] heuristic = new double[0];
+    private int[] edgeTo = new int[0];
+    private int[] parent = new int[0];
+    private int[] reached = new int[0];
+    private int[] settled = new int[0];
+    private int generation = 0;
+    private final IndexedMinHeap fringe = new IndexedMinHeap(0);
+
+    /** Vertices put into the fringe by the last search, for comparing with AStarSearch. */
+    private int pushed;
+
+    /**
+     * Finds the shortest path between two vertex indices of g.
+     * @param g The graph to search; its chains must have been built.
+     * @param start Index of the start vertex.
+     * @param destination Index of the destination vertex.
+     * @return The OSM ids along the path, or an empty list if destination is unreachable.
+     */
+    List<Long> shortestPath(GraphDB g, int start, int destination) {
+        ChainGraph chains = g.chains;
+        prepare(chains.coreCount());
+        pushed = 0;
+        List<Long> path = new ArrayList<>();
+        if (start == destination) {
+            path.add(g.idOf(start));
+            return path;
+        }
+        double destLon = g.lonOf(destination);
+        double destLat = g.latOf(destination);
+
+        int startChain = chains.isCore(start) ? -1 : chains.chainOf[start];
+        if (startChain < 0) {
+            seed(g, chains.coreOf[start], 0.0, START, destLon, destLat);
+        } else {
+            double along = chains.distanceAlong[start];
+            seed(g, chains.coreOf[chains.chainFrom[startChain]], along, SEED_BACKWARD,
+                    destLon, destLat);
+            seed(g, chains.coreOf[chains.chainTo[startChain]],
+                    chains.chainLength[startChain] - along, SEED_FORWARD, destLon, destLat);
+        }
+
+        int destChain = chains.isCore(destination) ? -1 : chains.chainOf[destination];
+        double best = Double.POSITIVE_INFINITY;
+        int bestCore = -1;
+        /* Whether the best path enters the destination's chain at chainFrom. */
+        boolean bestFromStart = false;
+        if (destChain >= 0 && destChain == startChain) {
+            best = Math.abs(chains.distanceAlong[destination] - chains.distanceAlong[start]);
+        }
+
+        while (!fringe.isEmpty() && fringe.minKey() < best) {
+            int c = fringe.poll();
+            settled[c] = generation;
+            int v = chains.cores[c];
+            if (v == destination) {
+                best = distTo[c];
+                bestCore = c;
+                break;
+            }
+            if (destChain >= 0) {
+                double along = chains.distanceAlong[destination];
+                if (v == chains.chainFrom[destChain] && distTo[c] + along < best) {
+                    best = distTo[c] + along;
+                    bestCore = c;
+                    bestFromStart = true;
+                }
+                double rest = chains.chainLength[destChain] - along;
+                if (v == chains.chainTo[destChain] && distTo[c] + rest < best) {
+                    best = distTo[c] + rest;
+                    bestCore = c;
+                    bestFromStart = false;
+                }
+            }
+
+            for (int e = chains.edgeStart(c); e < chains.edgeEnd(c); e++) {
+                int w = chains.edgeTarget(e);
+                if (settled[w] == generation) {
+                    continue;
+                }
+                double d = distTo[c] + chains.edgeWeight(e);
+                if (reached[w] != generation) {
+                    reached[w] = generation;
+                    int u = chains.cores[w];
+                    heuristic[w] = GraphDB.distance(g.lonOf(u), g.latOf(u), destLon, destLat);
+                } else if (d >= distTo[w]) {
+                    continue;
+                }
+                distTo[w] = d;
+                edgeTo[w] = e;
+                parent[w] = c;
+                fringe.insertOrDecrease(w, d + heuristic[w]);
+                pushed++;
+            }
+        }
+        fringe.clear();
+
+        if (best == Double.POSITIVE_INFINITY) {
+            return path;
+        }
+        if (bestCore < 0) {
+            walk(chains, startChain, chains.positionOf[start],
+                    chains.positionOf[destination], path, g);
+            return path;
+        }
+        expand(g, chains, start, startChain, bestCore, path);
+        if (chains.cores[bestCore] != destination) {
+            int position = chains.positionOf[destination];
+            if (bestFromStart) {
+                walk(chains, destChain, 0, position - 1, path, g);
+            } else {
+                walk(chains, destChain, chains.viaCount(destChain) - 1, position + 1, path, g);
+            }
+            path.add(g.idOf(destination));
+        }
+        return path;
+    }
+
+    /** Number of fringe insertions and decreases in the last search. */
+    int pushed() {
+        return pushed;
+    }
+
+    private void seed(GraphDB g, int c, double dist, int how, double destLon, double destLat) {
+        if (reached[c] == generation && distTo[c] <= dist) {
+            return;
+        }
+        int v = g.chains.cores[c];
+        reached[c] = generation;
+        distTo[c] = dist;
+        edgeTo[c] = how;
+        heuristic[c] = GraphDB.distance(g.lonOf(v), g.latOf(v), destLon, destLat);
+        fringe.insertOrDecrease(c, dist + heuristic[c]);
+        pushed++;
+    }
+
+    /**
+     * Appends the path from start to core vertex c, which ends with c itself: the part of
+     * the start's chain walked by the seed, then every overlay edge expanded.
+     */
+    private void expand(GraphDB g, ChainGraph chains, int start, int startChain, int c,
+                        List<Long> path) {
+        List<Integer> edges = new ArrayList<>();
+        int first = c;
+        while (edgeTo[first] >= 0) {
+            edges.add(edgeTo[first]);
+            first = parent[first];
+        }
+        path.add(g.idOf(start));
+        if (edgeTo[first] == SEED_BACKWARD) {
+            walk(chains, startChain, chains.positionOf[start] - 1, 0, path, g);
+            path.add(g.idOf(chains.cores[first]));
+        } else if (edgeTo[first] == SEED_FORWARD) {
+            walk(chains, startChain, chains.positionOf[start] + 1,
+                    chains.viaCount(startChain) - 1, path, g);
+            path.add(g.idOf(chains.cores[first]));
+        }
+        for (int i = edges.size() - 1; i >= 0; i--) {
+            int e = edges.get(i);
+            int k = chains.edgeChain(e);
+            if (k >= 0) {
+                walk(chains, k, 0, chains.viaCount(k) - 1, path, g);
+            } else {
+                walk(chains, ~k, chains.viaCount(~k) - 1, 0, path, g);
+            }
+            path.add(g.idOf(chains.cores[chains.edgeTarget(e)]));
+        }
+    }
+
+    /**
+     * Appends the shape points of chain k from position from to position to, both
+     * included, in either direction. Appends nothing if either position is off the chain,
+     * which is how callers express an empty stretch at its ends.
+     */
+    private static void walk(ChainGraph chains, int k, int from, int to, List<Long> path,
+                             GraphDB g) {
+        int n = chains.viaCount(k);
+        if (from < 0 || from >= n || to < 0 || to >= n) {
+            return;
+        }
+        int step = from <= to ? 1 : -1;
+        for (int i = from; i != to + step; i += step) {
+            path.add(g.idOf(chains.via(k, i)));
+        }
+    }
+
+    /** Sizes the arrays for an overlay of n core vertices and starts a new generation. */
+    private void prepare(int n) {
+        if (distTo.length < n) {
+            distTo = new double[n];
+            heuristic = new double[n];
+            edgeTo = new int[n];
+            parent = new int[n];
+            reached = new int[n];
+            settled = new int[n];
+            generation = 0;
+            fringe.ensureCapacity(n);
+        }
+        generation++;
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(reached, 0);
+            Arrays.fill(settled, 0);
+            generation = 1;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Routing overlay of a GraphDB in which every chain of degree-2 vertices is collapsed into
+ * one weighted edge.
+ *
+ * Most vertices of an OSM graph are shape points in the middle of a way, with exactly two
+ * neighbors. Only the other vertices (dead ends, intersections, and one vertex of every
+ * ring made only of shape points) are core vertices of the overlay. A chain runs from one
+ * core vertex through zero or more shape points to the next core vertex; its length is the
+ * sum of the great-circle lengths of its segments, and its shape points are kept in order
+ * so that searches can expand a chain back into the full vertex path.
+ *
+ * Core vertices have dense indices of their own, and their overlay edges are stored in CSR
+ * form like GraphDB's: edge e of core c leads to core edgeTarget(e) along chain
+ * edgeChain(e), which is stored from chainFrom to chainTo and is walked backwards if the
+ * edge is reversed. Rings that start and end at the same core vertex have no overlay edge,
+ * since a shortest path never takes them, but are still kept for the shape points on them.
+ */
+class ChainGraph {
+
+    /** Core index of each graph vertex, or -1 for shape points. */
+    final int[] coreOf;
+    /** Graph vertex of each core index. */
+    final int[] cores;
+
+    private final int[] offsets;
+    private final int[] targets;
+    private final double[] weights;
+    /** Chain of each overlay edge, or ~chain if the edge walks it from chainTo to chainFrom. */
+    private final int[] edgeChains;
+
+    final int[] chainFrom;
+    final int[] chainTo;
+    final double[] chainLength;
+    private final int[] viaOffsets;
+    private final int[] via;
+
+    /** For shape points: the chain they lie on, their position in it and the distance to chainFrom. */
+    final int[] chainOf;
+    final int[] positionOf;
+    final double[] distanceAlong;
+
+    private ChainGraph(int n, int coreCount, int chainCount, int viaCount, int edgeCount) {
+        coreOf = new int[n];
+        cores = new int[coreCount];
+        offsets = new int[coreCount + 1];
+        targets = new int[edgeCount];
+        weights = new double[edgeCount];
+        edgeChains = new int[edgeCount];
+        chainFrom = new int[chainCount];
+        chainTo = new int[chainCount];
+        chainLength = new double[chainCount];
+        viaOffsets = new int[chainCount + 1];
+        via = new int[viaCount];
+        chainOf = new int[n];
+        positionOf = new int[n];
+        distanceAlong = new double[n];
+    }
+
+    /** Writes the overlay for GraphSnapshot: its sizes, then every array. */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(coreOf.length);
+        out.writeInt(cores.length);
+        out.writeInt(chainFrom.length);
+        out.writeInt(via.length);
+        out.writeInt(targets.length);
+        for (int[] values : new int[][] {coreOf, cores, offsets, targets, edgeChains, chainFrom,
+                chainTo, viaOffsets, via, chainOf, positionOf}) {
+            for (int value : values) {
+                out.writeInt(value);
+            }
+        }
+        for (double[] values : new double[][] {weights, chainLength, distanceAlong}) {
+            for (double value : values) {
+                out.writeDouble(value);
+            }
+        }
+    }
+
+    /** Reads an overlay written by write(), advancing the buffer past it. */
+    static ChainGraph read(ByteBuffer buffer) {
+        ChainGraph chains = new ChainGraph(buffer.getInt(), buffer.getInt(), buffer.getInt(),
+                buffer.getInt(), buffer.getInt());
+        for (int[] values : new int[][] {chains.coreOf, chains.cores, chains.offsets,
+                chains.targets, chains.edgeChains, chains.chainFrom, chains.chainTo,
+                chains.viaOffsets, chains.via, chains.chainOf, chains.positionOf}) {
+            buffer.asIntBuffer().get(values);
+            buffer.position(buffer.position() + values.length * Integer.BYTES);
+        }
+        for (double[] values : new double[][] {chains.weights, chains.chainLength,
+                chains.distanceAlong}) {
+            buffer.asDoubleBuffer().get(values);
+            buffer.position(buffer.position() + values.length * Double.BYTES);
+        }
+        return chains;
+    }
+
+    /** Number of core vertices. */
+    int coreCount() {
+        return cores.length;
+    }
+
+    int edgeStart(int c) {
+        return offsets[c];
+    }
+
+    int edgeEnd(int c) {
+        return offsets[c + 1];
+    }
+
+    /** Core index that overlay edge e leads to. */
+    int edgeTarget(int e) {
+        return targets[e];
+    }
+
+    /** Length of overlay edge e in miles. */
+    double edgeWeight(int e) {
+        return weights[e];
+    }
+
+    /** Chain of overlay edge e, encoded as chain or ~chain if it is walked backwards. */
+    int edgeChain(int e) {
+        return edgeChains[e];
+    }
+
+    /** Number of shape points on chain k. */
+    int viaCount(int k) {
+        return viaOffsets[k + 1] - viaOffsets[k];
+    }
+
+    /** Graph vertex of the i-th shape point of chain k, counted from chainFrom. */
+    int via(int k, int i) {
+        return via[viaOffsets[k] + i];
+    }
+
+    /** Whether graph vertex v is a core vertex. */
+    boolean isCore(int v) {
+        return coreOf[v] >= 0;
+    }
+
+    /**
+     * Builds the overlay of the CSR arrays of g. Runs in time linear in the graph size.
+     * @param g An indexed graph; its adjacency must be symmetric, as GraphDB's is.
+     */
+    static ChainGraph build(GraphDB g) {
+        int n = g.vertexCount();
+        boolean[] core = new boolean[n];
+        for (int v = 0; v < n; v++) {
+            core[v] = g.edgeEnd(v) - g.edgeStart(v) != 2 || g.edgeTarget(g.edgeStart(v)) == v
+                    || g.edgeTarget(g.edgeStart(v) + 1) == v;
+        }
+
+        /*
+         * Count the chains, walking each one from the first core vertex that reaches it.
+         * Shape points not reachable from a core vertex form rings; make one of each core.
+         */
+        boolean[] seen = new boolean[n];
+        int chainCount = 0;
+        for (int v = 0; v < n; v++) {
+            if (core[v]) {
+                for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                    int w = g.edgeTarget(e);
+                    if (core[w] ? v < w : !seen[w]) {
+                        walk(g, core, v, w, seen, null);
+                        chainCount++;
+                    }
+                }
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            if (!core[v] && !seen[v]) {
+                core[v] = true;
+                walk(g, core, v, g.edgeTarget(g.edgeStart(v)), seen, null);
+                chainCount++;
+            }
+        }
+
+        int coreCount = 0;
+        for (int v = 0; v < n; v++) {
+            if (core[v]) {
+                coreCount++;
+            }
+        }
+        int viaCount = n - coreCount;
+        /* At most two overlay edges per chain; rings get none, so this may overestimate. */
+        ChainGraph chains = new ChainGraph(n, coreCount, chainCount, viaCount, 2 * chainCount);
+
+        int c = 0;
+        for (int v = 0; v < n; v++) {
+            chains.coreOf[v] = core[v] ? c++ : -1;
+            if (core[v]) {
+                chains.cores[chains.coreOf[v]] = v;
+            }
+        }
+        Arrays.fill(chains.chainOf, -1);
+
+        /* Record each chain once, starting from the first core vertex that reaches it. */
+        Arrays.fill(seen, false);
+        int k = 0;
+        int viaEnd = 0;
+        int[] path = new int[Math.max(viaCount, 1)];
+        for (int v = 0; v < n; v++) {
+            if (!core[v]) {
+                continue;
+            }
+            for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                int w = g.edgeTarget(e);
+                if (core[w] ? v >= w : seen[w]) {
+                    continue;
+                }
+                int shapePoints = walk(g, core, v, w, seen, path);
+                int end = shapePoints == 0 ? w : lastOf(g, core, v, path, shapePoints);
+                chains.chainFrom[k] = v;
+                chains.chainTo[k] = end;
+                chains.viaOffsets[k] = viaEnd;
+                double length = 0;
+                int previous = v;
+                for (int i = 0; i < shapePoints; i++) {
+                    int s = path[i];
+                    length += segment(g, previous, s);
+                    chains.via[viaEnd + i] = s;
+                    chains.chainOf[s] = k;
+                    chains.positionOf[s] = i;
+                    chains.distanceAlong[s] = length;
+                    previous = s;
+                }
+                chains.chainLength[k] = length + segment(g, previous, end);
+                viaEnd += shapePoints;
+                k++;
+            }
+        }
+        chains.viaOffsets[k] = viaEnd;
+
+        /* Overlay edges: both directions of every chain that connects two distinct cores. */
+        int[] degree = new int[coreCount + 1];
+        for (k = 0; k < chainCount; k++) {
+            if (chains.chainFrom[k] != chains.chainTo[k]) {
+                degree[chains.coreOf[chains.chainFrom[k]]]++;
+                degree[chains.coreOf[chains.chainTo[k]]]++;
+            }
+        }
+        for (c = 0; c < coreCount; c++) {
+            chains.offsets[c + 1] = chains.offsets[c] + degree[c];
+        }
+        int[] next = Arrays.copyOf(chains.offsets, coreCount);
+        for (k = 0; k < chainCount; k++) {
+            int from = chains.coreOf[chains.chainFrom[k]];
+            int to = chains.coreOf[chains.chainTo[k]];
+            if (from == to) {
+                continue;
+            }
+            chains.addEdge(next[from]++, to, chains.chainLength[k], k);
+            chains.addEdge(next[to]++, from, chains.chainLength[k], ~k);
+        }
+        return chains;
+    }
+
+    private void addEdge(int e, int target, double weight, int chain) {
+        targets[e] = target;
+        weights[e] = weight;
+        edgeChains[e] = chain;
+    }
+
+    /**
+     * Follows the shape points from core vertex start through first until the next core
+     * vertex, marking them seen and storing them in path if it is not null.
+     * @return The number of shape points passed.
+     */
+    private static int walk(GraphDB g, boolean[] core, int start, int first, boolean[] seen,
+                            int[] path) {
+        int count = 0;
+        int previous = start;
+        int current = first;
+        while (!core[current] && !seen[current]) {
+            seen[current] = true;
+            if (path != null) {
+                path[count] = current;
+            }
+            count++;
+            int e = g.edgeStart(current);
+            int next = g.edgeTarget(e) == previous ? g.edgeTarget(e + 1) : g.edgeTarget(e);
+            previous = current;
+            current = next;
+        }
+        return count;
+    }
+
+    /** The core vertex after the last of the shape points walked from start into path. */
+    private static int lastOf(GraphDB g, boolean[] core, int start, int[] path, int count) {
+        int last = path[count - 1];
+        int previous = count > 1 ? path[count - 2] : start;
+        int e = g.edgeStart(last);
+        return g.edgeTarget(e) == previous ? g.edgeTarget(e + 1) : g.edgeTarget(e);
+    }
+
+    private static double segment(GraphDB g, int v, int w) {
+        return g.edgeWeight(g.edgeBetween(v, w));
+    }
+}
@@ -0,0 +1,421 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Contraction hierarchy over the road graph of a GraphDB.
+ *
+ * Preprocessing contracts the vertices one at a time in order of importance (edge
+ * difference plus number of already contracted neighbors, re-evaluated lazily). When a
+ * vertex v is contracted, a shortcut u-w is added for each pair of its remaining neighbors
+ * unless a bounded witness search finds a path from u to w avoiding v that is no longer
+ * than u-v-w. Each shortcut remembers the contracted vertex it bypasses, so query results
+ * can be unpacked back into the original road vertices.
+ *
+ * The result is stored as an upward graph: every vertex keeps only its edges to
+ * higher-ranked vertices, in CSR form. Since roads are undirected, one upward graph serves
+ * both the forward and the backward search of ContractionHierarchySearch.
+ *
+ * The hierarchy is persisted next to the OSM file (dbPath + ".ch") and is tied to the
+ * vertex ids of the graph it was built for. Build it offline with
+ * <pre>java ContractionHierarchy path/to/file.osm.xml</pre>
+ */
+class ContractionHierarchy {
+
+    static final String SUFFIX = ".ch";
+    private static final int MAGIC = 0x424D4348; // "BMCH"
+    private static final int VERSION = 1;
+    /** Witness searches give up after settling this many vertices. */
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+
+    /** Vertex ids of the graph this hierarchy was built for. */
+    final long[] ids;
+    /** Contraction order of each vertex; higher is more important. */
+    final int[] rank;
+    final int[] upOffsets;
+    final int[] upTargets;
+    final double[] upWeights;
+    /** Vertex bypassed by each upward edge, or -1 for an original road segment. */
+    final int[] upMiddles;
+
+    private ContractionHierarchy(long[] ids, int[] rank, int[] upOffsets, int[] upTargets,
+                                 double[] upWeights, int[] upMiddles) {
+        this.ids = ids;
+        this.rank = rank;
+        this.upOffsets = upOffsets;
+        this.upTargets = upTargets;
+        this.upWeights = upWeights;
+        this.upMiddles = upMiddles;
+    }
+
+    /** Whether this hierarchy was built for exactly the vertices of g. */
+    boolean matches(GraphDB g) {
+        return Arrays.equals(ids, g.ids);
+    }
+
+    int vertexCount() {
+        return ids.length;
+    }
+
+    /** Index of the upward edge from v to w; w must rank above v. */
+    int findUpEdge(int v, int w) {
+        for (int e = upOffsets[v]; e < upOffsets[v + 1]; e++) {
+            if (upTargets[e] == w) {
+                return e;
+            }
+        }
+        throw new IllegalStateException("No upward edge " + ids[v] + " -> " + ids[w]);
+    }
+
+    /**
+     * Appends the original vertices of the edge from -> to, excluding from and including to.
+     * @param middle The vertex the edge bypasses, or -1 if it is an original segment.
+     */
+    void unpack(int from, int to, int middle, List<Long> path) {
+        if (middle < 0) {
+            path.add(ids[to]);
+            return;
+        }
+        unpack(from, middle, upMiddles[findUpEdge(middle, from)], path);
+        unpack(middle, to, upMiddles[findUpEdge(middle, to)], path);
+    }
+
+    /**
+     * Attaches the persisted hierarchy for dbPath to g, if there is one that is at least as
+     * new as the OSM file and was built for the same vertices.
+     * @param g The loaded graph.
+     * @param dbPath Path to the OSM file g was loaded from.
+     */
+    static void attach(GraphDB g, String dbPath) {
+        File file = new File(dbPath + SUFFIX);
+        if (!file.isFile() || file.lastModified() < new File(dbPath).lastModified()) {
+            return;
+        }
+        try {
+            ContractionHierarchy ch = read(file);
+            if (ch.matches(g)) {
+                g.hierarchy = ch;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Builds the hierarchy for the given graph.
+     * @param g The graph to preprocess.
+     * @return The contraction hierarchy.
+     */
+    static ContractionHierarchy build(GraphDB g) {
+        return new Builder(g).build();
+    }
+
+    /**
+     * Writes the hierarchy to a file, going through a temporary file like GraphSnapshot.
+     * @throws IOException If the file cannot be written.
+     */
+    void write(File file) throws IOException {
+        int n = ids.length;
+        Path tmp = GraphSnapshot.createTempFile(file);
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(n);
+                out.writeInt(upTargets.length);
+                for (long id : ids) {
+                    out.writeLong(id);
+                }
+                for (int r : rank) {
+                    out.writeInt(r);
+                }
+                for (int offset : upOffsets) {
+                    out.writeInt(offset);
+                }
+                for (int target : upTargets) {
+                    out.writeInt(target);
+                }
+                for (double weight : upWeights) {
+                    out.writeDouble(weight);
+                }
+                for (int middle : upMiddles) {
+                    out.writeInt(middle);
+                }
+            }
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Reads a hierarchy written by write() through a memory-mapped buffer.
+     * @throws IOException If the file cannot be read or has the wrong format.
+     */
+    static ContractionHierarchy read(File file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Not a contraction hierarchy: " + file);
+        }
+        int n = buffer.getInt();
+        int m = buffer.getInt();
+        long[] ids = new long[n];
+        buffer.asLongBuffer().get(ids);
+        buffer.position(buffer.position() + n * Long.BYTES);
+        int[] rank = readInts(buffer, n);
+        int[] upOffsets = readInts(buffer, n + 1);
+        int[] upTargets = readInts(buffer, m);
+        double[] upWeights = new double[m];
+        buffer.asDoubleBuffer().get(upWeights);
+        buffer.position(buffer.position() + m * Double.BYTES);
+        int[] upMiddles = readInts(buffer, m);
+        return new ContractionHierarchy(ids, rank, upOffsets, upTargets, upWeights, upMiddles);
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + count * Integer.BYTES);
+        return values;
+    }
+
+    /**
+     * Offline preprocessing: builds the hierarchy for the given OSM file and writes it
+     * next to it.
+     * @param args The path of the OSM file.
+     */
+    public static void main(String[] args) throws IOException {
+        String dbPath = args[0];
+        GraphDB g = GraphDB.load(dbPath);
+        long start = System.currentTimeMillis();
+        ContractionHierarchy ch = build(g);
+        ch.write(new File(dbPath + SUFFIX));
+        System.out.println("Contracted " + ch.vertexCount() + " vertices into "
+                + ch.upTargets.length + " upward edges in "
+                + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    /** Mutable graph and witness-search state used while contracting. */
+    private static class Builder {
+        private final GraphDB g;
+        private final int n;
+        /* Remaining (uncontracted) neighbors of each vertex. */
+        private final int[][] adjTargets;
+        private final double[][] adjWeights;
+        private final int[][] adjMiddles;
+        private final int[] degree;
+        private final boolean[] contracted;
+        private final int[] contractedNeighbors;
+
+        /* Upward edges, recorded when their lower end is contracted. */
+        private final int[][] upTargets;
+        private final double[][] upWeights;
+        private final int[][] upMiddles;
+        private final int[] rank;
+
+        /* Witness search state. */
+        private final double[] witnessDist;
+        private final int[] witnessReached;
+        private int witnessGeneration = 0;
+        private final IndexedMinHeap witnessHeap;
+
+        Builder(GraphDB g) {
+            this.g = g;
+            n = g.vertexCount();
+            adjTargets = new int[n][];
+            adjWeights = new double[n][];
+            adjMiddles = new int[n][];
+            degree = new int[n];
+            contracted = new boolean[n];
+            contractedNeighbors = new int[n];
+            upTargets = new int[n][];
+            upWeights = new double[n][];
+            upMiddles = new int[n][];
+            rank = new int[n];
+            witnessDist = new double[n];
+            witnessReached = new int[n];
+            witnessHeap = new IndexedMinHeap(n);
+
+            for (int v = 0; v < n; v++) {
+                int size = g.edgeEnd(v) - g.edgeStart(v);
+                adjTargets[v] = new int[Math.max(size, 2)];
+                adjWeights[v] = new double[Math.max(size, 2)];
+                adjMiddles[v] = new int[Math.max(size, 2)];
+                for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                    int w = g.edgeTarget(e);
+                    addOrImprove(v, w, g.edgeWeight(e), -1);
+                }
+            }
+        }
+
+        ContractionHierarchy build() {
+            IndexedMinHeap queue = new IndexedMinHeap(n);
+            for (int v = 0; v < n; v++) {
+                queue.insertOrDecrease(v, priority(v));
+            }
+            int next = 0;
+            while (!queue.isEmpty()) {
+                int v = queue.poll();
+                double p = priority(v);
+                if (!queue.isEmpty() && p > queue.minKey()) {
+                    queue.insertOrDecrease(v, p);
+                    continue;
+                }
+                rank[v] = next;
+                next++;
+                contract(v);
+            }
+
+            int[] offsets = new int[n + 1];
+            for (int v = 0; v < n; v++) {
+                offsets[v + 1] = offsets[v] + upTargets[v].length;
+            }
+            int m = offsets[n];
+            int[] targets = new int[m];
+            double[] weights = new double[m];
+            int[] middles = new int[m];
+            for (int v = 0; v < n; v++) {
+                System.arraycopy(upTargets[v], 0, targets, offsets[v], upTargets[v].length);
+                System.arraycopy(upWeights[v], 0, weights, offsets[v], upWeights[v].length);
+                System.arraycopy(upMiddles[v], 0, middles, offsets[v], upMiddles[v].length);
+            }
+            return new ContractionHierarchy(Arrays.copyOf(g.ids, n), rank, offsets,
+                    targets, weights, middles);
+        }
+
+        /** Edge difference plus contracted neighbors; smaller is contracted first. */
+        private double priority(int v) {
+            return shortcuts(v, false) - degree[v] + contractedNeighbors[v];
+        }
+
+        private void contract(int v) {
+            shortcuts(v, true);
+            int d = degree[v];
+            upTargets[v] = Arrays.copyOf(adjTargets[v], d);
+            upWeights[v] = Arrays.copyOf(adjWeights[v], d);
+            upMiddles[v] = Arrays.copyOf(adjMiddles[v], d);
+            for (int i = 0; i < d; i++) {
+                int u = adjTargets[v][i];
+                remove(u, v);
+                contractedNeighbors[u]++;
+            }
+            degree[v] = 0;
+            contracted[v] = true;
+        }
+
+        /**
+         * Counts (and if apply is set, adds) the shortcuts needed to contract v.
+         */
+        private int shortcuts(int v, boolean apply) {
+            int d = degree[v];
+            int count = 0;
+            for (int i = 0; i < d; i++) {
+                int u = adjTargets[v][i];
+                double viaV = adjWeights[v][i];
+                double maxDistance = 0;
+                for (int j = i + 1; j < d; j++) {
+                    maxDistance = Math.max(maxDistance, viaV + adjWeights[v][j]);
+                }
+                if (i + 1 >= d) {
+                    break;
+                }
+                witnessSearch(u, v, maxDistance);
+                for (int j = i + 1; j < d; j++) {
+                    int w = adjTargets[v][j];
+                    double shortcut = viaV + adjWeights[v][j];
+                    boolean witnessed = witnessReached[w] == witnessGeneration
+                            && witnessDist[w] <= shortcut;
+                    if (!witnessed) {
+                        count++;
+                        if (apply) {
+                            addOrImprove(u, w, shortcut, v);
+                            addOrImprove(w, u, shortcut, v);
+                        }
+                    }
+                }
+            }
+            return count;
+        }
+
+        /** Bounded Dijkstra from source that ignores the vertex being contracted. */
+        private void witnessSearch(int source, int ignored, double maxDistance) {
+            witnessGeneration++;
+            witnessReached[source] = witnessGeneration;
+            witnessDist[source] = 0.0;
+            witnessHeap.insertOrDecrease(source, 0.0);
+            int settled = 0;
+            while (!witnessHeap.isEmpty() && settled < WITNESS_SETTLE_LIMIT) {
+                if (witnessHeap.minKey() > maxDistance) {
+                    break;
+                }
+                int x = witnessHeap.poll();
+                settled++;
+                for (int i = 0; i < degree[x]; i++) {
+                    int y = adjTargets[x][i];
+                    if (y == ignored) {
+                        continue;
+                    }
+                    double dist = witnessDist[x] + adjWeights[x][i];
+                    if (witnessReached[y] != witnessGeneration || dist < witnessDist[y]) {
+                        witnessReached[y] = witnessGeneration;
+                        witnessDist[y] = dist;
+                        witnessHeap.insertOrDecrease(y, dist);
+                    }
+                }
+            }
+            witnessHeap.clear();
+        }
+
+        /** Adds the edge v -> w, or shortens the existing one. */
+        private void addOrImprove(int v, int w, double weight, int middle) {
+            for (int i = 0; i < degree[v]; i++) {
+                if (adjTargets[v][i] == w) {
+                    if (weight < adjWeights[v][i]) {
+                        adjWeights[v][i] = weight;
+                        adjMiddles[v][i] = middle;
+                    }
+                    return;
+                }
+            }
+            if (degree[v] == adjTargets[v].length) {
+                int capacity = 2 * degree[v];
+                adjTargets[v] = Arrays.copyOf(adjTargets[v], capacity);
+                adjWeights[v] = Arrays.copyOf(adjWeights[v], capacity);
+                adjMiddles[v] = Arrays.copyOf(adjMiddles[v], capacity);
+            }
+            adjTargets[v][degree[v]] = w;
+            adjWeights[v][degree[v]] = weight;
+            adjMiddles[v][degree[v]] = middle;
+            degree[v]++;
+        }
+
+        /** Removes the edge v -> w. */
+        private void remove(int v, int w) {
+            for (int i = 0; i < degree[v]; i++) {
+                if (adjTargets[v][i] == w) {
+                    int last = degree[v] - 1;
+                    adjTargets[v][i] = adjTargets[v][last];
+                    adjWeights[v][i] = adjWeights[v][last];
+                    adjMiddles[v][i] = adjMiddles[v][last];
+                    degree[v] = last;
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Shortest-path queries on a ContractionHierarchy.
+ *
+ * A forward Dijkstra from the start and a backward Dijkstra from the destination both only
+ * follow upward edges. Every shortest path has a highest-ranked vertex that both searches
+ * reach, so the best path length mu is the minimum of the two distances over vertices
+ * reached by both; a direction stops once its smallest key reaches mu. The shortcuts on the
+ * resulting path are then unpacked back into road vertices.
+ *
+ * Like AStarSearch, an instance is reused across queries and invalidates its arrays with
+ * a generation counter.
+ */
+class ContractionHierarchySearch {
+
+    private final Side forward = new Side();
+    private final Side reverse = new Side();
+    private int generation = 0;
+
+    /** Search state of one direction. */
+    private static class Side {
+        double[] distTo = new double[0];
+        int[] edgeTo = new int[0];
+        /** Vertex bypassed by the edge into each vertex, or -1 for a road segment. */
+        int[] middleTo = new int[0];
+        int[] reached = new int[0];
+        final IndexedMinHeap fringe = new IndexedMinHeap(0);
+
+        void resize(int n) {
+            distTo = new double[n];
+            edgeTo = new int[n];
+            middleTo = new int[n];
+            reached = new int[n];
+            fringe.ensureCapacity(n);
+        }
+
+        boolean done(double mu) {
+            return fringe.isEmpty() || fringe.minKey() >= mu;
+        }
+    }
+
+    /**
+     * Finds the shortest path between two vertex indices of the hierarchy's graph.
+     * @param ch The contraction hierarchy to search.
+     * @param start Index of the start vertex.
+     * @param destination Index of the destination vertex.
+     * @return The OSM ids along the path, or an empty list if destination is unreachable.
+     */
+    List<Long> shortestPath(ContractionHierarchy ch, int start, int destination) {
+        prepare(ch.vertexCount());
+        label(forward, start, 0.0, -1, -1);
+        forward.fringe.insertOrDecrease(start, 0.0);
+        label(reverse, destination, 0.0, -1, -1);
+        reverse.fringe.insertOrDecrease(destination, 0.0);
+
+        double mu = Double.POSITIVE_INFINITY;
+        int meeting = -1;
+        if (start == destination) {
+            mu = 0.0;
+            meeting = start;
+        }
+
+        boolean isForward = true;
+        while (!forward.done(mu) || !reverse.done(mu)) {
+            if (isForward ? forward.done(mu) : reverse.done(mu)) {
+                isForward = !isForward;
+            }
+            Side side = isForward ? forward : reverse;
+            Side other = isForward ? reverse : forward;
+            isForward = !isForward;
+
+            int v = side.fringe.poll();
+            double dv = side.distTo[v];
+            if (other.reached[v] == generation && dv + other.distTo[v] < mu) {
+                mu = dv + other.distTo[v];
+                meeting = v;
+            }
+            for (int e = ch.upOffsets[v]; e < ch.upOffsets[v + 1]; e++) {
+                int w = ch.upTargets[e];
+                double d = dv + ch.upWeights[e];
+                if (side.reached[w] == generation && d >= side.distTo[w]) {
+                    continue;
+                }
+                label(side, w, d, v, ch.upMiddles[e]);
+                side.fringe.insertOrDecrease(w, d);
+            }
+        }
+        forward.fringe.clear();
+        reverse.fringe.clear();
+
+        List<Long> path = new ArrayList<>();
+        if (meeting < 0) {
+            return path;
+        }
+        /* Vertices of the forward search from the meeting vertex back to the start. */
+        List<Integer> upward = new ArrayList<>();
+        for (int v = meeting; v != -1; v = forward.edgeTo[v]) {
+            upward.add(v);
+        }
+        path.add(ch.ids[start]);
+        for (int i = upward.size() - 1; i > 0; i--) {
+            int w = upward.get(i - 1);
+            ch.unpack(upward.get(i), w, forward.middleTo[w], path);
+        }
+        /* The reverse search's parents lead from the meeting vertex down to the destination. */
+        for (int v = meeting; reverse.edgeTo[v] != -1; v = reverse.edgeTo[v]) {
+            ch.unpack(v, reverse.edgeTo[v], reverse.middleTo[v], path);
+        }
+        return path;
+    }
+
+    private void label(Side side, int v, double distance, int parent, int middle) {
+        side.reached[v] = generation;
+        side.distTo[v] = distance;
+        side.edgeTo[v] = parent;
+        side.middleTo[v] = middle;
+    }
+
+    /** Sizes the arrays for a graph of n vertices and starts a new generation. */
+    private void prepare(int n) {
+        if (forward.reached.length < n) {
+            forward.resize(n);
+            reverse.resize(n);
+            generation = 0;
+        }
+        generation++;
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(forward.reached, 0);
+            Arrays.fill(reverse.reached, 0);
+            generation = 1;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Watches a few files for changes by their modification times and sizes.
+ *
+ * A change is only reported once the files have kept the same modification times and
+ * sizes for a whole check, so a file that is still being written is not read halfway
+ * through. Calling poll() at a fixed interval thus reports each completed change one
+ * interval after it was first seen.
+ */
+class FileWatch {
+
+    private final File[] files;
+    /** Modification times and sizes at the last poll, and at the last reported change. */
+    private long[] seen;
+    private long[] reported;
+
+    /**
+     * @param files The files to watch; their current state counts as already reported.
+     */
+    FileWatch(File... files) {
+        this.files = files;
+        seen = stamp();
+        reported = seen;
+    }
+
+    /**
+     * Checks the files again.
+     * @return Whether they changed since the last reported change and have not changed
+     * since the previous poll.
+     */
+    boolean poll() {
+        long[] now = stamp();
+        boolean settled = Arrays.equals(now, seen) && !Arrays.equals(now, reported);
+        seen = now;
+        if (settled) {
+            reported = now;
+        }
+        return settled;
+    }
+
+    private long[] stamp() {
+        long[] stamp = new long[2 * files.length];
+        for (int i = 0; i < files.length; i++) {
+            stamp[2 * i] = files[i].lastModified();
+            stamp[2 * i + 1] = files[i].length();
+        }
+        return stamp;
+    }
+}
@@ -33,7 +33,7 @@ public class GraphBuildingHandler extends DefaultHandler {
      * roads, but in practice we walk all over them with such impunity that we forget cars can
      * actually drive on them.
      */
-    private static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
+    static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
             ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
                     "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
                     "secondary_link", "tertiary_link"));
@@ -43,13 +43,29 @@ public class GraphBuildingHandler extends DefaultHandler {
     private long lastNodeInWay;
     private boolean validWay = false;
     private Node currentNode = null;
+    private long currentNodeId;
+    private double currentNodeLat;
+    private double currentNodeLon;
+    /** Sorted ids of the nodes to materialize, or null to keep every node. */
+    private final long[] routable;
 
     /**
      * Create a new GraphBuildingHandler.
      * @param g The graph to populate with the XML data.
      */
     public GraphBuildingHandler(GraphDB g) {
+        this(g, null);
+    }
+
+    /**
+     * Create a GraphBuildingHandler that only creates Nodes for the given ids, as collected
+     * by a RoutableNodeCollector pass. Named nodes outside the set still become locations.
+     * @param g The graph to populate with the XML data.
+     * @param routable Sorted ids of the nodes to keep, or null to keep every node.
+     */
+    GraphBuildingHandler(GraphDB g, long[] routable) {
         this.g = g;
+        this.routable = routable;
     }
 
     /**
@@ -82,11 +98,15 @@ public class GraphBuildingHandler extends DefaultHandler {
 
             /* TODO Use the above information to save a "node" to somewhere. */
 
-            long id = Long.parseLong(attributes.getValue("id"));
-            double lat = Double.parseDouble(attributes.getValue("lat"));
-            double lon = Double.parseDouble(attributes.getValue("lon"));
-            currentNode = new Node(id, lat, lon);
-            g.addNode(currentNode);
+            currentNodeId = Long.parseLong(attributes.getValue("id"));
+            currentNodeLat = Double.parseDouble(attributes.getValue("lat"));
+            currentNodeLon = Double.parseDouble(attributes.getValue("lon"));
+            if (routable == null || Arrays.binarySearch(routable, currentNodeId) >= 0) {
+                currentNode = new Node(currentNodeId, currentNodeLat, currentNodeLon);
+                g.addNode(currentNode);
+            } else {
+                currentNode = null;
+            }
 
         } else if (qName.equals("way")) {
             /* We encountered a new <way...> tag. */
@@ -129,15 +149,10 @@ public class GraphBuildingHandler extends DefaultHandler {
             /* While looking at a node, we found a <tag...> with k="name". */
             /* TODO Create a location. */
             String nodeName = attributes.getValue("v");
-            currentNode.addName(nodeName);
-            String key = nodeName.replaceAll("[^a-zA-Z\\s]+", "").toLowerCase();
-            if(key.length() >0) {
-                g.prefixTrie.put(key, nodeName);
+            if (currentNode != null) {
+                currentNode.addName(nodeName);
             }
-
-            LocationObject location = new LocationObject(currentNode.getId(), currentNode.getLat(), currentNode.getLon()
-                    ,nodeName);
-            g.locations.put(nodeName, location);
+            g.addLocation(currentNodeId, currentNodeLat, currentNodeLon, nodeName);
 
             // this is where its good to track the last node, since node is already added to graph
             // might need to call a graph method to make sure name gets added in
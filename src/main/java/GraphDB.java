@@ -2,7 +2,7 @@
 import org.xml.sax.SAXException;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.InputStream;
 import java.io.IOException;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
@@ -22,9 +22,74 @@ public class GraphDB {
     /** Your instance variables for storing the graph. You should consider
      * creating helper classes, e.g. Node, Edge, etc. */
 
+    /** Nodes while the graph is being loaded; buildIndex packs them and empties the map. */
     Map<Long, Node> nodeMap = new HashMap<>();
-     public Trie prefixTrie = new Trie();
+    /**
+     * Prefix trie of the locations, built on first use by prefixTrie(). Graphs that serve
+     * prefix searches from a PrefixFst only build it for fuzzy searches.
+     */
+    private volatile Trie prefixTrie;
      public HashMap<String, Object> locations = new HashMap<>();
+    /**
+     * Every named OSM node by id, in the order they were added, so that changes to a node
+     * can be traced to the location it counts towards.
+     */
+    Map<Long, LocationObject> namedNodes = new LinkedHashMap<>();
+    /** Routable ways by id in file order, kept so that change files can replace them. */
+    Map<Long, Way> ways = new LinkedHashMap<>();
+
+    /*
+     * Immutable compressed sparse row (CSR) layout of the cleaned graph, built by buildIndex().
+     * Vertex i has OSM id ids[i] and its neighbors are neighbors[offsets[i]] .. neighbors[offsets[i + 1] - 1]. weights[e] is the
+     * great-circle length of edge e in miles, computed once so searches do not redo the
+     * trigonometry on every relaxation. edgeWays[e] is the way name id of the way edge e
+     * belongs to, or -1 if that way is unnamed.
+     */
+    long[] ids = new long[0];
+    /** The ids in ascending order, and the vertex index each of them belongs to. */
+    private long[] sortedIds = new long[0];
+    private int[] sortedVertex = new int[0];
+    double[] lats = new double[0];
+    double[] lons = new double[0];
+    int[] offsets = {0};
+    int[] neighbors = new int[0];
+    double[] weights = new double[0];
+    int[] edgeWays = new int[0];
+    /** Dictionary of way names: the id of a name is its index in wayNames. */
+    private final List<String> wayNames = new ArrayList<>();
+    private final Map<String, Integer> wayNameIds = new HashMap<>();
+    /** Nearest-vertex index over lons/lats, rebuilt along with the CSR arrays. */
+    KDTree kdTree = new KDTree(lons, lats);
+    /** Contraction hierarchy for these vertices, or null if none has been built. */
+    ContractionHierarchy hierarchy;
+    /** Overlay with chains of degree-2 vertices collapsed, rebuilt along with the CSR arrays. */
+    ChainGraph chains;
+    /** Memory-mapped autocomplete index for these locations, or null if none is attached. */
+    PrefixFst prefixIndex;
+    /** Word index of the locations, built on first use by tokenIndex(). */
+    private volatile TokenIndex tokenIndex;
+    /** Changed ways left out by the applyChanges call that made this graph. */
+    int skippedWays;
+    /**
+     * Whether the OSM file was read to the end, or the graph was read from a snapshot of
+     * one that was. A graph whose parse failed holds whatever was read before the error,
+     * and load does not save it as a snapshot.
+     */
+    boolean parsed;
+
+    /**
+     * Whether the constructor reads the XML twice, first collecting the nodes referenced by
+     * routable ways, so that no Node is created for the rest; set with -Dgraphdb.twopass=true.
+     * This keeps peak heap close to the final graph size at the cost of a second parse.
+     */
+    private static final boolean TWO_PASS = Boolean.getBoolean("graphdb.twopass");
+    /**
+     * Threads used by the constructor to load the XML with a ParallelGraphLoader; with 1,
+     * the default, it parses sequentially with a GraphBuildingHandler. Set with
+     * -Dgraphdb.threads=n to opt in to parallel loading. PBF files are always read with a
+     * ParallelGraphLoader, with this many workers.
+     */
+    private static final int LOADER_THREADS = Integer.getInteger("graphdb.threads", 1);
 
     /**
      * Example constructor shows how to create and start an XML parser.
@@ -32,19 +97,135 @@ public class GraphDB {
      * @param dbPath Path to the XML file to be parsed.
      */
     public GraphDB(String dbPath) {
+        this(dbPath, TWO_PASS, TWO_PASS ? 1 : LOADER_THREADS);
+    }
+
+    /**
+     * Parses the XML file sequentially, optionally in two passes (see TWO_PASS).
+     * @param dbPath Path to the XML file to be parsed.
+     * @param twoPass Whether to collect the routable node ids in a first pass.
+     */
+    GraphDB(String dbPath, boolean twoPass) {
+        this(dbPath, twoPass, 1);
+    }
+
+    /**
+     * Parses the XML file with a ParallelGraphLoader if threads is more than 1, and
+     * sequentially, optionally in two passes, otherwise. All ways give the same graph.
+     * Files ending in .pbf are read as OSM PBF, always through a ParallelGraphLoader.
+     * @param dbPath Path to the OSM file to be parsed.
+     * @param twoPass Whether a sequential parse collects the routable node ids first.
+     * @param threads Number of loader threads.
+     */
+    GraphDB(String dbPath, boolean twoPass, int threads) {
         try {
             File inputFile = new File(dbPath);
-            FileInputStream inputStream = new FileInputStream(inputFile);
-            // GZIPInputStream stream = new GZIPInputStream(inputStream);
-
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
-            GraphBuildingHandler gbh = new GraphBuildingHandler(this);
-            saxParser.parse(inputStream, gbh);
+            if (dbPath.endsWith(".pbf")) {
+                try (InputStream inputStream = OsmXmlReader.openInput(inputFile)) {
+                    new ParallelGraphLoader(this, Math.max(1, threads)).loadPbf(inputStream);
+                }
+            } else if (threads > 1) {
+                try (InputStream inputStream = OsmXmlReader.openInput(inputFile)) {
+                    new ParallelGraphLoader(this, threads).load(inputStream);
+                }
+            } else {
+                parseSequentially(inputFile, twoPass);
+            }
+            parsed = true;
         } catch (ParserConfigurationException | SAXException | IOException e) {
             e.printStackTrace();
         }
         clean();
+        buildIndex();
+    }
+
+    /** Parses with a GraphBuildingHandler, after a RoutableNodeCollector pass if twoPass. */
+    private void parseSequentially(File inputFile, boolean twoPass)
+            throws ParserConfigurationException, SAXException, IOException {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        SAXParser saxParser = factory.newSAXParser();
+        long[] routable = null;
+        if (twoPass) {
+            RoutableNodeCollector collector = new RoutableNodeCollector();
+            try (InputStream inputStream = OsmXmlReader.openInput(inputFile)) {
+                saxParser.parse(inputStream, collector);
+            }
+            routable = collector.routableIds();
+        }
+        GraphBuildingHandler gbh = new GraphBuildingHandler(this, routable);
+        try (InputStream inputStream = OsmXmlReader.openInput(inputFile)) {
+            saxParser.parse(inputStream, gbh);
+        }
+    }
+
+    /**
+     * Creates an empty graph, used when the graph is filled from a GraphSnapshot
+     * instead of being parsed from XML.
+     */
+    GraphDB() {
+    }
+
+    /**
+     * Creates a graph that shares the arrays and indexes of base and has its own copies of
+     * the maps applyChanges edits, for applyChanges to work on while base keeps serving.
+     */
+    private GraphDB(GraphDB base) {
+        prefixTrie = base.prefixTrie;
+        locations = new HashMap<>(base.locations);
+        namedNodes = new LinkedHashMap<>(base.namedNodes);
+        ways = new LinkedHashMap<>(base.ways);
+        ids = base.ids;
+        sortedIds = base.sortedIds;
+        sortedVertex = base.sortedVertex;
+        lats = base.lats;
+        lons = base.lons;
+        offsets = base.offsets;
+        neighbors = base.neighbors;
+        weights = base.weights;
+        edgeWays = base.edgeWays;
+        wayNames.addAll(base.wayNames);
+        wayNameIds.putAll(base.wayNameIds);
+        kdTree = base.kdTree;
+        hierarchy = base.hierarchy;
+        chains = base.chains;
+        prefixIndex = base.prefixIndex;
+        tokenIndex = base.tokenIndex;
+        parsed = base.parsed;
+    }
+
+    /**
+     * Loads the graph for dbPath, preferring the binary snapshot next to the XML file.
+     * If there is no snapshot, or the XML file is newer than it, the XML is parsed as usual
+     * and, if the whole file could be read, a fresh snapshot is written for the next start. A contraction hierarchy saved next
+     * to the XML file is attached if it was built for the same vertices, and so is a prefix
+     * index at least as new as the XML file.
+     * @param dbPath Path to the XML file to be parsed.
+     * @return The loaded graph.
+     */
+    public static GraphDB load(String dbPath) {
+        File snapshot = GraphSnapshot.snapshotFile(dbPath);
+        if (GraphSnapshot.isFresh(dbPath)) {
+            try {
+                GraphDB g = new GraphDB();
+                GraphSnapshot.read(g, snapshot);
+                ContractionHierarchy.attach(g, dbPath);
+                PrefixFst.attach(g, dbPath);
+                return g;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        GraphDB g = new GraphDB(dbPath);
+        if (g.parsed && new File(dbPath).isFile()) {
+            try {
+                GraphSnapshot.write(g, snapshot);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        ContractionHierarchy.attach(g, dbPath);
+        PrefixFst.attach(g, dbPath);
+        return g;
     }
 
     /**
@@ -55,6 +236,95 @@ public class GraphDB {
         nodeMap.put(node.id, node);
     }
 
+    /**
+     * Records a named OSM node as a location and makes it searchable by prefix.
+     * The node does not have to be part of the road graph. A name shared by several nodes
+     * keeps the last of them, and ranks higher in prefix searches the more nodes share it.
+     */
+    void addLocation(long id, double lat, double lon, String name) {
+        namedNodes.put(id, new LocationObject(id, lat, lon, name));
+        LocationObject previous = (LocationObject) locations.get(name);
+        LocationObject location = new LocationObject(id, lat, lon, name);
+        if (previous != null) {
+            location.count = previous.count + 1;
+        }
+        locations.put(name, location);
+        rankLocation(location);
+    }
+
+    /** Puts location into the prefix trie, scored by its node count, if the trie is built. */
+    private void rankLocation(LocationObject location) {
+        if (prefixTrie != null) {
+            rankLocation(prefixTrie, location);
+        }
+    }
+
+    private static void rankLocation(Trie trie, LocationObject location) {
+        String key = locationKey(location.name);
+        if (key.length() > 0) {
+            trie.put(key, location.name, location.count);
+        }
+    }
+
+    /**
+     * Returns the prefix trie of the locations, building it on the first call. Where names
+     * share a key, the trie keeps the name of the latest added node, as if every location
+     * had been put into it as it was added.
+     */
+    Trie prefixTrie() {
+        Trie trie = prefixTrie;
+        if (trie == null) {
+            synchronized (this) {
+                trie = prefixTrie;
+                if (trie == null) {
+                    Set<String> ranked = new HashSet<>();
+                    List<LocationObject> nodes = new ArrayList<>(namedNodes.values());
+                    trie = new Trie();
+                    for (int i = nodes.size() - 1; i >= 0; i--) {
+                        String key = locationKey(nodes.get(i).name);
+                        if (ranked.add(key)) {
+                            rankLocation(trie, (LocationObject) locations.get(nodes.get(i).name));
+                        }
+                    }
+                    prefixTrie = trie;
+                }
+            }
+        }
+        return trie;
+    }
+
+    /**
+     * Returns the word index of the locations, building it on the first call. Indexing
+     * takes a pass over all locations, so graphs that never serve word searches skip it.
+     */
+    TokenIndex tokenIndex() {
+        TokenIndex index = tokenIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = tokenIndex;
+                if (index == null) {
+                    index = TokenIndex.build(locations.values());
+                    tokenIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /** Undoes addLocation for the location with the given name. */
+    private void removeLocation(String name) {
+        locations.remove(name);
+        String key = locationKey(name);
+        if (prefixTrie != null && key.length() > 0) {
+            prefixTrie.remove(key, name);
+        }
+    }
+
+    /** Key a location name is stored under in the prefix trie. */
+    private static String locationKey(String name) {
+        return name.replaceAll("[^a-zA-Z\\s]+", "").toLowerCase();
+    }
+
     /**
      * removes specified node from the graph (this might not be needed)
      * @param node input node
@@ -63,29 +333,348 @@ public class GraphDB {
         nodeMap.remove(node.id);
     }
 
+    /**
+     * Connects consecutive nodes of a routable way and records the way, see applyChanges.
+     * @param way A way whose nodes have all been added.
+     */
     void connectNodes(Way way){
+        ways.put(way.getID(), way);
+        connectNodes(way, null);
+    }
 
-        long previousID;
-        long currentID;
-        long nextID;
+    /**
+     * Returns the id of a way name, adding it to the dictionary if it is new.
+     * @param name A way name, or null.
+     * @return The id, or -1 for null.
+     */
+    int wayNameId(String name) {
+        if (name == null) {
+            return -1;
+        }
+        Integer id = wayNameIds.get(name);
+        if (id == null) {
+            id = wayNames.size();
+            wayNames.add(name);
+            wayNameIds.put(name, id);
+        }
+        return id;
+    }
+
+    /** The way name with the given id, or null for -1. */
+    String wayName(int id) {
+        return id < 0 ? null : wayNames.get(id);
+    }
+
+    /**
+     * Adds the connections of way, tagged with its name, to its nodes.
+     * @param only If not null, only nodes with these ids are updated.
+     */
+    private void connectNodes(Way way, Set<Long> only) {
         List<Long> connectionList = way.getConnectionList();
-        currentID = connectionList.get(0);
-        nextID = connectionList.get(1);
-        nodeMap.get(currentID).addConnection(nextID);
-        nodeMap.get(currentID).addWayNames(way.getWayName());
+        int wayName = wayNameId(way.getWayName());
+        int last = connectionList.size() - 1;
+        for (int index = 0; index <= last; index++) {
+            long currentID = connectionList.get(index);
+            if (only != null && !only.contains(currentID)) {
+                continue;
+            }
+            Node current = nodeMap.get(currentID);
+            if (index > 0) {
+                current.addConnection(connectionList.get(index - 1), wayName);
+            }
+            if (index < last) {
+                current.addConnection(connectionList.get(index + 1), wayName);
+            }
+        }
+    }
+
+    /**
+     * Reads an OSM change file and applies it, see applyChanges(OsmChangeSet).
+     * @param oscPath Path to an .osc file, optionally compressed as .gz or .bz2.
+     * @return The changed graph.
+     */
+    GraphDB applyChanges(String oscPath) throws IOException {
+        return applyChanges(OsmChangeSet.read(oscPath));
+    }
+
+    /**
+     * Returns a copy of this graph with the edits of an OSM change file applied, without
+     * reparsing it. This graph is not changed, so it can keep serving requests meanwhile;
+     * the copy shares whatever the changes leave valid.
+     *
+     * Locations, and the prefix trie if it has been built, are updated entry by entry. Replaced and deleted ways
+     * are looked up in ways, and only the vertices they or their new versions touch get
+     * their CSR rows rebuilt; the other rows are copied over. Vertices left without edges
+     * are dropped and new ones are appended, so the layout is no longer a pure Hilbert
+     * order until the next full load. The KDTree is rebuilt only if vertices were added,
+     * removed or moved, and the chain overlay only if any row or edge length changed.
+     * A contraction hierarchy is kept only if the roads did not change, and a prefix index
+     * and the word index only if the locations did not.
+     * @param changes Changes read by OsmChangeSet.read.
+     * @return The changed graph. Its skippedWays is the number of changed ways that were
+     * left out because they reference a node that is neither in the graph nor in the
+     * change file.
+     */
+    GraphDB applyChanges(OsmChangeSet changes) {
+        GraphDB next = new GraphDB(this);
+        next.applyNodeChanges(changes);
+        next.applyWayChanges(changes);
+        return next;
+    }
+
+    /** Updates the locations for the changed nodes, see applyChanges. */
+    private void applyNodeChanges(OsmChangeSet changes) {
+        boolean changed = false;
+        /* Names whose location was recorded at a node that changed, or has no nodes left. */
+        Set<String> orphaned = new HashSet<>();
+        for (OsmChangeSet.NodeChange change : changes.nodes.values()) {
+            LocationObject old = namedNodes.remove(change.id);
+            boolean named = !change.deleted && change.name != null;
+            if (old == null && !named) {
+                continue;
+            }
+            if (!changed) {
+                if (prefixTrie != null) {
+                    prefixTrie = new Trie(prefixTrie);
+                }
+                prefixIndex = null;
+                tokenIndex = null;
+                changed = true;
+            }
+            if (old != null) {
+                /* The node no longer counts towards its old name, whatever it becomes. */
+                LocationObject location = (LocationObject) locations.get(old.name);
+                LocationObject rest = new LocationObject(location.id, location.lat, location.lon,
+                        old.name);
+                rest.count = location.count - 1;
+                locations.put(old.name, rest);
+                if (location.id == old.id || rest.count == 0) {
+                    orphaned.add(old.name);
+                } else {
+                    rankLocation(rest);
+                }
+            }
+            if (named) {
+                addLocation(change.id, change.lat, change.lon, change.name);
+            }
+        }
+        if (orphaned.isEmpty()) {
+            return;
+        }
+
+        /* Move each orphaned location to the last node that still has its name, if any. */
+        Map<String, LocationObject> last = new HashMap<>();
+        for (LocationObject node : namedNodes.values()) {
+            if (orphaned.contains(node.name)) {
+                last.put(node.name, node);
+            }
+        }
+        for (String name : orphaned) {
+            LocationObject location = (LocationObject) locations.get(name);
+            LocationObject current = namedNodes.get(location.id);
+            LocationObject node = last.get(name);
+            if (node == null) {
+                removeLocation(name);
+            } else if (current == null || !current.name.equals(name)) {
+                LocationObject replacement = new LocationObject(node.id, node.lat, node.lon, name);
+                replacement.count = location.count;
+                locations.put(name, replacement);
+                rankLocation(replacement);
+            }
+        }
+    }
+
+    /** Updates ways and the CSR arrays for the changed ways and nodes, see applyChanges. */
+    private void applyWayChanges(OsmChangeSet changes) {
+        /* Vertices whose rows are rebuilt: every node of an old or new version of a way. */
+        Set<Long> affected = new HashSet<>();
+        for (Map.Entry<Long, Way> entry : changes.ways.entrySet()) {
+            Way old = ways.get(entry.getKey());
+            if (old != null) {
+                affected.addAll(old.getConnectionList());
+            }
+            Way way = entry.getValue();
+            if (way != null && !hasCoordinates(way, changes)) {
+                skippedWays++;
+                way = null;
+            }
+            if (way != null) {
+                ways.put(way.getID(), way);
+                affected.addAll(way.getConnectionList());
+            } else if (old != null) {
+                ways.remove(old.getID());
+            }
+        }
+        /* Vertices that keep their rows but get new coordinates. */
+        Map<Long, OsmChangeSet.NodeChange> moved = new HashMap<>();
+        for (OsmChangeSet.NodeChange change : changes.nodes.values()) {
+            int v = indexOf(change.id);
+            if (v >= 0 && !change.deleted && (change.lat != lats[v] || change.lon != lons[v])) {
+                moved.put(change.id, change);
+            }
+        }
+        if (affected.isEmpty() && moved.isEmpty()) {
+            return;
+        }
+
+        for (long id : affected) {
+            int v = indexOf(id);
+            OsmChangeSet.NodeChange change = moved.get(id);
+            if (change == null && v < 0) {
+                change = changes.nodes.get(id);
+            }
+            addNode(change != null ? new Node(id, change.lat, change.lon)
+                    : new Node(id, lats[v], lons[v]));
+        }
+        for (Way way : ways.values()) {
+            for (long id : way.getConnectionList()) {
+                if (affected.contains(id)) {
+                    connectNodes(way, affected);
+                    break;
+                }
+            }
+        }
+        repack(moved);
+        nodeMap = new HashMap<>();
+    }
+
+    /**
+     * Rebuilds the CSR arrays from the current ones, taking the rows of the vertices in
+     * nodeMap from their Nodes and giving the vertices in moved new coordinates.
+     */
+    private void repack(Map<Long, OsmChangeSet.NodeChange> moved) {
+        long[] oldIds = ids;
+        long[] oldSortedIds = sortedIds;
+        int[] oldSortedVertex = sortedVertex;
+        double[] oldLats = lats;
+        double[] oldLons = lons;
+        int[] oldOffsets = offsets;
+        int[] oldNeighbors = neighbors;
+        double[] oldWeights = weights;
+        int[] oldEdgeWays = edgeWays;
+
+        /* Surviving vertices keep their order, vertices without edges are dropped. */
+        int[] remap = new int[oldIds.length];
+        int[] origin = new int[oldIds.length];
+        int kept = 0;
+        for (int v = 0; v < oldIds.length; v++) {
+            Node node = nodeMap.get(oldIds[v]);
+            if (node != null && !node.hasConnection()) {
+                remap[v] = -1;
+            } else {
+                remap[v] = kept;
+                origin[kept] = v;
+                kept++;
+            }
+        }
+        List<Long> added = new ArrayList<>();
+        int extraEdges = 0;
+        for (Node node : nodeMap.values()) {
+            if (node.hasConnection() && indexOf(node.id) < 0) {
+                added.add(node.id);
+            }
+            extraEdges += node.getConnectionList().size();
+        }
+        Collections.sort(added);
+        int n = kept + added.size();
 
-        for (int index = 1; index < connectionList.size() - 1; index++){
+        ids = new long[n];
+        lats = new double[n];
+        lons = new double[n];
+        boolean[] relocated = new boolean[n];
+        for (int v = 0; v < oldIds.length; v++) {
+            int u = remap[v];
+            if (u >= 0) {
+                ids[u] = oldIds[v];
+                OsmChangeSet.NodeChange change = moved.get(oldIds[v]);
+                lats[u] = change != null ? change.lat : oldLats[v];
+                lons[u] = change != null ? change.lon : oldLons[v];
+                relocated[u] = change != null;
+            }
+        }
+        for (int i = 0; i < added.size(); i++) {
+            Node node = nodeMap.get(added.get(i));
+            ids[kept + i] = node.id;
+            lats[kept + i] = node.getLat();
+            lons[kept + i] = node.getLon();
+            relocated[kept + i] = true;
+        }
 
-            previousID = connectionList.get(index - 1);
-            currentID = connectionList.get(index);
-            nextID = connectionList.get(index + 1);
-            nodeMap.get(currentID).addConnection(previousID);
-            nodeMap.get(currentID).addConnection(nextID);
-            nodeMap.get(currentID).addWayNames(way.getWayName());
+        /* Merge the surviving ids, which are already sorted, with the added ones. */
+        sortedIds = new long[n];
+        sortedVertex = new int[n];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < n; k++) {
+            while (i < oldSortedIds.length && remap[oldSortedVertex[i]] < 0) {
+                i++;
+            }
+            if (j == added.size() || (i < oldSortedIds.length && oldSortedIds[i] < added.get(j))) {
+                sortedIds[k] = oldSortedIds[i];
+                sortedVertex[k] = remap[oldSortedVertex[i]];
+                i++;
+            } else {
+                sortedIds[k] = added.get(j);
+                sortedVertex[k] = kept + j;
+                j++;
+            }
+        }
+
+        offsets = new int[n + 1];
+        neighbors = new int[oldNeighbors.length + extraEdges];
+        weights = new double[neighbors.length];
+        edgeWays = new int[neighbors.length];
+        int e = 0;
+        for (int u = 0; u < n; u++) {
+            offsets[u] = e;
+            Node node = nodeMap.get(ids[u]);
+            if (node != null) {
+                List<Long> connections = node.getConnectionList();
+                for (int c = 0; c < connections.size(); c++) {
+                    int w = indexOf(connections.get(c));
+                    if (w >= 0 && !containsEdge(offsets[u], e, w)) {
+                        neighbors[e] = w;
+                        weights[e] = distance(lons[u], lats[u], lons[w], lats[w]);
+                        edgeWays[e] = node.getConnectionWays().get(c);
+                        e++;
+                    }
+                }
+                continue;
+            }
+            int v = origin[u];
+            for (int f = oldOffsets[v]; f < oldOffsets[v + 1]; f++) {
+                int w = remap[oldNeighbors[f]];
+                neighbors[e] = w;
+                weights[e] = relocated[u] || relocated[w]
+                        ? distance(lons[u], lats[u], lons[w], lats[w]) : oldWeights[f];
+                edgeWays[e] = oldEdgeWays[f];
+                e++;
+            }
+        }
+        offsets[n] = e;
+        neighbors = Arrays.copyOf(neighbors, e);
+        weights = Arrays.copyOf(weights, e);
+        edgeWays = Arrays.copyOf(edgeWays, e);
+
+        if (kept != oldIds.length || !added.isEmpty() || !moved.isEmpty()) {
+            kdTree = new KDTree(lons, lats);
+        }
+        chains = ChainGraph.build(this);
+        hierarchy = null;
+    }
 
+    /**
+     * Whether every node of way is either in the graph or created by the change file, so
+     * that its coordinates are known.
+     */
+    private boolean hasCoordinates(Way way, OsmChangeSet changes) {
+        for (long id : way.getConnectionList()) {
+            OsmChangeSet.NodeChange change = changes.nodes.get(id);
+            if (indexOf(id) < 0 && (change == null || change.deleted)) {
+                return false;
+            }
         }
-        nodeMap.get(nextID).addConnection(currentID);
-        nodeMap.get(nextID).addWayNames(way.getWayName());
+        return true;
     }
 
     /**
@@ -118,13 +707,251 @@ public class GraphDB {
         }
     }
 
+    /**
+     * Packs the cleaned graph into the CSR arrays. Duplicate connections (two ways sharing
+     * a segment) are collapsed, keeping the way that made the first one. The Nodes are
+     * dropped afterwards, leaving the arrays as the only copy of the graph.
+     */
+    void buildIndex() {
+        int n = nodeMap.size();
+        ids = hilbertOrder();
+        indexIds();
+
+        int i;
+        lats = new double[n];
+        lons = new double[n];
+        offsets = new int[n + 1];
+        int edgeCount = 0;
+        for (i = 0; i < n; i++) {
+            Node node = nodeMap.get(ids[i]);
+            lats[i] = node.getLat();
+            lons[i] = node.getLon();
+            edgeCount += node.getConnectionList().size();
+        }
+
+        neighbors = new int[edgeCount];
+        edgeWays = new int[edgeCount];
+        int e = 0;
+        for (i = 0; i < n; i++) {
+            offsets[i] = e;
+            Node node = nodeMap.get(ids[i]);
+            List<Long> connections = node.getConnectionList();
+            for (int j = 0; j < connections.size(); j++) {
+                int w = indexOf(connections.get(j));
+                if (w >= 0 && !containsEdge(offsets[i], e, w)) {
+                    neighbors[e] = w;
+                    edgeWays[e] = node.getConnectionWays().get(j);
+                    e++;
+                }
+            }
+        }
+        offsets[n] = e;
+        nodeMap = new HashMap<>();
+        neighbors = Arrays.copyOf(neighbors, e);
+        edgeWays = Arrays.copyOf(edgeWays, e);
+        computeEdgeWeights();
+        kdTree = new KDTree(lons, lats);
+        chains = ChainGraph.build(this);
+    }
+
+    /** Cells per side of the Hilbert curve grid; keys fit in 30 bits. */
+    private static final int HILBERT_SIDE = 1 << 15;
+
+    /**
+     * Returns the node ids in the order vertices are laid out: along a Hilbert curve over
+     * the bounding box of the graph, so that vertices close on the map get close indices
+     * and a search touches far fewer cache lines of lats, lons, offsets and neighbors than
+     * with ids in OSM order. Ties, which only happen for nodes in the same curve cell, are
+     * broken by id so that the layout does not depend on the order of nodeMap.
+     */
+    private long[] hilbertOrder() {
+        int n = nodeMap.size();
+        long[] sorted = new long[n];
+        int i = 0;
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        for (Node node : nodeMap.values()) {
+            sorted[i] = node.getId();
+            i++;
+            minLon = Math.min(minLon, node.getLon());
+            maxLon = Math.max(maxLon, node.getLon());
+            minLat = Math.min(minLat, node.getLat());
+            maxLat = Math.max(maxLat, node.getLat());
+        }
+        Arrays.sort(sorted);
+
+        /* Hilbert key in the high bits, position in sorted in the low ones. */
+        long[] keys = new long[n];
+        double lonScale = HILBERT_SIDE / Math.max(maxLon - minLon, Double.MIN_NORMAL);
+        double latScale = HILBERT_SIDE / Math.max(maxLat - minLat, Double.MIN_NORMAL);
+        for (i = 0; i < n; i++) {
+            Node node = nodeMap.get(sorted[i]);
+            int x = (int) Math.min((node.getLon() - minLon) * lonScale, HILBERT_SIDE - 1);
+            int y = (int) Math.min((node.getLat() - minLat) * latScale, HILBERT_SIDE - 1);
+            keys[i] = (long) hilbertIndex(x, y) << 32 | i;
+        }
+        Arrays.sort(keys);
+        long[] order = new long[n];
+        for (i = 0; i < n; i++) {
+            order[i] = sorted[(int) keys[i]];
+        }
+        return order;
+    }
+
+    /** Position of cell (x, y) along the Hilbert curve over a HILBERT_SIDE square grid. */
+    static int hilbertIndex(int x, int y) {
+        int d = 0;
+        for (int s = HILBERT_SIDE / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = HILBERT_SIDE - 1 - x;
+                    y = HILBERT_SIDE - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Rebuilds the id lookup behind indexOf from ids, which may be in any order. Called by
+     * buildIndex and by anything else that sets ids, such as GraphSnapshot.
+     */
+    void indexIds() {
+        int n = ids.length;
+        sortedIds = Arrays.copyOf(ids, n);
+        Arrays.sort(sortedIds);
+        sortedVertex = new int[n];
+        for (int v = 0; v < n; v++) {
+            sortedVertex[Arrays.binarySearch(sortedIds, ids[v])] = v;
+        }
+    }
+
+    /** Vertex indices in ascending order of their ids, as kept by indexIds, for GraphSnapshot. */
+    int[] verticesById() {
+        return sortedVertex;
+    }
+
+    /**
+     * Sets the id lookup behind indexOf from a verticesById() for the same ids, without
+     * sorting them again.
+     */
+    void indexIds(int[] verticesById) {
+        sortedVertex = verticesById;
+        sortedIds = new long[verticesById.length];
+        for (int k = 0; k < verticesById.length; k++) {
+            sortedIds[k] = ids[verticesById[k]];
+        }
+    }
+
+    /** Fills weights with the length of every edge in neighbors. */
+    void computeEdgeWeights() {
+        weights = new double[neighbors.length];
+        for (int v = 0; v < ids.length; v++) {
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                int w = neighbors[e];
+                weights[e] = distance(lons[v], lats[v], lons[w], lats[w]);
+            }
+        }
+    }
+
+    private boolean containsEdge(int from, int to, int w) {
+        for (int e = from; e < to; e++) {
+            if (neighbors[e] == w) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Number of vertices in the graph. */
+    int vertexCount() {
+        return ids.length;
+    }
+
+    /**
+     * Translates an OSM id into its dense vertex index.
+     * @param id OSM id of the vertex.
+     * @return The index, or a negative number if the vertex is not in the graph.
+     */
+    int indexOf(long id) {
+        int i = Arrays.binarySearch(sortedIds, id);
+        return i < 0 ? -1 : sortedVertex[i];
+    }
+
+    /** OSM id of the vertex at index v. */
+    long idOf(int v) {
+        return ids[v];
+    }
+
+    /** Latitude of the vertex at index v. */
+    double latOf(int v) {
+        return lats[v];
+    }
+
+    /** Longitude of the vertex at index v. */
+    double lonOf(int v) {
+        return lons[v];
+    }
+
+    /** First edge index of vertex v; its edges run up to (excluding) edgeEnd(v). */
+    int edgeStart(int v) {
+        return offsets[v];
+    }
+
+    /** One past the last edge index of vertex v. */
+    int edgeEnd(int v) {
+        return offsets[v + 1];
+    }
+
+    /** Index of the vertex that edge e points to. */
+    int edgeTarget(int e) {
+        return neighbors[e];
+    }
+
+    /** Way name id of the way edge e belongs to, or -1 if it is unnamed. */
+    int edgeWay(int e) {
+        return edgeWays[e];
+    }
+
+    /** Length of edge e in miles. */
+    double edgeWeight(int e) {
+        return weights[e];
+    }
+
+    /**
+     * Finds the edge from vertex index v to vertex index w.
+     * @return The edge index, or -1 if there is no such edge.
+     */
+    int edgeBetween(int v, int w) {
+        if (v < 0 || w < 0) {
+            return -1;
+        }
+        for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+            if (neighbors[e] == w) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Returns an iterable of all vertex IDs in the graph.
      * @return An iterable of id's of all vertices in the graph.
      */
     Iterable<Long> vertices() {
-        Set<Long> keys = nodeMap.keySet();
-        return new ArrayList<>(keys);
+        List<Long> result = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            result.add(id);
+        }
+        return result;
     }
 
     /**
@@ -133,8 +960,12 @@ public class GraphDB {
      * @return An iterable of the ids of the neighbors of v.
      */
     Iterable<Long> adjacent(long v) {
-        Node currentNode = nodeMap.get(v);
-        return currentNode.getConnectionList();
+        int index = indexOf(v);
+        List<Long> result = new ArrayList<>(edgeEnd(index) - edgeStart(index));
+        for (int e = edgeStart(index); e < edgeEnd(index); e++) {
+            result.add(ids[neighbors[e]]);
+        }
+        return result;
     }
 
     /**
@@ -149,6 +980,15 @@ public class GraphDB {
         return distance(lon(v), lat(v), lon(w), lat(w));
     }
 
+    /**
+     * Returns the length of the road between adjacent vertices v and w in miles, read from
+     * weights; for vertices that are not adjacent, their great-circle distance.
+     */
+    double weight(long v, long w) {
+        int e = edgeBetween(indexOf(v), indexOf(w));
+        return e >= 0 ? weights[e] : distance(v, w);
+    }
+
     static double distance(double lonV, double latV, double lonW, double latW) {
         double phi1 = Math.toRadians(latV);
         double phi2 = Math.toRadians(latW);
@@ -195,19 +1035,25 @@ public class GraphDB {
      * @return The id of the node in the graph closest to the target.
      */
     long closest(double lon, double lat) {
-        // get values from map and put into list
-        // iterate through until finding the min distance and return id of that node.
+        int v = kdTree.nearest(lon, lat);
+        return v < 0 ? 0 : ids[v];
+    }
 
-        Collection<Node> values = nodeMap.values();
-        ArrayList<Node> nodeList = new ArrayList<>(values);
+    /**
+     * Linear-scan version of closest, kept as a reference for testing the KDTree.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @return The id of the node in the graph closest to the target.
+     */
+    long closestBruteForce(double lon, double lat) {
         double minDistance = Double.MAX_VALUE;
         long minID = 0;
         double distanceBetweenPoints;
-        for (Node node : nodeList){
-            distanceBetweenPoints = distance(lon, lat, node.getLon(), node.getLat());
+        for (int i = 0; i < ids.length; i++){
+            distanceBetweenPoints = distance(lon, lat, lons[i], lats[i]);
             if(distanceBetweenPoints < minDistance){
                 minDistance = distanceBetweenPoints;
-                minID = node.id;
+                minID = ids[i];
             }
         }
         return minID;
@@ -219,8 +1065,7 @@ public class GraphDB {
      * @return The longitude of the vertex.
      */
     double lon(long v) {
-        Node currentNode = nodeMap.get(v);
-        return currentNode.getLon();
+        return lons[indexOf(v)];
     }
 
     /**
@@ -229,12 +1074,7 @@ public class GraphDB {
      * @return The latitude of the vertex.
      */
     double lat(long v) {
-        Node currentNode = nodeMap.get(v);
-        return currentNode.getLat();
-    }
-
-    Node getNode(long id){
-        return nodeMap.get(id);
+        return lats[indexOf(v)];
     }
 }
 
@@ -0,0 +1,304 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary snapshot of a cleaned GraphDB, so that the server does not have to
+ * re-parse the OSM XML on every start. The snapshot is written once next to the XML file
+ * and read back through a read-only memory-mapped file. Reading copies the arrays onto the
+ * heap with bulk reads, so every JVM still holds its own copy of the graph; what the
+ * mapping saves is the read calls, and JVMs starting on the same host read the file from
+ * the same page cache. Everything buildIndex derives from the graph (edge lengths, the id
+ * lookup, the KDTree and the chain overlay) is stored as well, so a read is only copying.
+ *
+ * Layout (big endian):
+ * <pre>
+ *   int    MAGIC, int VERSION
+ *   int    string count, then (int byte length, UTF-8 bytes) per string
+ *   int    node count n
+ *   long[n] ids, double[n] lats, double[n] lons
+ *   int[n] vertex indices in ascending id order
+ *   int[n + 1] CSR offsets, int[offsets[n]] neighbor indices (in GraphDB's vertex order)
+ *   double[offsets[n]] edge lengths
+ *   int[offsets[n]] way name string refs of the edges (-1 for unnamed ways)
+ *   KDTree.write: double[n] x, y and z, int[n] vertices, byte[n] axes
+ *   ChainGraph.write: five sizes, then its int and double arrays
+ *   int    location count, then (long id, double lat, double lon, int name ref,
+ *          int node count) each
+ *   int    named node count, then (long id, double lat, double lon, int name ref) each,
+ *          in the order they were added
+ *   int    way count, then (long id, int name ref, int node count, long[] node ids) each
+ * </pre>
+ * The routable ways and the named nodes are kept so that a graph read from a snapshot can
+ * still apply changes. The prefix trie is not stored: GraphDB.prefixTrie() rebuilds it from
+ * the locations if a fuzzy search, or a prefix search without a PrefixFst, asks for it.
+ */
+public class GraphSnapshot {
+
+    private static final int MAGIC = 0x424D4753; // "BMGS"
+    private static final int VERSION = 8;
+    static final String SUFFIX = ".snapshot";
+
+    /**
+     * Returns the snapshot file that belongs to the given OSM file.
+     * @param dbPath Path to the OSM XML file.
+     * @return The snapshot file next to it.
+     */
+    static File snapshotFile(String dbPath) {
+        return new File(dbPath + SUFFIX);
+    }
+
+    /**
+     * Whether a snapshot exists for dbPath and is at least as new as the OSM file itself.
+     * @param dbPath Path to the OSM XML file.
+     */
+    static boolean isFresh(String dbPath) {
+        File snapshot = snapshotFile(dbPath);
+        File source = new File(dbPath);
+        return snapshot.isFile() && snapshot.lastModified() >= source.lastModified();
+    }
+
+    /**
+     * Writes the graph to the given file. The data is written to a temporary file of its
+     * own first and then moved into place, so readers never see a half-written snapshot
+     * and JVMs writing it at the same time do not mix their data.
+     * @param g The cleaned graph to write.
+     * @param file Destination file.
+     * @throws IOException If the file cannot be written.
+     */
+    static void write(GraphDB g, File file) throws IOException {
+        int n = g.vertexCount();
+        StringTable strings = new StringTable();
+        for (Object o : g.locations.values()) {
+            strings.ref(((LocationObject) o).name);
+        }
+        for (LocationObject node : g.namedNodes.values()) {
+            strings.ref(node.name);
+        }
+        for (int e = 0; e < g.offsets[n]; e++) {
+            strings.ref(g.wayName(g.edgeWay(e)));
+        }
+        for (Way way : g.ways.values()) {
+            strings.ref(way.getWayName());
+        }
+
+        Path tmp = createTempFile(file);
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+
+                out.writeInt(strings.values.size());
+                for (String s : strings.values) {
+                    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+
+                out.writeInt(n);
+                for (int v = 0; v < n; v++) {
+                    out.writeLong(g.idOf(v));
+                }
+                for (int v = 0; v < n; v++) {
+                    out.writeDouble(g.latOf(v));
+                }
+                for (int v = 0; v < n; v++) {
+                    out.writeDouble(g.lonOf(v));
+                }
+                for (int v : g.verticesById()) {
+                    out.writeInt(v);
+                }
+                for (int v = 0; v <= n; v++) {
+                    out.writeInt(g.offsets[v]);
+                }
+                for (int e = 0; e < g.offsets[n]; e++) {
+                    out.writeInt(g.edgeTarget(e));
+                }
+                for (int e = 0; e < g.offsets[n]; e++) {
+                    out.writeDouble(g.edgeWeight(e));
+                }
+
+                for (int e = 0; e < g.offsets[n]; e++) {
+                    out.writeInt(strings.ref(g.wayName(g.edgeWay(e))));
+                }
+                g.kdTree.write(out);
+                g.chains.write(out);
+
+                out.writeInt(g.locations.size());
+                for (Object o : g.locations.values()) {
+                    LocationObject location = (LocationObject) o;
+                    out.writeLong(location.id);
+                    out.writeDouble(location.lat);
+                    out.writeDouble(location.lon);
+                    out.writeInt(strings.ref(location.name));
+                    out.writeInt(location.count);
+                }
+
+                out.writeInt(g.namedNodes.size());
+                for (LocationObject node : g.namedNodes.values()) {
+                    out.writeLong(node.id);
+                    out.writeDouble(node.lat);
+                    out.writeDouble(node.lon);
+                    out.writeInt(strings.ref(node.name));
+                }
+
+                out.writeInt(g.ways.size());
+                for (Way way : g.ways.values()) {
+                    out.writeLong(way.getID());
+                    out.writeInt(strings.ref(way.getWayName()));
+                    out.writeInt(way.size());
+                    for (long ref : way.getConnectionList()) {
+                        out.writeLong(ref);
+                    }
+                }
+            }
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Creates an empty temporary file in the directory of file, with a name no other writer
+     * gets, to write file through. It is made readable by everyone, like a file created
+     * with the usual umask, since createTempFile makes it private to its owner.
+     */
+    static Path createTempFile(File file) throws IOException {
+        Path dir = file.getAbsoluteFile().getParentFile().toPath();
+        Path tmp = Files.createTempFile(dir, file.getName() + ".", ".tmp");
+        PosixFileAttributeView view = Files.getFileAttributeView(tmp,
+                PosixFileAttributeView.class);
+        if (view != null) {
+            view.setPermissions(PosixFilePermissions.fromString("rw-r--r--"));
+        }
+        return tmp;
+    }
+
+    /**
+     * Reads a snapshot into the given (empty) graph through a memory-mapped buffer.
+     * The arrays are copied out of the mapping onto the heap with bulk reads.
+     * @param g Graph to populate.
+     * @param file Snapshot file written by {@link #write}.
+     * @throws IOException If the file cannot be read or is not a snapshot of this version.
+     */
+    static void read(GraphDB g, File file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Not a graph snapshot: " + file);
+        }
+
+        String[] strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        int n = buffer.getInt();
+        g.ids = new long[n];
+        buffer.asLongBuffer().get(g.ids);
+        buffer.position(buffer.position() + n * Long.BYTES);
+        g.lats = readDoubles(buffer, n);
+        g.lons = readDoubles(buffer, n);
+        g.indexIds(readInts(buffer, n));
+        g.offsets = readInts(buffer, n + 1);
+        g.neighbors = readInts(buffer, g.offsets[n]);
+        g.weights = readDoubles(buffer, g.offsets[n]);
+
+        g.edgeWays = new int[g.offsets[n]];
+        for (int e = 0; e < g.edgeWays.length; e++) {
+            g.edgeWays[e] = g.wayNameId(string(strings, buffer.getInt()));
+        }
+        g.kdTree = KDTree.read(buffer, n);
+        g.chains = ChainGraph.read(buffer);
+
+        int locationCount = buffer.getInt();
+        for (int i = 0; i < locationCount; i++) {
+            long id = buffer.getLong();
+            double lat = buffer.getDouble();
+            double lon = buffer.getDouble();
+            String name = string(strings, buffer.getInt());
+            LocationObject location = new LocationObject(id, lat, lon, name);
+            location.count = buffer.getInt();
+            g.locations.put(name, location);
+        }
+
+        int namedCount = buffer.getInt();
+        for (int i = 0; i < namedCount; i++) {
+            long id = buffer.getLong();
+            double lat = buffer.getDouble();
+            double lon = buffer.getDouble();
+            String name = string(strings, buffer.getInt());
+            g.namedNodes.put(id, new LocationObject(id, lat, lon, name));
+        }
+
+        int wayCount = buffer.getInt();
+        for (int i = 0; i < wayCount; i++) {
+            Way way = new Way(buffer.getLong());
+            way.addName(string(strings, buffer.getInt()));
+            int size = buffer.getInt();
+            for (int j = 0; j < size; j++) {
+                way.addConnection(buffer.getLong());
+            }
+            g.ways.put(way.getID(), way);
+        }
+        g.parsed = true;
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + count * Integer.BYTES);
+        return values;
+    }
+
+    private static double[] readDoubles(ByteBuffer buffer, int count) {
+        double[] values = new double[count];
+        buffer.asDoubleBuffer().get(values);
+        buffer.position(buffer.position() + count * Double.BYTES);
+        return values;
+    }
+
+    private static String string(String[] strings, int ref) {
+        return ref < 0 ? null : strings[ref];
+    }
+
+    /** Assigns each distinct string an index; null maps to -1. */
+    private static class StringTable {
+        final List<String> values = new ArrayList<>();
+        final Map<String, Integer> refs = new HashMap<>();
+
+        int ref(String s) {
+            if (s == null) {
+                return -1;
+            }
+            Integer ref = refs.get(s);
+            if (ref == null) {
+                ref = values.size();
+                values.add(s);
+                refs.put(s, ref);
+            }
+            return ref;
+        }
+    }
+}
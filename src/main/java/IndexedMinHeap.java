@@ -0,0 +1,135 @@
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of int vertex indices keyed by double priorities, with decrease-key.
+ * pos[v] holds the heap slot of v, or -1 if v is not in the heap, so contains and
+ * decreaseKey are O(1) and O(log n) without any boxing. The heap is meant to be reused
+ * across searches: clear() only resets the slots that are still occupied.
+ */
+class IndexedMinHeap {
+
+    private int[] heap;
+    private int[] pos;
+    private double[] keys;
+    private int size;
+
+    IndexedMinHeap(int capacity) {
+        heap = new int[capacity];
+        pos = new int[capacity];
+        keys = new double[capacity];
+        Arrays.fill(pos, -1);
+    }
+
+    /** Grows the heap so that vertex indices up to capacity - 1 can be stored. */
+    void ensureCapacity(int capacity) {
+        if (capacity <= pos.length) {
+            return;
+        }
+        int old = pos.length;
+        heap = Arrays.copyOf(heap, capacity);
+        pos = Arrays.copyOf(pos, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        Arrays.fill(pos, old, capacity, -1);
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(int v) {
+        return pos[v] >= 0;
+    }
+
+    /** Smallest key in the heap; the heap must not be empty. */
+    double minKey() {
+        return keys[heap[0]];
+    }
+
+    /** Key of v, which must be in the heap. */
+    double key(int v) {
+        return keys[v];
+    }
+
+    /**
+     * Inserts v with the given key, or lowers its key if v is already in the heap with a
+     * larger one.
+     */
+    void insertOrDecrease(int v, double key) {
+        if (pos[v] >= 0) {
+            if (key < keys[v]) {
+                keys[v] = key;
+                siftUp(pos[v]);
+            }
+            return;
+        }
+        keys[v] = key;
+        heap[size] = v;
+        pos[v] = size;
+        size++;
+        siftUp(size - 1);
+    }
+
+    /** Removes and returns the vertex with the smallest key. */
+    int poll() {
+        int min = heap[0];
+        size--;
+        pos[min] = -1;
+        if (size > 0) {
+            heap[0] = heap[size];
+            pos[heap[0]] = 0;
+            siftDown(0);
+        }
+        return min;
+    }
+
+    /** Empties the heap in O(size). */
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            pos[heap[i]] = -1;
+        }
+        size = 0;
+    }
+
+    private void siftUp(int i) {
+        int v = heap[i];
+        double key = keys[v];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            int p = heap[parent];
+            if (keys[p] <= key) {
+                break;
+            }
+            heap[i] = p;
+            pos[p] = i;
+            i = parent;
+        }
+        heap[i] = v;
+        pos[v] = i;
+    }
+
+    private void siftDown(int i) {
+        int v = heap[i];
+        double key = keys[v];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < size && keys[heap[right]] < keys[heap[child]]) {
+                child = right;
+            }
+            int c = heap[child];
+            if (key <= keys[c]) {
+                break;
+            }
+            heap[i] = c;
+            pos[c] = i;
+            i = child;
+        }
+        heap[i] = v;
+        pos[v] = i;
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Static 3-d tree over the vertices of a GraphDB for nearest-vertex queries.
+ *
+ * Every (lon, lat) point is mapped onto the unit sphere. The straight-line (chord) distance
+ * between two points on the sphere grows monotonically with their great-circle distance, so
+ * the nearest point by chord distance is also the nearest by GraphDB.distance, and the usual
+ * axis-aligned pruning of a kd-tree is exact. The tree is stored implicitly: the points of
+ * a subtree occupy a contiguous slot range, with the splitting point at the middle slot.
+ * Queries recurse over slot ranges and allocate nothing.
+ */
+class KDTree {
+
+    /** Coordinates on the unit sphere, in tree order. */
+    private final double[] xs;
+    private final double[] ys;
+    private final double[] zs;
+    /** Vertex index stored in each tree slot. */
+    private final int[] vertices;
+    /** Splitting axis (0 = x, 1 = y, 2 = z) of the subtree whose middle slot this is. */
+    private final byte[] axes;
+
+    /**
+     * Builds the tree for n points, where point i is (lons[i], lats[i]).
+     * @param lons Longitudes, indexed by vertex.
+     * @param lats Latitudes, indexed by vertex.
+     */
+    KDTree(double[] lons, double[] lats) {
+        int n = lons.length;
+        xs = new double[n];
+        ys = new double[n];
+        zs = new double[n];
+        vertices = new int[n];
+        axes = new byte[n];
+        for (int i = 0; i < n; i++) {
+            double phi = Math.toRadians(lats[i]);
+            double lambda = Math.toRadians(lons[i]);
+            xs[i] = Math.cos(phi) * Math.cos(lambda);
+            ys[i] = Math.cos(phi) * Math.sin(lambda);
+            zs[i] = Math.sin(phi);
+            vertices[i] = i;
+        }
+        build(0, n);
+    }
+
+    private KDTree(double[] xs, double[] ys, double[] zs, int[] vertices, byte[] axes) {
+        this.xs = xs;
+        this.ys = ys;
+        this.zs = zs;
+        this.vertices = vertices;
+        this.axes = axes;
+    }
+
+    /** Writes the tree for GraphSnapshot, which knows the number of points. */
+    void write(DataOutputStream out) throws IOException {
+        for (double[] coordinates : new double[][] {xs, ys, zs}) {
+            for (double c : coordinates) {
+                out.writeDouble(c);
+            }
+        }
+        for (int v : vertices) {
+            out.writeInt(v);
+        }
+        out.write(axes);
+    }
+
+    /** Reads a tree of n points written by write(), advancing the buffer past it. */
+    static KDTree read(ByteBuffer buffer, int n) {
+        double[][] coordinates = new double[3][n];
+        for (double[] c : coordinates) {
+            buffer.asDoubleBuffer().get(c);
+            buffer.position(buffer.position() + n * Double.BYTES);
+        }
+        int[] vertices = new int[n];
+        buffer.asIntBuffer().get(vertices);
+        buffer.position(buffer.position() + n * Integer.BYTES);
+        byte[] axes = new byte[n];
+        buffer.get(axes);
+        return new KDTree(coordinates[0], coordinates[1], coordinates[2], vertices, axes);
+    }
+
+    /**
+     * Returns the index of the vertex closest to (lon, lat), or -1 if the tree is empty.
+     * Among equally close vertices the smallest index wins.
+     */
+    int nearest(double lon, double lat) {
+        if (vertices.length == 0) {
+            return -1;
+        }
+        double phi = Math.toRadians(lat);
+        double lambda = Math.toRadians(lon);
+        double qx = Math.cos(phi) * Math.cos(lambda);
+        double qy = Math.cos(phi) * Math.sin(lambda);
+        double qz = Math.sin(phi);
+        int best = nearest(0, vertices.length, qx, qy, qz, (vertices.length - 1) >>> 1);
+        return vertices[best];
+    }
+
+    private int nearest(int lo, int hi, double qx, double qy, double qz, int best) {
+        if (lo >= hi) {
+            return best;
+        }
+        int mid = (lo + hi) >>> 1;
+        double bestDistance = distance2(best, qx, qy, qz);
+        double midDistance = distance2(mid, qx, qy, qz);
+        if (midDistance < bestDistance
+                || (midDistance == bestDistance && vertices[mid] < vertices[best])) {
+            best = mid;
+        }
+
+        double diff = coordinate(axes[mid], mid, qx, qy, qz);
+        if (diff < 0) {
+            best = nearest(lo, mid, qx, qy, qz, best);
+            if (diff * diff <= distance2(best, qx, qy, qz)) {
+                best = nearest(mid + 1, hi, qx, qy, qz, best);
+            }
+        } else {
+            best = nearest(mid + 1, hi, qx, qy, qz, best);
+            if (diff * diff <= distance2(best, qx, qy, qz)) {
+                best = nearest(lo, mid, qx, qy, qz, best);
+            }
+        }
+        return best;
+    }
+
+    /** Signed offset of the query from the splitting plane through slot i. */
+    private double coordinate(int axis, int i, double qx, double qy, double qz) {
+        if (axis == 0) {
+            return qx - xs[i];
+        } else if (axis == 1) {
+            return qy - ys[i];
+        }
+        return qz - zs[i];
+    }
+
+    private double distance2(int i, double qx, double qy, double qz) {
+        double dx = xs[i] - qx;
+        double dy = ys[i] - qy;
+        double dz = zs[i] - qz;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /** Arranges slots [lo, hi) into a subtree split on its widest axis. */
+    private void build(int lo, int hi) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int axis = widestAxis(lo, hi);
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, axis);
+        axes[mid] = (byte) axis;
+        build(lo, mid);
+        build(mid + 1, hi);
+    }
+
+    private int widestAxis(int lo, int hi) {
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, minZ = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE, maxZ = -Double.MAX_VALUE;
+        for (int i = lo; i < hi; i++) {
+            minX = Math.min(minX, xs[i]);
+            maxX = Math.max(maxX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxY = Math.max(maxY, ys[i]);
+            minZ = Math.min(minZ, zs[i]);
+            maxZ = Math.max(maxZ, zs[i]);
+        }
+        double spreadX = maxX - minX;
+        double spreadY = maxY - minY;
+        double spreadZ = maxZ - minZ;
+        if (spreadX >= spreadY && spreadX >= spreadZ) {
+            return 0;
+        }
+        return spreadY >= spreadZ ? 1 : 2;
+    }
+
+    /** Quickselect: puts the k-th smallest slot of [lo, hi] along axis at slot k. */
+    private void select(int lo, int hi, int k, int axis) {
+        while (lo < hi) {
+            double pivot = value(axis, (lo + hi) >>> 1);
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (value(axis, i) < pivot) {
+                    i++;
+                }
+                while (value(axis, j) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private double value(int axis, int i) {
+        if (axis == 0) {
+            return xs[i];
+        } else if (axis == 1) {
+            return ys[i];
+        }
+        return zs[i];
+    }
+
+    private void swap(int i, int j) {
+        double x = xs[i];
+        xs[i] = xs[j];
+        xs[j] = x;
+        double y = ys[i];
+        ys[i] = ys[j];
+        ys[j] = y;
+        double z = zs[i];
+        zs[i] = zs[j];
+        zs[j] = z;
+        int v = vertices[i];
+        vertices[i] = vertices[j];
+        vertices[j] = v;
+    }
+}
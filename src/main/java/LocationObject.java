@@ -4,6 +4,8 @@ public class LocationObject {
     double lat;
     double lon;
     String name;
+    /** Number of named OSM nodes with this name, used to rank search results. */
+    int count = 1;
 
     public LocationObject(long id, double lat, double lon, String name){
 
@@ -0,0 +1,78 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One version of the data MapServer serves: the road graph, the rasterer and the tile cache
+ * built together from one OSM file and one tile folder.
+ *
+ * A MapData is reference counted. Its MapDataHolder owns the first reference and gives it
+ * up when a newer version replaces this one; every request takes its own reference for
+ * as long as it runs. When the count drops to zero the version is released, dropping its
+ * decoded tiles unless it has handed them on with withGraph, and it can no longer be
+ * retained.
+ */
+class MapData {
+
+    final long version;
+    final GraphDB graph;
+    final Rasterer rasterer;
+    final TileCache tiles;
+
+    private final AtomicInteger references = new AtomicInteger(1);
+    /** Whether a newer version has taken over tiles, so release must not clear them. */
+    private volatile boolean tilesHandedOn = false;
+
+    /**
+     * @param version Increasing number of this version, for logging.
+     */
+    MapData(long version, GraphDB graph, Rasterer rasterer, TileCache tiles) {
+        this.version = version;
+        this.graph = graph;
+        this.rasterer = rasterer;
+        this.tiles = tiles;
+    }
+
+    /**
+     * Returns a newer version with another graph that takes over the rasterer and the
+     * tiles of this one, for changes that leave the image root alone. The tiles stay
+     * cached, pinned levels included, when this version is released.
+     * @param version Increasing number of the new version.
+     * @param graph The graph of the new version.
+     */
+    MapData withGraph(long version, GraphDB graph) {
+        tilesHandedOn = true;
+        return new MapData(version, graph, rasterer, tiles);
+    }
+
+    /**
+     * Takes a reference, unless the version has already been released.
+     * @return Whether a reference was taken; if so it must be given back with release().
+     */
+    boolean retain() {
+        while (true) {
+            int count = references.get();
+            if (count == 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /** Gives back a reference, releasing the version if it was the last one. */
+    void release() {
+        int count = references.decrementAndGet();
+        if (count == 0) {
+            if (!tilesHandedOn) {
+                tiles.clear();
+            }
+        } else if (count < 0) {
+            throw new IllegalStateException("MapData version " + version + " released twice");
+        }
+    }
+
+    /** Whether the last reference has been given back. */
+    boolean isReleased() {
+        return references.get() <= 0;
+    }
+}
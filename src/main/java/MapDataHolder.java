@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the current MapData and replaces it without stopping the server.
+ *
+ * Readers call acquire() at the start of a request and release() on the returned version
+ * when they are done, so a request sees one consistent version from start to finish.
+ * refresh() builds the next version on a background thread while the current one keeps
+ * serving, then swaps it in with a single atomic write. The old version stays usable for
+ * the requests that still hold it and is released once the last of them finishes.
+ */
+class MapDataHolder {
+
+    /** Builds a MapData; called on the holder's background thread. */
+    interface Loader {
+        MapData load(long version) throws IOException;
+    }
+
+    private final AtomicReference<MapData> current;
+    private final AtomicLong lastVersion;
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "map-data-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param initial The first version to serve; the holder takes over its reference.
+     */
+    MapDataHolder(MapData initial) {
+        current = new AtomicReference<>(initial);
+        lastVersion = new AtomicLong(initial.version);
+    }
+
+    /**
+     * Returns the current version with a reference taken for the caller.
+     * If a swap releases the version between reading and retaining it, this simply
+     * retries with the newer one.
+     */
+    MapData acquire() {
+        while (true) {
+            MapData data = current.get();
+            if (data.retain()) {
+                return data;
+            }
+        }
+    }
+
+    /** The version new requests currently get, without taking a reference. */
+    long version() {
+        return current.get().version;
+    }
+
+    /**
+     * Makes next the current version and gives up the holder's reference to the old one.
+     * @param next A freshly built version; the holder takes over its reference.
+     */
+    void swap(MapData next) {
+        MapData old = current.getAndSet(next);
+        old.release();
+    }
+
+    /**
+     * Builds a new version with loader in the background and swaps it in once it is ready.
+     * Refreshes run one at a time, in the order they were requested. If loading fails the
+     * current version stays in place and the returned future fails.
+     * @param loader Builds the next version, given its version number.
+     * @return The new version, once it has been swapped in.
+     */
+    CompletableFuture<MapData> refresh(Loader loader) {
+        CompletableFuture<MapData> result = new CompletableFuture<>();
+        refresher.execute(() -> {
+            try {
+                MapData next = loader.load(lastVersion.incrementAndGet());
+                swap(next);
+                result.complete(next);
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+}
@@ -1,10 +1,13 @@
-import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
 import java.io.IOException;
@@ -41,6 +44,43 @@ public class MapServer {
     public static final Color ROUTE_STROKE_COLOR = new Color(108, 181, 230, 200);
     /** The tile images are in the IMG_ROOT folder. */
     private static final String IMG_ROOT = "library-sp18/data/proj3_imgs/";
+    /** Budget for decoded tiles kept in memory, about 1000 256x256 tiles. */
+    private static final long TILE_CACHE_BYTES = 256L * 1024 * 1024;
+    /** Tiles at this depth or shallower stay cached no matter what. */
+    private static final int PINNED_TILE_DEPTH = 3;
+    /** Budget for idle output images kept for reuse, about 8 viewport-sized rasters. */
+    private static final long RASTER_BUFFER_BYTES = 64L * 1024 * 1024;
+    /** At most this many client routes are kept at once. */
+    private static final int MAX_STORED_ROUTES = 10000;
+    /** A client's route is forgotten after it has not been used for this long. */
+    private static final long ROUTE_TTL_MILLIS = 30 * 60 * 1000;
+    /** Query parameter carrying the client's route token. */
+    private static final String ROUTE_TOKEN_PARAM = "route_token";
+    /** Optional query parameter selecting the routing algorithm, see Router.SearchMode. */
+    private static final String ROUTE_MODE_PARAM = "mode";
+    /** Optional /search parameter: return only this many of the best-ranked names. */
+    private static final String SEARCH_LIMIT_PARAM = "limit";
+    /** Optional /search parameter: match names by any of their words, not just the first. */
+    private static final String SEARCH_INFIX_PARAM = "infix";
+    /** Optional /search parameter: also match names within a few typos of the term. */
+    private static final String SEARCH_FUZZY_PARAM = "fuzzy";
+    /**
+     * Time a fuzzy search may take before it settles for the matches with fewer typos;
+     * set with -Dmapserver.search.budget.ms=n.
+     */
+    private static final long SEARCH_BUDGET_MILLIS = Long.getLong("mapserver.search.budget.ms",
+            20);
+    /**
+     * Seconds between checks of the OSM file and tile folder for new data, which is then
+     * loaded and swapped in without downtime once it has stopped changing for one more
+     * check; 0 disables the check. Set with -Dmapserver.refresh.seconds=n.
+     */
+    private static final long REFRESH_SECONDS = Long.getLong("mapserver.refresh.seconds", 0);
+    /**
+     * OSM change file (.osc, .osc.gz or .osc.bz2) that is applied to the graph whenever it
+     * changes, checked along with the OSM file; set with -Dmapserver.changes=path.
+     */
+    private static final String CHANGES_PATH = System.getProperty("mapserver.changes");
     /**
      * The OSM XML file path. Downloaded from <a href="http://download.bbbike.org/osm/">here</a>
      * using custom region selection.
@@ -72,9 +112,12 @@ public class MapServer {
     private static final String[] REQUIRED_RASTER_RESULT_PARAMS = {"render_grid", "raster_ul_lon",
         "raster_ul_lat", "raster_lr_lon", "raster_lr_lat", "depth", "query_success"};
 
-    private static Rasterer rasterer;
-    private static GraphDB graph;
-    private static List<Long> route = new LinkedList<>();
+    private static String osmDbPath;
+    private static String imgRoot;
+    /** Graph, rasterer and tiles; each request works on the version it acquired. */
+    private static MapDataHolder mapData;
+    private static RasterBufferPool rasterBuffers;
+    private static RouteStore routes;
     /* Define any static variables here. Do not define any instance variables of MapServer. */
 
 
@@ -84,12 +127,124 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        graph = new GraphDB(OSM_DB_PATH);
-        rasterer = new Rasterer();
+        initialize(OSM_DB_PATH, IMG_ROOT);
+    }
+
+    /**
+     * Initializes the server state from the given data locations. Used by initialize() and
+     * by the benchmarks, which run from a different working directory.
+     * @param osmDbPath Path to the OSM XML file.
+     * @param imgRoot Folder containing the tile images, ending in a separator.
+     */
+    static void initialize(String osmDbPath, String imgRoot) {
+        MapServer.osmDbPath = osmDbPath;
+        MapServer.imgRoot = imgRoot;
+        mapData = new MapDataHolder(loadMapData(1, osmDbPath, imgRoot));
+        rasterBuffers = new RasterBufferPool(TILE_SIZE, RASTER_BUFFER_BYTES);
+        routes = new RouteStore(MAX_STORED_ROUTES, ROUTE_TTL_MILLIS);
+    }
+
+    /**
+     * Returns the version of the map data new requests currently get, with a reference taken
+     * for the caller, which must give it back with release() when it is done.
+     */
+    static MapData acquireMapData() {
+        return mapData.acquire();
+    }
+
+    /** Builds a version of the map data from the given locations. */
+    private static MapData loadMapData(long version, String osmDbPath, String imgRoot) {
+        return new MapData(version, GraphDB.load(osmDbPath), new Rasterer(),
+                new TileCache(imgRoot, TILE_CACHE_BYTES, PINNED_TILE_DEPTH));
+    }
+
+    /**
+     * Reloads the OSM file and tile folder passed to initialize in the background and swaps
+     * the result in once it is ready. Requests keep being served from the current version
+     * meanwhile, and the ones in flight during the swap finish on it.
+     * @return The new version, once it has been swapped in. The refresh fails, keeping
+     * the current version, if the OSM file cannot be read to the end or the new graph
+     * comes out empty.
+     */
+    static CompletableFuture<MapData> refresh() {
+        String dbPath = osmDbPath;
+        String root = imgRoot;
+        return mapData.refresh(version -> {
+            MapData next = loadMapData(version, dbPath, root);
+            if (!next.graph.parsed) {
+                next.release();
+                throw new IOException("Could not read " + dbPath + ", keeping version "
+                        + mapData.version());
+            }
+            if (next.graph.vertexCount() == 0) {
+                next.release();
+                throw new IOException("No roads in " + dbPath + ", keeping version "
+                        + mapData.version());
+            }
+            return next;
+        });
+    }
+
+    /**
+     * Applies an OSM change file to the current graph in the background and swaps the
+     * result in like refresh(). The current version keeps serving while the changes are
+     * applied to a copy of its graph, and changes queued behind a refresh apply to the
+     * refreshed graph. The new version takes over the tile cache of the current one, as
+     * changes only touch the graph.
+     * @param oscPath Path to an .osc file, optionally compressed as .gz or .bz2.
+     * @return The new version, once it has been swapped in.
+     */
+    static CompletableFuture<MapData> applyChanges(String oscPath) {
+        return mapData.refresh(version -> {
+            OsmChangeSet changes = OsmChangeSet.read(oscPath);
+            MapData current = mapData.acquire();
+            try {
+                return current.withGraph(version, current.graph.applyChanges(changes));
+            } finally {
+                current.release();
+            }
+        });
+    }
+
+    /**
+     * Checks every REFRESH_SECONDS whether the OSM file or the tile folder has changed,
+     * and refreshes if so, and whether the CHANGES_PATH file has changed, and applies it
+     * if so. A change is only acted on once a FileWatch sees it settled, so files still
+     * being written are left alone until the next check. Failures are logged and keep
+     * the current version.
+     */
+    private static void scheduleRefreshes() {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "map-data-watch");
+            t.setDaemon(true);
+            return t;
+        });
+        FileWatch data = new FileWatch(new File(osmDbPath), new File(imgRoot));
+        FileWatch changes = CHANGES_PATH == null ? null : new FileWatch(new File(CHANGES_PATH));
+        timer.scheduleWithFixedDelay(() -> {
+            if (data.poll()) {
+                refresh().whenComplete((next, failure) -> logFailure("Refresh", failure));
+            }
+            if (changes != null && changes.poll() && new File(CHANGES_PATH).isFile()) {
+                applyChanges(CHANGES_PATH).whenComplete((next, failure) ->
+                        logFailure("Applying " + CHANGES_PATH, failure));
+            }
+        }, REFRESH_SECONDS, REFRESH_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /** Logs an update of the map data that failed, if failure is not null. */
+    private static void logFailure(String update, Throwable failure) {
+        if (failure != null) {
+            System.err.println(update + " failed, keeping version " + mapData.version());
+            failure.printStackTrace();
+        }
     }
 
     public static void main(String[] args) {
         initialize();
+        if (REFRESH_SECONDS > 0) {
+            scheduleRefreshes();
+        }
         staticFileLocation("/page");
         /* Allow for all origin requests (since this is not an authenticated server, we do not
          * care about CSRF).  */
@@ -106,15 +261,22 @@ public class MapServer {
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
             /* The png image is written to the ByteArrayOutputStream */
             ByteArrayOutputStream os = new ByteArrayOutputStream();
-            /* getMapRaster() does almost all the work for this API call */
-            Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
+            MapData data = mapData.acquire();
+            Map<String, Object> rasteredImgParams;
+            try {
+                /* getMapRaster() does almost all the work for this API call */
+                rasteredImgParams = data.rasterer.getMapRaster(params);
 
-            boolean rasterSuccess = validateRasteredImgParams(rasteredImgParams);
+                boolean rasterSuccess = validateRasteredImgParams(rasteredImgParams);
 
-            if (rasterSuccess) {
-                writeImagesToOutputStream(rasteredImgParams, os);
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
-                rasteredImgParams.put("b64_encoded_image_data", encodedImage);
+                if (rasterSuccess) {
+                    List<Long> route = routes.get(req.queryParams(ROUTE_TOKEN_PARAM));
+                    writeImagesToOutputStream(data, rasteredImgParams, route, os);
+                    String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
+                    rasteredImgParams.put("b64_encoded_image_data", encodedImage);
+                }
+            } finally {
+                data.release();
             }
 
             /* Encode response to Json */
@@ -126,10 +288,23 @@ public class MapServer {
         get("/route", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
-            String directions = getDirectionsText();
+            Router.SearchMode mode = getSearchMode(req);
+            MapData data = mapData.acquire();
+            List<Long> route;
+            String directions;
+            try {
+                route = Router.shortestPath(data.graph, params.get("start_lon"),
+                        params.get("start_lat"), params.get("end_lon"), params.get("end_lat"),
+                        mode);
+                directions = getDirectionsText(data.graph, route);
+            } finally {
+                data.release();
+            }
+            /* The new route gets a new token; the one the client sent, if any, is done. */
+            routes.remove(req.queryParams(ROUTE_TOKEN_PARAM));
+            String token = routes.put(route);
             Map<String, Object> routeParams = new HashMap<>();
+            routeParams.put(ROUTE_TOKEN_PARAM, token);
             routeParams.put("routing_success", !route.isEmpty());
             routeParams.put("directions_success", directions.length() > 0);
             routeParams.put("directions", directions);
@@ -139,7 +314,7 @@ public class MapServer {
 
         /* Define the API endpoint for clearing the current route. */
         get("/clear_route", (req, res) -> {
-            clearRoute();
+            clearRoute(req.queryParams(ROUTE_TOKEN_PARAM));
             return true;
         });
 
@@ -152,9 +327,23 @@ public class MapServer {
             if (reqParams.contains("full")) {
                 List<Map<String, Object>> data = getLocations(term);
                 return gson.toJson(data);
+            } else if (reqParams.contains(SEARCH_INFIX_PARAM)) {
+                /* Search for names containing every word of the term. */
+                Integer limit = getSearchLimit(req);
+                List<String> matches = getLocationsByWords(term,
+                        limit == null ? Integer.MAX_VALUE : limit);
+                return gson.toJson(matches);
+            } else if (reqParams.contains(SEARCH_FUZZY_PARAM)) {
+                /* Search for prefix matching strings, tolerating typos. */
+                Integer limit = getSearchLimit(req);
+                List<String> matches = getLocationsByFuzzyPrefix(term,
+                        limit == null ? Trie.TOP_K : limit);
+                return gson.toJson(matches);
             } else {
-                /* Search for prefix matching strings. */
-                List<String> matches = getLocationsByPrefix(term);
+                /* Search for prefix matching strings, ranked if a limit is given. */
+                Integer limit = getSearchLimit(req);
+                List<String> matches = limit == null ? getLocationsByPrefix(term)
+                        : getLocationsByPrefix(term, limit);
                 return gson.toJson(matches);
             }
         });
@@ -192,29 +381,92 @@ public class MapServer {
         return params;
     }
 
+    /**
+     * Returns the routing algorithm requested through the optional mode parameter.
+     * @param req HTTP Request.
+     * @return The requested mode, or Router's default if there is none.
+     */
+    private static Router.SearchMode getSearchMode(spark.Request req) {
+        String mode = req.queryParams(ROUTE_MODE_PARAM);
+        if (mode == null || mode.isEmpty()) {
+            return null;
+        }
+        try {
+            return Router.SearchMode.parse(mode);
+        } catch (IllegalArgumentException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - unknown routing mode.");
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of names requested through the optional limit parameter.
+     * @param req HTTP Request.
+     * @return The limit, or null if there is none.
+     */
+    private static Integer getSearchLimit(spark.Request req) {
+        String limit = req.queryParams(SEARCH_LIMIT_PARAM);
+        if (limit == null || limit.isEmpty()) {
+            return null;
+        }
+        try {
+            return Integer.parseInt(limit);
+        } catch (NumberFormatException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            return null;
+        }
+    }
+
     /**
      * Writes the images corresponding to rasteredImgParams to the output stream.
      * In Spring 2016, students had to do this on their own, but in 2017,
      * we have made this into provided code since it was just a bit too low level.
+     * @param route The requesting client's route to draw on top of the tiles; may be empty.
      */
-    private static void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
-                                                  ByteArrayOutputStream os) {
+    static void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
+                                                  List<Long> route, ByteArrayOutputStream os) {
+        MapData data = mapData.acquire();
+        try {
+            writeImagesToOutputStream(data, rasteredImageParams, route, os);
+        } finally {
+            data.release();
+        }
+    }
+
+    /**
+     * Writes the images with the tiles and graph of the given version of the map data.
+     * Parts of the route that are not in its graph, because the route was found on an
+     * older version, are not drawn.
+     */
+    private static void writeImagesToOutputStream(MapData data,
+                                                  Map<String, Object> rasteredImageParams,
+                                                  List<Long> route, ByteArrayOutputStream os) {
+        GraphDB graph = data.graph;
         String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
         int numVertTiles = renderGrid.length;
         int numHorizTiles = renderGrid[0].length;
 
-        BufferedImage img = new BufferedImage(numHorizTiles * MapServer.TILE_SIZE,
-                numVertTiles * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
-        Graphics graphic = img.getGraphics();
-        int x = 0, y = 0;
+        BufferedImage img = rasterBuffers.acquire(numHorizTiles, numVertTiles);
+        int[] out = RasterBufferPool.pixels(img);
+        int width = img.getWidth();
 
+        /* Copy each tile row by row; missing tiles are left black, as drawImage would. */
         for (int r = 0; r < numVertTiles; r += 1) {
             for (int c = 0; c < numHorizTiles; c += 1) {
-                graphic.drawImage(getImage(IMG_ROOT + renderGrid[r][c]), x, y, null);
-                x += MapServer.TILE_SIZE;
-                if (x >= img.getWidth()) {
-                    x = 0;
-                    y += MapServer.TILE_SIZE;
+                int base = r * MapServer.TILE_SIZE * width + c * MapServer.TILE_SIZE;
+                BufferedImage tile = data.tiles.get(renderGrid[r][c]);
+                int[] in = tile == null ? null : RasterBufferPool.pixels(tile);
+                int tileWidth = tile == null ? 0 : Math.min(tile.getWidth(), MapServer.TILE_SIZE);
+                int tileHeight = tile == null ? 0 : Math.min(tile.getHeight(), MapServer.TILE_SIZE);
+                for (int row = 0; row < MapServer.TILE_SIZE; row += 1) {
+                    int dst = base + row * width;
+                    if (row < tileHeight) {
+                        System.arraycopy(in, row * tile.getWidth(), out, dst, tileWidth);
+                    }
+                    if (row >= tileHeight || tileWidth < MapServer.TILE_SIZE) {
+                        int from = row < tileHeight ? tileWidth : 0;
+                        Arrays.fill(out, dst + from, dst + MapServer.TILE_SIZE, 0);
+                    }
                 }
             }
         }
@@ -228,17 +480,21 @@ public class MapServer {
         final double wdpp = (lrlon - ullon) / img.getWidth();
         final double hdpp = (ullat - lrlat) / img.getHeight();
         if (route != null && !route.isEmpty()) {
-            Graphics2D g2d = (Graphics2D) graphic;
+            Graphics2D g2d = img.createGraphics();
             g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
             g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
                     BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
             route.stream().reduce((v, w) -> {
+                if (graph.indexOf(v) < 0 || graph.indexOf(w) < 0) {
+                    return w;
+                }
                 g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
                              (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
                              (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
                              (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
                 return w;
             });
+            g2d.dispose();
         }
 
         rasteredImageParams.put("raster_width", img.getWidth());
@@ -248,39 +504,97 @@ public class MapServer {
             ImageIO.write(img, "png", os);
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            rasterBuffers.release(img);
         }
 
     }
 
-    private static BufferedImage getImage(String imgPath) {
-        BufferedImage tileImg = null;
-        if (tileImg == null) {
-            try {
-                File in = new File(imgPath);
-                tileImg = ImageIO.read(in);
-            } catch (IOException | NullPointerException e) {
-                e.printStackTrace();
-            }
-        }
-        return tileImg;
-    }
-
     /**
-     * Clear the current found route, if it exists.
+     * Clear the current found route of a client, if it exists.
+     * @param token The client's route token.
      */
-    public static void clearRoute() {
-        route = new LinkedList<Long>();
+    public static void clearRoute(String token) {
+        routes.remove(token);
     }
 
     /**
      * In linear time, collect all the names of OSM locations that prefix-match the query string.
+     * Uses the memory-mapped PrefixFst when one is attached to the graph, else the trie.
      * @param prefix Prefix string to be searched for. Could be any case, with our without
      *               punctuation.
      * @return A <code>List</code> of the full names of locations whose cleaned name matches the
      * cleaned <code>prefix</code>.
      */
     public static List<String> getLocationsByPrefix(String prefix) {
-        return graph.prefixTrie.getPrefixes(prefix);
+        MapData data = mapData.acquire();
+        try {
+            PrefixFst index = data.graph.prefixIndex;
+            return index != null ? index.getPrefixes(prefix)
+                    : data.graph.prefixTrie().getPrefixes(prefix);
+        } finally {
+            data.release();
+        }
+    }
+
+    /**
+     * Collects the best-ranked names of OSM locations that prefix-match the query string:
+     * those shared by the most OSM nodes, ties broken alphabetically by cleaned name.
+     * Runs in time proportional to the prefix length and the limit for limits up to
+     * Trie.TOP_K.
+     * @param prefix Prefix string to be searched for.
+     * @param limit Maximum number of names to return.
+     * @return At most <code>limit</code> full names, best first.
+     */
+    public static List<String> getLocationsByPrefix(String prefix, int limit) {
+        MapData data = mapData.acquire();
+        try {
+            PrefixFst index = data.graph.prefixIndex;
+            return index != null ? index.getPrefixes(prefix, limit)
+                    : data.graph.prefixTrie().getPrefixes(prefix, limit);
+        } finally {
+            data.release();
+        }
+    }
+
+    /**
+     * Collects the names of OSM locations whose cleaned name starts with the cleaned query
+     * string, up to a few typos: one for terms of 3 to 5 letters, two for longer ones.
+     * Closer matches come first, then as in getLocationsByPrefix(prefix, limit). The search
+     * gives up on more typos once it has taken SEARCH_BUDGET_MILLIS.
+     * @param prefix Prefix string to be searched for. Could be any case, with our without
+     *               punctuation.
+     * @param limit Maximum number of names to return.
+     * @return At most <code>limit</code> full names, best first.
+     */
+    public static List<String> getLocationsByFuzzyPrefix(String prefix, int limit) {
+        String cleaned = GraphDB.cleanString(prefix);
+        int edits = cleaned.length() < 3 ? 0 : cleaned.length() < 6 ? 1 : 2;
+        MapData data = mapData.acquire();
+        try {
+            return data.graph.prefixTrie().getFuzzyPrefixes(cleaned, edits, limit,
+                    TimeUnit.MILLISECONDS.toNanos(SEARCH_BUDGET_MILLIS));
+        } finally {
+            data.release();
+        }
+    }
+
+    /**
+     * Collects the names of OSM locations that contain every word of the query string,
+     * wherever in the name, so "hall" finds "Wheeler Hall". The last word may be
+     * unfinished. Names shared by the most OSM nodes come first, ties alphabetically.
+     * @param query Words to be searched for. Could be any case, with our without
+     *              punctuation.
+     * @param limit Maximum number of names to return.
+     * @return At most <code>limit</code> full names, best first.
+     */
+    public static List<String> getLocationsByWords(String query, int limit) {
+        MapData data = mapData.acquire();
+        try {
+            return data.graph.tokenIndex().search(query, limit);
+        } finally {
+            data.release();
+        }
     }
 
     /**
@@ -298,7 +612,13 @@ public class MapServer {
     public static List<Map<String, Object>> getLocations(String locationName) {
 
         List<Map<String, Object>> locations = new ArrayList<>();
-        LocationObject current = (LocationObject) graph.locations.get(locationName);
+        MapData data = mapData.acquire();
+        LocationObject current;
+        try {
+            current = (LocationObject) data.graph.locations.get(locationName);
+        } finally {
+            data.release();
+        }
         Map<String, Object> locationInfo = new HashMap<>();
 
         locationInfo.put("id", current.id);
@@ -332,10 +652,10 @@ public class MapServer {
     }
 
     /**
-     * Takes the route of this MapServer and converts it into an HTML friendly
+     * Takes a route and converts it into an HTML friendly
      * String to be passed to the frontend.
      */
-    private static String getDirectionsText() {
+    private static String getDirectionsText(GraphDB graph, List<Long> route) {
         List<Router.NavigationDirection> directions = Router.routeDirections(graph, route);
         if (directions == null || directions.isEmpty()) {
           return "";
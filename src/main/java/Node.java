@@ -1,7 +1,5 @@
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Helper Class for creating location points for GraphDB.java.
@@ -14,19 +12,29 @@ public class Node {
     double lon;
     String name;
 
-    // added for Extra
-    List<String> wayNames = new ArrayList<>();
     List<Long> connections;
+    /** Way name id (see GraphDB.wayNameId) of the way that made each connection. */
+    List<Integer> connectionWays;
 
     public Node(long id, double lat, double lon){
         this.id = id;
         this.lat = lat;
         this.lon = lon;
         this.connections = new ArrayList<>();
+        this.connectionWays = new ArrayList<>();
     }
 
     public void addConnection(long connection){
+        addConnection(connection, -1);
+    }
+
+    /**
+     * Adds a connection made by a way.
+     * @param wayName Way name id of the way, or -1 if it has no name.
+     */
+    void addConnection(long connection, int wayName){
         connections.add(connection);
+        connectionWays.add(wayName);
     }
 
     public void addName(String name){
@@ -44,6 +52,11 @@ public class Node {
         return connections;
     }
 
+    /** Way name ids of the connections, in the same order. */
+    List<Integer> getConnectionWays(){
+        return connectionWays;
+    }
+
     public double getLon(){
         return lon;
     }
@@ -56,39 +69,4 @@ public class Node {
         return id;
     }
 
-    public void addWayNames(String wayName){
-        this.wayNames.add(wayName);
-    }
-
-    public String getWayNames(int i){
-        return wayNames.get(i);
-    }
-
-    public List<String> getWayNames() {
-        return wayNames;
-    }
-
-    public boolean shareWays(Node other){
-
-        for(String name : this.wayNames){
-            if(other.getWayNames().contains(name)){
-                return true;
-            }
-        }
-        return false;
-    }
-
-    public String sharedWays(Node other){
-        for(String name : this.wayNames){
-            if(other.getWayNames().contains(name)){
-                return name;
-            }
-        }
-        return "";
-    }
-
-    public boolean hasWayName(String name){
-        return this.wayNames.contains(name);
-    }
-
 }
@@ -0,0 +1,121 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The node and way edits of an OSM change file (.osc), as read by read(), for
+ * GraphDB.applyChanges. Only the last version of an element in the file counts, and
+ * relations are ignored.
+ *
+ * Ways are judged the same way GraphBuildingHandler judges them: a created or modified way
+ * that is not routable is recorded like a deleted one, since it has to leave the graph if
+ * an earlier version of it was part of it.
+ */
+class OsmChangeSet {
+
+    /** A created, modified or deleted node. */
+    static class NodeChange {
+        final long id;
+        final boolean deleted;
+        final double lat;
+        final double lon;
+        /** Value of the node's name tag, or null. */
+        String name;
+
+        NodeChange(long id, boolean deleted, double lat, double lon) {
+            this.id = id;
+            this.deleted = deleted;
+            this.lat = lat;
+            this.lon = lon;
+        }
+    }
+
+    /** Changed nodes by id, in file order. */
+    final Map<Long, NodeChange> nodes = new LinkedHashMap<>();
+    /** Changed ways by id, in file order; null for deleted and non-routable ways. */
+    final Map<Long, Way> ways = new LinkedHashMap<>();
+
+    /**
+     * Reads a change file, decompressing it if its name ends in .gz or .bz2.
+     * @param path Path to an .osc, .osc.gz or .osc.bz2 file.
+     */
+    static OsmChangeSet read(String path) throws IOException {
+        try (InputStream in = OsmXmlReader.openInput(new File(path))) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Reads an uncompressed change file.
+     * @param in The osmChange XML.
+     */
+    static OsmChangeSet read(InputStream in) throws IOException {
+        OsmChangeSet changes = new OsmChangeSet();
+        OsmXmlReader reader = new OsmXmlReader(in);
+        boolean deleting = false;
+        NodeChange node = null;
+        Way way = null;
+        boolean routable = false;
+        int event;
+        while ((event = reader.next()) != OsmXmlReader.END_DOCUMENT) {
+            int element = reader.element();
+            if (event == OsmXmlReader.END) {
+                if (element == OsmXmlReader.NODE && node != null) {
+                    changes.nodes.put(node.id, node);
+                    node = null;
+                } else if (element == OsmXmlReader.WAY && way != null) {
+                    boolean keep = !deleting && routable && way.size() > 1;
+                    changes.ways.put(way.getID(), keep ? way : null);
+                    way = null;
+                } else if (element == OsmXmlReader.DELETE) {
+                    deleting = false;
+                }
+                continue;
+            }
+            switch (element) {
+                case OsmXmlReader.CREATE:
+                case OsmXmlReader.MODIFY:
+                    deleting = false;
+                    break;
+                case OsmXmlReader.DELETE:
+                    deleting = true;
+                    break;
+                case OsmXmlReader.NODE:
+                    long id = Long.parseLong(reader.attribute("id"));
+                    if (deleting) {
+                        node = new NodeChange(id, true, 0, 0);
+                    } else {
+                        node = new NodeChange(id, false,
+                                Double.parseDouble(reader.attribute("lat")),
+                                Double.parseDouble(reader.attribute("lon")));
+                    }
+                    break;
+                case OsmXmlReader.WAY:
+                    way = new Way(Long.parseLong(reader.attribute("id")));
+                    routable = false;
+                    break;
+                case OsmXmlReader.ND:
+                    if (way != null) {
+                        way.addConnection(Long.parseLong(reader.attribute("ref")));
+                    }
+                    break;
+                case OsmXmlReader.TAG:
+                    String k = reader.attribute("k");
+                    if (way != null && "highway".equals(k)) {
+                        routable = GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES.contains(
+                                reader.attribute("v"));
+                    } else if (way != null && "name".equals(k)) {
+                        way.addName(reader.attribute("v"));
+                    } else if (node != null && "name".equals(k)) {
+                        node.name = reader.attribute("v");
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return changes;
+    }
+}
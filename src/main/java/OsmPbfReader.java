@@ -0,0 +1,506 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reader for the OSM PBF format
+ * (<a href="https://wiki.openstreetmap.org/wiki/PBF_Format">format description</a>).
+ *
+ * A PBF file is a sequence of length-prefixed BlobHeader / Blob pairs. nextDataBlob() only
+ * splits the file into blobs, which is cheap, so that decode() - inflating a blob and
+ * walking its PrimitiveBlock - can run on ParallelGraphLoader's workers, one task per blob.
+ * The protobuf messages are read with a minimal wire-format decoder instead of generated
+ * classes. decode() keeps what GraphBuildingHandler keeps: every node with its name tag,
+ * and the ways with an allowed highway type, with their refs and name.
+ */
+class OsmPbfReader {
+
+    /** Limits from the format description; larger values mean a corrupt file. */
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+    /** Features a file may require that decode() understands. */
+    private static final List<String> SUPPORTED_FEATURES =
+            Arrays.asList("OsmSchema-V0.6", "DenseNodes");
+
+    private final DataInputStream in;
+
+    OsmPbfReader(InputStream in) {
+        this.in = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+    }
+
+    /**
+     * Reads up to the next OSMData blob. The OSMHeader blob is checked for required
+     * features this reader does not support, and unknown blob types are skipped.
+     * @return The undecoded Blob message, or null at the end of the file.
+     * @throws IOException If the file is truncated, corrupt or requires unknown features.
+     */
+    byte[] nextDataBlob() throws IOException {
+        while (true) {
+            int headerSize;
+            try {
+                headerSize = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            if (headerSize < 0 || headerSize > MAX_HEADER_SIZE) {
+                throw new IOException("Bad PBF blob header size " + headerSize);
+            }
+            byte[] header = new byte[headerSize];
+            in.readFully(header);
+            String type = null;
+            int dataSize = -1;
+            Wire h = new Wire(header, 0, header.length);
+            while (h.hasMore()) {
+                int tag = h.readTag();
+                if (tag == (1 << 3 | 2)) {
+                    type = h.readString();
+                } else if (tag == (3 << 3)) {
+                    dataSize = (int) h.readVarint();
+                } else {
+                    h.skip(tag);
+                }
+            }
+            if (dataSize < 0 || dataSize > MAX_BLOB_SIZE) {
+                throw new IOException("Bad PBF blob size " + dataSize);
+            }
+            byte[] blob = new byte[dataSize];
+            in.readFully(blob);
+            if ("OSMData".equals(type)) {
+                return blob;
+            } else if ("OSMHeader".equals(type)) {
+                checkHeader(inflate(blob));
+            }
+        }
+    }
+
+    /** Rejects files whose HeaderBlock requires features decode() does not understand. */
+    private static void checkHeader(byte[] headerBlock) throws IOException {
+        Wire w = new Wire(headerBlock, 0, headerBlock.length);
+        while (w.hasMore()) {
+            int tag = w.readTag();
+            if (tag == (4 << 3 | 2)) {
+                String feature = w.readString();
+                if (!SUPPORTED_FEATURES.contains(feature)) {
+                    throw new IOException("Unsupported PBF feature " + feature);
+                }
+            } else {
+                w.skip(tag);
+            }
+        }
+    }
+
+    /** Returns the uncompressed contents of a Blob message, which may be raw or zlib. */
+    static byte[] inflate(byte[] blob) throws IOException {
+        Wire w = new Wire(blob, 0, blob.length);
+        int rawSize = -1;
+        int dataStart = -1;
+        int dataEnd = -1;
+        boolean compressed = false;
+        while (w.hasMore()) {
+            int tag = w.readTag();
+            int field = tag >>> 3;
+            if (field == 1 || field == 3) {
+                int length = w.readLength();
+                dataStart = w.pos;
+                dataEnd = w.pos + length;
+                w.pos = dataEnd;
+                compressed = field == 3;
+            } else if (field == 2) {
+                rawSize = (int) w.readVarint();
+            } else if (field >= 4 && field <= 7) {
+                throw new IOException("Unsupported PBF blob compression (field " + field + ")");
+            } else {
+                w.skip(tag);
+            }
+        }
+        if (dataStart < 0) {
+            throw new IOException("PBF blob without data");
+        }
+        if (!compressed) {
+            return Arrays.copyOfRange(blob, dataStart, dataEnd);
+        }
+        if (rawSize < 0 || rawSize > MAX_BLOB_SIZE) {
+            throw new IOException("Bad PBF raw size " + rawSize);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(blob, dataStart, dataEnd - dataStart);
+            byte[] data = new byte[rawSize];
+            int n = 0;
+            while (n < rawSize && !inflater.finished()) {
+                int inflated = inflater.inflate(data, n, rawSize - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != rawSize) {
+                throw new IOException("Truncated PBF blob");
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Decodes one OSMData blob into a batch of nodes and routable ways, in file order.
+     * @param blob A Blob message returned by nextDataBlob().
+     * @throws IOException If the blob is corrupt.
+     */
+    static ParallelGraphLoader.ParsedBatch decode(byte[] blob) throws IOException {
+        byte[] data = inflate(blob);
+        Wire block = new Wire(data, 0, data.length);
+        String[] strings = new String[0];
+        List<Wire> groups = new ArrayList<>();
+        Block b = new Block();
+        while (block.hasMore()) {
+            int tag = block.readTag();
+            switch (tag >>> 3) {
+                case 1:
+                    strings = readStringTable(block.readMessage());
+                    break;
+                case 2:
+                    groups.add(block.readMessage());
+                    break;
+                case 17:
+                    b.granularity = block.readVarint();
+                    break;
+                case 19:
+                    b.latOffset = block.readVarint();
+                    break;
+                case 20:
+                    b.lonOffset = block.readVarint();
+                    break;
+                default:
+                    block.skip(tag);
+            }
+        }
+        b.strings = strings;
+        for (Wire group : groups) {
+            while (group.hasMore()) {
+                int tag = group.readTag();
+                switch (tag >>> 3) {
+                    case 1:
+                        b.readNode(group.readMessage());
+                        break;
+                    case 2:
+                        b.readDenseNodes(group.readMessage());
+                        break;
+                    case 3:
+                        b.readWay(group.readMessage());
+                        break;
+                    default:
+                        group.skip(tag);
+                }
+            }
+        }
+        return b.toBatch();
+    }
+
+    private static String[] readStringTable(Wire table) throws IOException {
+        List<String> strings = new ArrayList<>();
+        while (table.hasMore()) {
+            int tag = table.readTag();
+            if (tag == (1 << 3 | 2)) {
+                strings.add(table.readString());
+            } else {
+                table.skip(tag);
+            }
+        }
+        return strings.toArray(new String[0]);
+    }
+
+    /** Decoding state of one PrimitiveBlock. */
+    private static class Block {
+        long granularity = 100;
+        long latOffset = 0;
+        long lonOffset = 0;
+        String[] strings;
+
+        long[] ids = new long[1024];
+        double[] lats = new double[1024];
+        double[] lons = new double[1024];
+        String[] names = new String[1024];
+        int nodeCount = 0;
+        List<Way> ways = new ArrayList<>();
+
+        /**
+         * Converts a coordinate to degrees. Dividing the exact nanodegree count by 1e9
+         * rounds the same way parsing the decimal string from an XML file does.
+         */
+        private double degrees(long offset, long value) {
+            return (offset + granularity * value) / 1e9;
+        }
+
+        private void addNode(long id, long lat, long lon, String name) {
+            if (nodeCount == ids.length) {
+                int capacity = 2 * nodeCount;
+                ids = Arrays.copyOf(ids, capacity);
+                lats = Arrays.copyOf(lats, capacity);
+                lons = Arrays.copyOf(lons, capacity);
+                names = Arrays.copyOf(names, capacity);
+            }
+            ids[nodeCount] = id;
+            lats[nodeCount] = degrees(latOffset, lat);
+            lons[nodeCount] = degrees(lonOffset, lon);
+            names[nodeCount] = name;
+            nodeCount++;
+        }
+
+        void readNode(Wire node) throws IOException {
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            Wire keys = null;
+            Wire vals = null;
+            while (node.hasMore()) {
+                int tag = node.readTag();
+                switch (tag >>> 3) {
+                    case 1:
+                        id = node.readSInt64();
+                        break;
+                    case 2:
+                        keys = node.readMessage();
+                        break;
+                    case 3:
+                        vals = node.readMessage();
+                        break;
+                    case 8:
+                        lat = node.readSInt64();
+                        break;
+                    case 9:
+                        lon = node.readSInt64();
+                        break;
+                    default:
+                        node.skip(tag);
+                }
+            }
+            addNode(id, lat, lon, tagValue(keys, vals, "name"));
+        }
+
+        void readDenseNodes(Wire dense) throws IOException {
+            Wire ids = null;
+            Wire lats = null;
+            Wire lons = null;
+            Wire keysVals = null;
+            while (dense.hasMore()) {
+                int tag = dense.readTag();
+                switch (tag >>> 3) {
+                    case 1:
+                        ids = dense.readMessage();
+                        break;
+                    case 8:
+                        lats = dense.readMessage();
+                        break;
+                    case 9:
+                        lons = dense.readMessage();
+                        break;
+                    case 10:
+                        keysVals = dense.readMessage();
+                        break;
+                    default:
+                        dense.skip(tag);
+                }
+            }
+            if (ids == null || lats == null || lons == null) {
+                return;
+            }
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            while (ids.hasMore()) {
+                id += ids.readSInt64();
+                lat += lats.readSInt64();
+                lon += lons.readSInt64();
+                String name = null;
+                if (keysVals != null) {
+                    int key;
+                    while (keysVals.hasMore() && (key = (int) keysVals.readVarint()) != 0) {
+                        int val = (int) keysVals.readVarint();
+                        if (strings[key].equals("name")) {
+                            name = strings[val];
+                        }
+                    }
+                }
+                addNode(id, lat, lon, name);
+            }
+        }
+
+        void readWay(Wire message) throws IOException {
+            long id = 0;
+            Wire keys = null;
+            Wire vals = null;
+            Wire refs = null;
+            while (message.hasMore()) {
+                int tag = message.readTag();
+                switch (tag >>> 3) {
+                    case 1:
+                        id = message.readVarint();
+                        break;
+                    case 2:
+                        keys = message.readMessage();
+                        break;
+                    case 3:
+                        vals = message.readMessage();
+                        break;
+                    case 8:
+                        refs = message.readMessage();
+                        break;
+                    default:
+                        message.skip(tag);
+                }
+            }
+            String highway = tagValue(keys, vals, "highway");
+            if (refs == null || !GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES.contains(highway)) {
+                return;
+            }
+            Way way = new Way(id);
+            long ref = 0;
+            while (refs.hasMore()) {
+                ref += refs.readSInt64();
+                way.addConnection(ref);
+            }
+            if (way.size() < 2) {
+                return;
+            }
+            String name = tagValue(keys.reset(), vals.reset(), "name");
+            if (name != null) {
+                way.addName(name);
+            }
+            ways.add(way);
+        }
+
+        /** Value of the last tag with the given key in packed key and value lists. */
+        private String tagValue(Wire keys, Wire vals, String key) throws IOException {
+            if (keys == null || vals == null) {
+                return null;
+            }
+            String value = null;
+            while (keys.hasMore() && vals.hasMore()) {
+                int k = (int) keys.readVarint();
+                int v = (int) vals.readVarint();
+                if (strings[k].equals(key)) {
+                    value = strings[v];
+                }
+            }
+            return value;
+        }
+
+        ParallelGraphLoader.ParsedBatch toBatch() {
+            ParallelGraphLoader.ParsedBatch batch = new ParallelGraphLoader.ParsedBatch();
+            batch.nodeIds = Arrays.copyOf(ids, nodeCount);
+            batch.lats = Arrays.copyOf(lats, nodeCount);
+            batch.lons = Arrays.copyOf(lons, nodeCount);
+            batch.names = Arrays.copyOf(names, nodeCount);
+            batch.ways = ways;
+            return batch;
+        }
+    }
+
+    /** Cursor over a protobuf message in buf[start, limit). */
+    private static class Wire {
+        final byte[] buf;
+        final int start;
+        final int limit;
+        int pos;
+
+        Wire(byte[] buf, int start, int limit) {
+            this.buf = buf;
+            this.start = start;
+            this.limit = limit;
+            this.pos = start;
+        }
+
+        boolean hasMore() {
+            return pos < limit;
+        }
+
+        /** Rewinds to the start of the message. */
+        Wire reset() {
+            pos = start;
+            return this;
+        }
+
+        int readTag() throws IOException {
+            return (int) readVarint();
+        }
+
+        long readVarint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= limit) {
+                    throw new IOException("Truncated PBF message");
+                }
+                byte b = buf[pos];
+                pos++;
+                result |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed PBF varint");
+        }
+
+        long readSInt64() throws IOException {
+            long v = readVarint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        int readLength() throws IOException {
+            long length = readVarint();
+            if (length < 0 || length > limit - pos) {
+                throw new IOException("Truncated PBF message");
+            }
+            return (int) length;
+        }
+
+        /** Reads a length-delimited field (a message, string or packed list) as a Wire. */
+        Wire readMessage() throws IOException {
+            int length = readLength();
+            Wire message = new Wire(buf, pos, pos + length);
+            pos += length;
+            return message;
+        }
+
+        String readString() throws IOException {
+            int length = readLength();
+            String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+
+        /** Skips the value of a field with the given tag. */
+        void skip(int tag) throws IOException {
+            switch (tag & 7) {
+                case 0:
+                    readVarint();
+                    break;
+                case 1:
+                    pos += 8;
+                    break;
+                case 2:
+                    pos += readLength();
+                    break;
+                case 5:
+                    pos += 4;
+                    break;
+                default:
+                    throw new IOException("Unsupported PBF wire type " + (tag & 7));
+            }
+            if (pos > limit) {
+                throw new IOException("Truncated PBF message");
+            }
+        }
+    }
+}
@@ -0,0 +1,431 @@
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Pull reader for OSM XML, scanning bytes directly instead of going through SAX.
+ *
+ * next() advances to the next start or end tag and returns START, END or END_DOCUMENT;
+ * element() then identifies the tag with one of the int codes below, so callers can
+ * switch on it instead of comparing names. Attribute values of a start tag are decoded
+ * lazily by attribute(name). A self-closing tag produces a START followed by an END.
+ * Text, comments, processing instructions and declarations are skipped, as OSM files
+ * keep all their data in attributes.
+ *
+ * The reader assumes a well-formed, UTF-8 encoded file and does not validate it.
+ */
+class OsmXmlReader implements Closeable {
+
+    /* Events returned by next(). */
+    static final int END_DOCUMENT = 0;
+    static final int START = 1;
+    static final int END = 2;
+
+    /* Element codes returned by element(). */
+    static final int OTHER = 0;
+    static final int NODE = 1;
+    static final int WAY = 2;
+    static final int ND = 3;
+    static final int TAG = 4;
+    static final int RELATION = 5;
+    /* Action blocks of an OSM change (.osc) file. */
+    static final int CREATE = 6;
+    static final int MODIFY = 7;
+    static final int DELETE = 8;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int MAX_ATTRIBUTES = 16;
+
+    private final InputStream in;
+    private byte[] buf;
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+
+    private int element = OTHER;
+    private boolean pendingEnd = false;
+    /* Byte ranges of the current start tag's attribute names and values. */
+    private int attributeCount = 0;
+    private int[] nameStart = new int[MAX_ATTRIBUTES];
+    private int[] nameEnd = new int[MAX_ATTRIBUTES];
+    private int[] valueStart = new int[MAX_ATTRIBUTES];
+    private int[] valueEnd = new int[MAX_ATTRIBUTES];
+
+    OsmXmlReader(InputStream in) {
+        this(in, BUFFER_SIZE);
+    }
+
+    /**
+     * @param in Uncompressed OSM XML.
+     * @param bufferSize Initial buffer size; it grows if a single tag does not fit.
+     */
+    OsmXmlReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buf = new byte[bufferSize];
+    }
+
+    /** Opens the OSM XML file at path, see openInput. */
+    static OsmXmlReader open(String path) throws IOException {
+        return new OsmXmlReader(openInput(new File(path)));
+    }
+
+    /**
+     * Opens a file through a channel, decompressing it if its name ends in .gz or .bz2.
+     * @param file An .osm (or .osm.xml), .osm.gz or .osm.bz2 file.
+     * @return The uncompressed XML.
+     */
+    static InputStream openInput(File file) throws IOException {
+        InputStream raw = Channels.newInputStream(
+                FileChannel.open(file.toPath(), StandardOpenOption.READ));
+        String name = file.getName();
+        if (name.endsWith(".gz")) {
+            return new GZIPInputStream(raw, 1 << 16);
+        } else if (name.endsWith(".bz2")) {
+            return new BZip2CompressorInputStream(new BufferedInputStream(raw, 1 << 16), true);
+        }
+        return raw;
+    }
+
+    /**
+     * Advances to the next tag.
+     * @return START, END or END_DOCUMENT.
+     */
+    int next() throws IOException {
+        if (pendingEnd) {
+            pendingEnd = false;
+            attributeCount = 0;
+            return END;
+        }
+        while (true) {
+            int lt = find((byte) '<', pos);
+            if (lt < 0) {
+                return END_DOCUMENT;
+            }
+            pos = lt;
+            if (!fill(pos + 2)) {
+                return END_DOCUMENT;
+            }
+            byte b = buf[pos + 1];
+            if (b == '!' || b == '?') {
+                skipMarkup();
+                continue;
+            }
+            int gt = tagEnd(pos + 1);
+            if (gt < 0) {
+                return END_DOCUMENT;
+            }
+            if (b == '/') {
+                element = elementCode(pos + 2, nameEndOf(pos + 2, gt));
+                attributeCount = 0;
+                pos = gt + 1;
+                return END;
+            }
+            int nameEnd = nameEndOf(pos + 1, gt);
+            element = elementCode(pos + 1, nameEnd);
+            parseAttributes(nameEnd, gt);
+            pendingEnd = buf[gt - 1] == '/';
+            pos = gt + 1;
+            return START;
+        }
+    }
+
+    /** Element code of the tag last returned by next(). */
+    int element() {
+        return element;
+    }
+
+    /**
+     * Returns the decoded value of an attribute of the current start tag.
+     * @param name An ASCII attribute name.
+     * @return The value, or null if the tag has no such attribute.
+     */
+    String attribute(String name) {
+        for (int i = 0; i < attributeCount; i++) {
+            if (nameEquals(i, name)) {
+                return decode(valueStart[i], valueEnd[i]);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean nameEquals(int i, String name) {
+        int length = nameEnd[i] - nameStart[i];
+        if (length != name.length()) {
+            return false;
+        }
+        for (int j = 0; j < length; j++) {
+            if (buf[nameStart[i] + j] != name.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int elementCode(int start, int end) {
+        int length = end - start;
+        byte first = buf[start];
+        if (length == 2 && first == 'n' && buf[start + 1] == 'd') {
+            return ND;
+        } else if (length == 3 && first == 't' && buf[start + 1] == 'a' && buf[start + 2] == 'g') {
+            return TAG;
+        } else if (length == 3 && first == 'w' && buf[start + 1] == 'a' && buf[start + 2] == 'y') {
+            return WAY;
+        } else if (length == 4 && first == 'n' && matches(start, "node")) {
+            return NODE;
+        } else if (length == 8 && first == 'r' && matches(start, "relation")) {
+            return RELATION;
+        } else if (length == 6 && matches(start, "create")) {
+            return CREATE;
+        } else if (length == 6 && matches(start, "modify")) {
+            return MODIFY;
+        } else if (length == 6 && matches(start, "delete")) {
+            return DELETE;
+        }
+        return OTHER;
+    }
+
+    private boolean matches(int start, String name) {
+        for (int j = 0; j < name.length(); j++) {
+            if (buf[start + j] != name.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int nameEndOf(int start, int limitPos) {
+        int i = start;
+        while (i < limitPos && !isSpace(buf[i]) && buf[i] != '/' && buf[i] != '>') {
+            i++;
+        }
+        return i;
+    }
+
+    /** Records the name="value" pairs between from and the closing '>' at gt. */
+    private void parseAttributes(int from, int gt) {
+        attributeCount = 0;
+        int i = from;
+        while (true) {
+            while (i < gt && (isSpace(buf[i]) || buf[i] == '/')) {
+                i++;
+            }
+            if (i >= gt) {
+                return;
+            }
+            int ns = i;
+            while (i < gt && buf[i] != '=' && !isSpace(buf[i])) {
+                i++;
+            }
+            int ne = i;
+            while (i < gt && buf[i] != '"' && buf[i] != '\'') {
+                i++;
+            }
+            if (i >= gt) {
+                return;
+            }
+            byte quote = buf[i];
+            int vs = i + 1;
+            i = vs;
+            while (i < gt && buf[i] != quote) {
+                i++;
+            }
+            if (attributeCount == nameStart.length) {
+                int capacity = 2 * attributeCount;
+                nameStart = Arrays.copyOf(nameStart, capacity);
+                nameEnd = Arrays.copyOf(nameEnd, capacity);
+                valueStart = Arrays.copyOf(valueStart, capacity);
+                valueEnd = Arrays.copyOf(valueEnd, capacity);
+            }
+            nameStart[attributeCount] = ns;
+            nameEnd[attributeCount] = ne;
+            valueStart[attributeCount] = vs;
+            valueEnd[attributeCount] = i;
+            attributeCount++;
+            i++;
+        }
+    }
+
+    /** Skips a comment, CDATA section, declaration or processing instruction at pos. */
+    private void skipMarkup() throws IOException {
+        String terminator = ">";
+        if (fill(pos + 4) && buf[pos + 1] == '!' && buf[pos + 2] == '-' && buf[pos + 3] == '-') {
+            terminator = "-->";
+        } else if (buf[pos + 1] == '?') {
+            terminator = "?>";
+        } else if (fill(pos + 9) && matches(pos + 1, "![CDATA[")) {
+            terminator = "]]>";
+        }
+        int i = pos + 2;
+        while (true) {
+            int end = find((byte) terminator.charAt(terminator.length() - 1), i);
+            if (end < 0) {
+                pos = limit;
+                return;
+            }
+            int start = end - terminator.length() + 1;
+            if (start >= pos + 1 && matches(start, terminator)) {
+                pos = end + 1;
+                return;
+            }
+            i = end + 1;
+        }
+    }
+
+    /** Position of the '>' closing the tag that starts before from, skipping quoted values. */
+    private int tagEnd(int from) throws IOException {
+        int i = from;
+        byte quote = 0;
+        while (true) {
+            if (i >= limit) {
+                int shift = pos;
+                if (!fill(i + 1)) {
+                    return -1;
+                }
+                i -= shift - pos;
+            }
+            byte b = buf[i];
+            if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                return i;
+            }
+            i++;
+        }
+    }
+
+    /** Position of the next b at or after from, refilling as needed; -1 at end of input. */
+    private int find(byte b, int from) throws IOException {
+        int i = from;
+        while (true) {
+            while (i < limit) {
+                if (buf[i] == b) {
+                    return i;
+                }
+                i++;
+            }
+            int shift = pos;
+            if (!fill(i + 1)) {
+                return -1;
+            }
+            i -= shift - pos;
+        }
+    }
+
+    /**
+     * Makes sure buf holds at least the bytes before end, keeping everything from pos on.
+     * This may move the kept bytes to the front of buf, so callers re-base their indices by
+     * the change in pos.
+     * @return False if the input ends first.
+     */
+    private boolean fill(int end) throws IOException {
+        while (limit < end) {
+            if (eof) {
+                return false;
+            }
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                limit -= pos;
+                end -= pos;
+                pos = 0;
+            }
+            if (limit == buf.length) {
+                buf = Arrays.copyOf(buf, 2 * buf.length);
+            }
+            int n = in.read(buf, limit, buf.length - limit);
+            if (n < 0) {
+                eof = true;
+            } else {
+                limit += n;
+            }
+        }
+        return true;
+    }
+
+    /** Decodes a UTF-8 attribute value, resolving character and entity references. */
+    private String decode(int start, int end) {
+        boolean plain = true;
+        for (int i = start; i < end; i++) {
+            if (buf[i] < 0 || buf[i] == '&') {
+                plain = false;
+                break;
+            }
+        }
+        if (plain) {
+            return new String(buf, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+        String s = new String(buf, start, end - start, StandardCharsets.UTF_8);
+        int amp = s.indexOf('&');
+        if (amp < 0) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        int i = 0;
+        while (amp >= 0) {
+            int semi = s.indexOf(';', amp);
+            if (semi < 0) {
+                break;
+            }
+            sb.append(s, i, amp);
+            String entity = s.substring(amp + 1, semi);
+            switch (entity) {
+                case "amp": sb.append('&'); break;
+                case "lt": sb.append('<'); break;
+                case "gt": sb.append('>'); break;
+                case "quot": sb.append('"'); break;
+                case "apos": sb.append('\''); break;
+                default:
+                    int codePoint = codePoint(entity);
+                    if (codePoint >= 0) {
+                        sb.appendCodePoint(codePoint);
+                    } else {
+                        sb.append(s, amp, semi + 1);
+                    }
+            }
+            i = semi + 1;
+            amp = s.indexOf('&', i);
+        }
+        sb.append(s, i, s.length());
+        return sb.toString();
+    }
+
+    /**
+     * Parses a numeric character reference such as "#65" or "#x42".
+     * @return The code point, or -1 if entity is not a valid one.
+     */
+    private static int codePoint(String entity) {
+        try {
+            int codePoint = -1;
+            if (entity.startsWith("#x")) {
+                codePoint = Integer.parseInt(entity.substring(2), 16);
+            } else if (entity.startsWith("#")) {
+                codePoint = Integer.parseInt(entity.substring(1));
+            }
+            return Character.isValidCodePoint(codePoint) ? codePoint : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+    }
+}
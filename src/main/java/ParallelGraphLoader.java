@@ -0,0 +1,385 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Multi-threaded, pipelined alternative to parsing with a GraphBuildingHandler.
+ *
+ * The loading happens in three stages:
+ * <ol>
+ *     <li>The reading thread pulls tags from an OsmXmlReader and only collects the raw
+ *     attribute strings of nodes and routable ways into batches of a few thousand records,
+ *     handing each full batch to a worker pool.</li>
+ *     <li>Workers turn a batch into primitive arrays and Way objects, parsing ids and
+ *     coordinates, while the parser carries on with the next batch.</li>
+ *     <li>The reading thread merges parsed batches in file order: node coordinates and
+ *     names and way references are appended to primitive arrays, and the batch is dropped.
+ *     Once everything is merged, two jobs build the graph at the same time: a worker
+ *     records the named nodes as locations, while the reading thread creates Nodes for
+ *     the vertices the ways reference and connects them. The two touch disjoint parts of
+ *     the GraphDB, and each runs in file order, so the result is the same as a sequential
+ *     parse.</li>
+ * </ol>
+ * Connecting stays on one thread: consecutive ways share Nodes, and appending to a Node's
+ * connections from several threads would need a lock per Node, costing more than the
+ * appends themselves.
+ * At most two batches per worker are in flight; when the window is full the reader waits
+ * for the oldest one and merges it before handing out the next, so memory stays bounded
+ * however far the parser runs ahead. Like two-pass ingestion, only nodes referenced by
+ * routable ways become Nodes; the rest are kept as primitive arrays until loading finishes.
+ *
+ * loadPbf runs the same window and merge on blocks decoded from an OSM PBF file by
+ * OsmPbfReader, one worker task per blob.
+ */
+class ParallelGraphLoader {
+
+    /** Nodes and ways per batch handed from the parser to a worker. */
+    private static final int BATCH_SIZE = 4096;
+    /** Batches parsed or waiting to be parsed per worker, before the reader blocks. */
+    private static final int IN_FLIGHT_PER_THREAD = 2;
+
+    private final GraphDB g;
+    private final int threads;
+    private final int batchSize;
+
+    /**
+     * @param g The graph to populate.
+     * @param threads Size of the worker pool.
+     */
+    ParallelGraphLoader(GraphDB g, int threads) {
+        this(g, threads, BATCH_SIZE);
+    }
+
+    /**
+     * @param g The graph to populate.
+     * @param threads Size of the worker pool.
+     * @param batchSize Nodes and ways per batch.
+     */
+    ParallelGraphLoader(GraphDB g, int threads, int batchSize) {
+        this.g = g;
+        this.threads = threads;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Reads the OSM XML from in into the graph. The caller still has to clean and index it.
+     * @param in Uncompressed OSM XML, see OsmXmlReader.openInput.
+     * @throws IOException If reading fails or a worker fails with a checked exception.
+     */
+    void load(InputStream in) throws IOException {
+        ExecutorService workers = newWorkers();
+        try {
+            Window window = new Window(workers);
+            RecordBatcher batcher = new RecordBatcher(batchSize,
+                    batch -> window.submit(() -> parse(batch)));
+            batcher.read(new OsmXmlReader(in));
+            window.finish();
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads an OSM PBF file into the graph, decoding its blobs on the worker pool. The
+     * caller still has to clean and index it.
+     * @param in The PBF file.
+     * @throws IOException If reading fails or a blob cannot be decoded.
+     */
+    void loadPbf(InputStream in) throws IOException {
+        ExecutorService workers = newWorkers();
+        try {
+            Window window = new Window(workers);
+            OsmPbfReader reader = new OsmPbfReader(in);
+            byte[] blob;
+            while ((blob = reader.nextDataBlob()) != null) {
+                byte[] data = blob;
+                window.submit(() -> OsmPbfReader.decode(data));
+            }
+            window.finish();
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private ExecutorService newWorkers() {
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "graph-loader");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Batches submitted to the workers and not merged yet, oldest first, together with
+     * what has been merged so far.
+     */
+    private class Window {
+        private final ExecutorService workers;
+        private final int capacity = Math.max(1, threads) * IN_FLIGHT_PER_THREAD;
+        private final ArrayDeque<Future<ParsedBatch>> pending = new ArrayDeque<>();
+
+        /** Every node seen so far, in file order. */
+        private long[] nodeIds = new long[1024];
+        private double[] lats = new double[1024];
+        private double[] lons = new double[1024];
+        private String[] names = new String[1024];
+        private int nodeCount = 0;
+        /** Every reference of every routable way seen so far. */
+        private long[] refs = new long[1024];
+        private int refCount = 0;
+        private final List<Way> ways = new ArrayList<>();
+
+        Window(ExecutorService workers) {
+            this.workers = workers;
+        }
+
+        /** Queues a batch, first merging the oldest one if the window is full. */
+        void submit(Callable<ParsedBatch> task) throws IOException {
+            if (pending.size() >= capacity) {
+                merge(await(pending.poll()));
+            }
+            pending.add(workers.submit(task));
+        }
+
+        /**
+         * Merges the remaining batches, then records the locations on a worker while
+         * creating and connecting the routable Nodes.
+         */
+        void finish() throws IOException {
+            while (!pending.isEmpty()) {
+                merge(await(pending.poll()));
+            }
+            Future<?> locations = workers.submit(this::addLocations);
+            long[] routable = RoutableNodeCollector.sortedUnique(refs, refCount);
+            refs = null;
+            for (int i = 0; i < nodeCount; i++) {
+                if (Arrays.binarySearch(routable, nodeIds[i]) >= 0) {
+                    Node node = new Node(nodeIds[i], lats[i], lons[i]);
+                    if (names[i] != null) {
+                        node.addName(names[i]);
+                    }
+                    g.addNode(node);
+                }
+            }
+            for (Way way : ways) {
+                g.connectNodes(way);
+            }
+            await(locations);
+        }
+
+        /** Records every named node as a location, in file order. */
+        private void addLocations() {
+            for (int i = 0; i < nodeCount; i++) {
+                if (names[i] != null) {
+                    g.addLocation(nodeIds[i], lats[i], lons[i], names[i]);
+                }
+            }
+        }
+
+        private void merge(ParsedBatch batch) {
+            int n = batch.nodeIds.length;
+            if (nodeCount + n > nodeIds.length) {
+                int size = Math.max(2 * nodeIds.length, nodeCount + n);
+                nodeIds = Arrays.copyOf(nodeIds, size);
+                lats = Arrays.copyOf(lats, size);
+                lons = Arrays.copyOf(lons, size);
+                names = Arrays.copyOf(names, size);
+            }
+            System.arraycopy(batch.nodeIds, 0, nodeIds, nodeCount, n);
+            System.arraycopy(batch.lats, 0, lats, nodeCount, n);
+            System.arraycopy(batch.lons, 0, lons, nodeCount, n);
+            System.arraycopy(batch.names, 0, names, nodeCount, n);
+            nodeCount += n;
+
+            for (Way way : batch.ways) {
+                if (refCount + way.size() > refs.length) {
+                    refs = Arrays.copyOf(refs, Math.max(2 * refs.length, refCount + way.size()));
+                }
+                for (long ref : way.getConnectionList()) {
+                    refs[refCount] = ref;
+                    refCount++;
+                }
+                ways.add(way);
+            }
+        }
+    }
+
+    /** Raw attribute strings of a batch of nodes and routable ways, in file order. */
+    private static class RawBatch {
+        /** Per node: id, lat, lon and name (null if it has none). */
+        final List<String[]> nodes = new ArrayList<>();
+        final List<RawWay> ways = new ArrayList<>();
+
+        int size() {
+            return nodes.size() + ways.size();
+        }
+    }
+
+    private static class RawWay {
+        final String id;
+        final List<String> refs = new ArrayList<>();
+        String name;
+        boolean valid = false;
+
+        RawWay(String id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Nodes and routable ways after their numbers have been parsed. Nodes without a name
+     * have a null entry in names.
+     */
+    static class ParsedBatch {
+        long[] nodeIds;
+        double[] lats;
+        double[] lons;
+        String[] names;
+        List<Way> ways;
+    }
+
+    /** Receives full batches; may block while the window of batches in flight is full. */
+    private interface BatchSink {
+        void accept(RawBatch batch) throws IOException;
+    }
+
+    /**
+     * Reads raw records with an OsmXmlReader and batches them. A way's validity is decided
+     * the same way GraphBuildingHandler decides it, and invalid ways are dropped here.
+     * Since OsmXmlReader does not validate, a file that ends before all of its elements are
+     * closed is reported here, as the SAX parser would report it.
+     */
+    private static class RecordBatcher {
+        private final int batchSize;
+        private final BatchSink sink;
+        private RawBatch batch = new RawBatch();
+
+        RecordBatcher(int batchSize, BatchSink sink) {
+            this.batchSize = batchSize;
+            this.sink = sink;
+        }
+
+        void read(OsmXmlReader reader) throws IOException {
+            String[] currentNode = null;
+            RawWay currentWay = null;
+            int depth = 0;
+            int event;
+            while ((event = reader.next()) != OsmXmlReader.END_DOCUMENT) {
+                int element = reader.element();
+                depth += event == OsmXmlReader.START ? 1 : -1;
+                if (event == OsmXmlReader.END) {
+                    if (element == OsmXmlReader.NODE && currentNode != null) {
+                        batch.nodes.add(currentNode);
+                    } else if (element == OsmXmlReader.WAY && currentWay != null
+                            && currentWay.valid) {
+                        batch.ways.add(currentWay);
+                    } else {
+                        continue;
+                    }
+                    if (batch.size() >= batchSize) {
+                        flush();
+                    }
+                    continue;
+                }
+                switch (element) {
+                    case OsmXmlReader.NODE:
+                        currentNode = new String[]{reader.attribute("id"),
+                            reader.attribute("lat"), reader.attribute("lon"), null};
+                        currentWay = null;
+                        break;
+                    case OsmXmlReader.WAY:
+                        currentWay = new RawWay(reader.attribute("id"));
+                        currentNode = null;
+                        break;
+                    case OsmXmlReader.RELATION:
+                        currentNode = null;
+                        currentWay = null;
+                        break;
+                    case OsmXmlReader.ND:
+                        if (currentWay != null) {
+                            currentWay.refs.add(reader.attribute("ref"));
+                        }
+                        break;
+                    case OsmXmlReader.TAG:
+                        String k = reader.attribute("k");
+                        if (currentWay != null && "highway".equals(k)) {
+                            if (GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES.contains(
+                                    reader.attribute("v")) && currentWay.refs.size() > 1) {
+                                currentWay.valid = true;
+                            }
+                        } else if (currentWay != null && "name".equals(k)) {
+                            currentWay.name = reader.attribute("v");
+                        } else if (currentNode != null && "name".equals(k)) {
+                            currentNode[3] = reader.attribute("v");
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (depth != 0) {
+                throw new IOException("OSM XML ends inside an element");
+            }
+            flush();
+        }
+
+        /** Hands the current batch to the sink, if it has any records. */
+        private void flush() throws IOException {
+            if (batch.size() > 0) {
+                sink.accept(batch);
+                batch = new RawBatch();
+            }
+        }
+    }
+
+    private static ParsedBatch parse(RawBatch raw) {
+        ParsedBatch parsed = new ParsedBatch();
+        int n = raw.nodes.size();
+        parsed.nodeIds = new long[n];
+        parsed.lats = new double[n];
+        parsed.lons = new double[n];
+        parsed.names = new String[n];
+        for (int i = 0; i < n; i++) {
+            String[] node = raw.nodes.get(i);
+            parsed.nodeIds[i] = Long.parseLong(node[0]);
+            parsed.lats[i] = Double.parseDouble(node[1]);
+            parsed.lons[i] = Double.parseDouble(node[2]);
+            parsed.names[i] = node[3];
+        }
+        parsed.ways = new ArrayList<>(raw.ways.size());
+        for (RawWay rawWay : raw.ways) {
+            Way way = new Way(Long.parseLong(rawWay.id));
+            for (String ref : rawWay.refs) {
+                way.addConnection(Long.parseLong(ref));
+            }
+            if (rawWay.name != null) {
+                way.addName(rawWay.name);
+            }
+            parsed.ways.add(way);
+        }
+        return parsed;
+    }
+
+    /** Waits for a worker, rethrowing its failure on this thread. */
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading the graph", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,521 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Immutable autocomplete index from cleaned location names to full names, compiled
+ * offline and read through a memory-mapped file, so that it costs almost no heap and every
+ * JVM on the host shares the same pages.
+ *
+ * The cleaned names are stored as a minimal acyclic automaton (DAWG): names sharing a
+ * suffix share its states. Every state records how many names it accepts, and every
+ * transition the number of names that sort before the ones it leads to, so walking a
+ * prefix adds up the ordinal of the first name under it, and the names under the prefix
+ * are exactly the ordinals [first, first + count). That makes the automaton a transducer
+ * from a cleaned name to its ordinal, which indexes the full names and scores.
+ *
+ * Ranked queries use a sparse table of the best score in every power-of-two run of
+ * ordinals, so the best names of a range come out one at a time in O(log limit) each,
+ * with ties in ordinal (that is, key) order, as in Trie.getPrefixes(prefix, limit).
+ *
+ * The index is written next to the OSM file (dbPath + ".fst") from the locations of the
+ * loaded graph. Build it offline with
+ * <pre>java PrefixFst path/to/file.osm.xml</pre>
+ *
+ * Layout (big endian):
+ * <pre>
+ *   int    MAGIC, int VERSION
+ *   int    state count s, transition count t, name count n, table levels l, name bytes b
+ *   int[s] names accepted from each state (state 0 is the start state)
+ *   int[s + 1] first transition of each state
+ *   char[t] transition labels, sorted within each state
+ *   int[t] transition targets
+ *   int[t] transition outputs: names that sort before those the transition leads to
+ *   int[n] scores, int[n + 1] name offsets into the name bytes
+ *   int[l * n] sparse table: level j holds the ordinal of the best score in [i, i + 2^j)
+ *   byte[b] full names in UTF-8, in ordinal order
+ * </pre>
+ */
+class PrefixFst {
+
+    static final String SUFFIX = ".fst";
+    private static final int MAGIC = 0x424D4653; // "BMFS"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 7 * Integer.BYTES;
+
+    private final ByteBuffer buffer;
+    private final int stateCount;
+    private final int transitionCount;
+    private final int nameCount;
+    private final int levels;
+    /* Byte offsets of the sections in buffer. */
+    private final int counts;
+    private final int offsets;
+    private final int labels;
+    private final int targets;
+    private final int outputs;
+    private final int scores;
+    private final int nameOffsets;
+    private final int table;
+    private final int names;
+
+    private PrefixFst(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a prefix index");
+        }
+        stateCount = buffer.getInt(8);
+        transitionCount = buffer.getInt(12);
+        nameCount = buffer.getInt(16);
+        levels = buffer.getInt(20);
+        counts = HEADER_BYTES;
+        offsets = counts + stateCount * Integer.BYTES;
+        labels = offsets + (stateCount + 1) * Integer.BYTES;
+        targets = labels + transitionCount * Character.BYTES;
+        outputs = targets + transitionCount * Integer.BYTES;
+        scores = outputs + transitionCount * Integer.BYTES;
+        nameOffsets = scores + nameCount * Integer.BYTES;
+        table = nameOffsets + (nameCount + 1) * Integer.BYTES;
+        names = table + levels * nameCount * Integer.BYTES;
+        if (names + buffer.getInt(24) != buffer.capacity()) {
+            throw new IOException("Truncated prefix index");
+        }
+    }
+
+    /** Number of names in the index. */
+    int size() {
+        return nameCount;
+    }
+
+    /** Number of states of the automaton. */
+    int stateCount() {
+        return stateCount;
+    }
+
+    /**
+     * Returns the full names of every key starting with prefix, in key order, like
+     * Trie.getPrefixes(prefix).
+     */
+    List<String> getPrefixes(String prefix) {
+        long range = range(prefix);
+        int first = (int) (range >>> 32);
+        int end = (int) range;
+        List<String> result = new ArrayList<>(end - first);
+        for (int i = first; i < end; i++) {
+            result.add(name(i));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the full names of the best keys starting with prefix, like
+     * Trie.getPrefixes(prefix, limit): highest score first, ties in key order.
+     * @param limit Maximum number of names to return.
+     */
+    List<String> getPrefixes(String prefix, int limit) {
+        long range = range(prefix);
+        int first = (int) (range >>> 32);
+        int end = (int) range;
+        List<String> result = new ArrayList<>();
+        if (first >= end || limit <= 0) {
+            return result;
+        }
+        /* Each candidate is the best ordinal of a range; taking it splits the range in two. */
+        PriorityQueue<int[]> candidates = new PriorityQueue<>((a, b) -> {
+            int sa = score(a[0]);
+            int sb = score(b[0]);
+            return sa != sb ? Integer.compare(sb, sa) : Integer.compare(a[0], b[0]);
+        });
+        candidates.add(new int[] {best(first, end), first, end});
+        while (result.size() < limit && !candidates.isEmpty()) {
+            int[] c = candidates.poll();
+            result.add(name(c[0]));
+            if (c[1] < c[0]) {
+                candidates.add(new int[] {best(c[1], c[0]), c[1], c[0]});
+            }
+            if (c[0] + 1 < c[2]) {
+                candidates.add(new int[] {best(c[0] + 1, c[2]), c[0] + 1, c[2]});
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Walks prefix through the automaton.
+     * @return The ordinals of the names starting with prefix, as first << 32 | end; empty
+     * if there are none.
+     */
+    private long range(String prefix) {
+        int state = 0;
+        int first = 0;
+        for (int i = 0; i < prefix.length(); i++) {
+            int t = transition(state, prefix.charAt(i));
+            if (t < 0) {
+                return 0;
+            }
+            first += buffer.getInt(outputs + t * Integer.BYTES);
+            state = buffer.getInt(targets + t * Integer.BYTES);
+        }
+        int end = first + buffer.getInt(counts + state * Integer.BYTES);
+        return (long) first << 32 | end;
+    }
+
+    /** The transition of state labelled c, or -1 if it has none. */
+    private int transition(int state, char c) {
+        int lo = buffer.getInt(offsets + state * Integer.BYTES);
+        int hi = buffer.getInt(offsets + (state + 1) * Integer.BYTES) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            char label = buffer.getChar(labels + mid * Character.BYTES);
+            if (label < c) {
+                lo = mid + 1;
+            } else if (label > c) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int score(int ordinal) {
+        return buffer.getInt(scores + ordinal * Integer.BYTES);
+    }
+
+    /** Ordinal of the best name in [from, to), which must not be empty. */
+    private int best(int from, int to) {
+        int level = 31 - Integer.numberOfLeadingZeros(to - from);
+        int a = tableEntry(level, from);
+        int b = tableEntry(level, to - (1 << level));
+        return better(score(a), a, score(b), b) ? a : b;
+    }
+
+    private int tableEntry(int level, int i) {
+        return buffer.getInt(table + (level * nameCount + i) * Integer.BYTES);
+    }
+
+    /** Whether ordinal a with score sa ranks before ordinal b with score sb. */
+    private static boolean better(int sa, int a, int sb, int b) {
+        return sa != sb ? sa > sb : a < b;
+    }
+
+    private String name(int ordinal) {
+        int from = buffer.getInt(nameOffsets + ordinal * Integer.BYTES);
+        int to = buffer.getInt(nameOffsets + (ordinal + 1) * Integer.BYTES);
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(names + from + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Attaches the index for dbPath to g, if there is one that is at least as new as the
+     * OSM file.
+     * @param g The loaded graph.
+     * @param dbPath Path to the OSM file g was loaded from.
+     */
+    static void attach(GraphDB g, String dbPath) {
+        File file = new File(dbPath + SUFFIX);
+        if (!file.isFile() || file.lastModified() < new File(dbPath).lastModified()) {
+            return;
+        }
+        try {
+            g.prefixIndex = read(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Maps an index written by write().
+     * @throws IOException If the file cannot be read or has the wrong format.
+     */
+    static PrefixFst read(File file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            return new PrefixFst(buffer);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated prefix index: " + file);
+        }
+    }
+
+    /**
+     * Compiles the prefix trie of g into an index, scoring every name by the node count of
+     * its location, and writes it to a file, going through a temporary file like
+     * GraphSnapshot.
+     * @throws IOException If the file cannot be written.
+     */
+    static void write(GraphDB g, File file) throws IOException {
+        Map<String, String> entries = new TreeMap<>(g.prefixTrie().entries());
+        Map<String, Integer> scores = new HashMap<>();
+        for (String name : entries.values()) {
+            LocationObject location = (LocationObject) g.locations.get(name);
+            scores.put(name, location == null ? 0 : location.count);
+        }
+        write(entries, scores, file);
+    }
+
+    /**
+     * Compiles keys to names into an index and writes it to a file.
+     * @param entries Cleaned names mapped to full names.
+     * @param scores Score of every full name; higher ranks first.
+     * @throws IOException If the file cannot be written.
+     */
+    static void write(Map<String, String> entries, Map<String, Integer> scores, File file)
+            throws IOException {
+        List<String> keys = new ArrayList<>(entries.keySet());
+        keys.sort(null);
+        Builder builder = new Builder();
+        for (String key : keys) {
+            builder.add(key);
+        }
+        List<Builder.State> states = builder.finish();
+
+        int n = keys.size();
+        int[] score = new int[n];
+        byte[][] nameBytes = new byte[n][];
+        int totalBytes = 0;
+        for (int i = 0; i < n; i++) {
+            String name = entries.get(keys.get(i));
+            Integer s = scores.get(name);
+            score[i] = s == null ? 0 : s;
+            nameBytes[i] = name.getBytes(StandardCharsets.UTF_8);
+            totalBytes += nameBytes[i].length;
+        }
+        int[][] sparse = sparseTable(score);
+        int transitionCount = 0;
+        for (Builder.State state : states) {
+            transitionCount += state.labels.size();
+        }
+
+        Path tmp = GraphSnapshot.createTempFile(file);
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(states.size());
+                out.writeInt(transitionCount);
+                out.writeInt(n);
+                out.writeInt(sparse.length);
+                out.writeInt(totalBytes);
+                for (Builder.State state : states) {
+                    out.writeInt(state.count);
+                }
+                int offset = 0;
+                for (Builder.State state : states) {
+                    out.writeInt(offset);
+                    offset += state.labels.size();
+                }
+                out.writeInt(offset);
+                for (Builder.State state : states) {
+                    for (char label : state.labels) {
+                        out.writeChar(label);
+                    }
+                }
+                for (Builder.State state : states) {
+                    for (Builder.State target : state.targets) {
+                        out.writeInt(target.number);
+                    }
+                }
+                for (Builder.State state : states) {
+                    int before = state.isFinal ? 1 : 0;
+                    for (Builder.State target : state.targets) {
+                        out.writeInt(before);
+                        before += target.count;
+                    }
+                }
+                for (int s : score) {
+                    out.writeInt(s);
+                }
+                offset = 0;
+                for (byte[] bytes : nameBytes) {
+                    out.writeInt(offset);
+                    offset += bytes.length;
+                }
+                out.writeInt(offset);
+                for (int[] level : sparse) {
+                    for (int best : level) {
+                        out.writeInt(best);
+                    }
+                }
+                for (byte[] bytes : nameBytes) {
+                    out.write(bytes);
+                }
+            }
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /** Level j holds the ordinal of the best score in [i, i + 2^j), for i up to n - 2^j. */
+    private static int[][] sparseTable(int[] score) {
+        int n = score.length;
+        int levels = n == 0 ? 0 : 32 - Integer.numberOfLeadingZeros(n);
+        int[][] sparse = new int[levels][n];
+        for (int i = 0; i < n; i++) {
+            sparse[0][i] = i;
+        }
+        for (int j = 1; j < levels; j++) {
+            int half = 1 << (j - 1);
+            for (int i = 0; i + (1 << j) <= n; i++) {
+                int a = sparse[j - 1][i];
+                int b = sparse[j - 1][i + half];
+                sparse[j][i] = better(score[a], a, score[b], b) ? a : b;
+            }
+        }
+        return sparse;
+    }
+
+    /**
+     * Builds the minimal automaton of keys added in sorted order, minimizing each branch as
+     * soon as no later key can extend it (Daciuk et al., incremental construction from
+     * sorted data). Equivalent states are found through a register keyed by their
+     * finality and outgoing transitions, whose targets are registered already.
+     */
+    private static class Builder {
+
+        static class State {
+            final List<Character> labels = new ArrayList<>();
+            final List<State> targets = new ArrayList<>();
+            boolean isFinal;
+            /* names accepted from this state, or -1 until counted */
+            int count = -1;
+            /* register id, or -1 until registered */
+            int id = -1;
+            /* position in the file, or -1 until numbered */
+            int number = -1;
+
+            State last() {
+                return targets.get(targets.size() - 1);
+            }
+
+            String signature() {
+                StringBuilder s = new StringBuilder(isFinal ? "1" : "0");
+                for (int i = 0; i < labels.size(); i++) {
+                    s.append(labels.get(i)).append(targets.get(i).id).append(',');
+                }
+                return s.toString();
+            }
+        }
+
+        private final State root = new State();
+        private final Map<String, State> register = new HashMap<>();
+        private String previous = null;
+
+        void add(String key) {
+            int common = 0;
+            if (previous != null) {
+                int max = Math.min(previous.length(), key.length());
+                while (common < max && previous.charAt(common) == key.charAt(common)) {
+                    common++;
+                }
+            }
+            State state = root;
+            for (int i = 0; i < common; i++) {
+                state = state.last();
+            }
+            if (!state.targets.isEmpty()) {
+                replaceOrRegister(state);
+            }
+            for (int i = common; i < key.length(); i++) {
+                State next = new State();
+                state.labels.add(key.charAt(i));
+                state.targets.add(next);
+                state = next;
+            }
+            state.isFinal = true;
+            previous = key;
+        }
+
+        /** Minimizes the last branch of state, replacing it by an equivalent state if any. */
+        private void replaceOrRegister(State state) {
+            State child = state.last();
+            if (!child.targets.isEmpty()) {
+                replaceOrRegister(child);
+            }
+            State q = register.get(child.signature());
+            if (q != null) {
+                state.targets.set(state.targets.size() - 1, q);
+            } else {
+                child.id = register.size();
+                register.put(child.signature(), child);
+            }
+        }
+
+        /**
+         * Minimizes what is left, counts the names accepted from every state and numbers
+         * the states, the start state first.
+         * @return The states in number order.
+         */
+        List<State> finish() {
+            if (!root.targets.isEmpty()) {
+                replaceOrRegister(root);
+            }
+            List<State> states = new ArrayList<>();
+            root.number = 0;
+            states.add(root);
+            for (int i = 0; i < states.size(); i++) {
+                for (State target : states.get(i).targets) {
+                    if (target.number < 0) {
+                        target.number = states.size();
+                        states.add(target);
+                    }
+                }
+            }
+            for (State state : states) {
+                count(state);
+            }
+            return states;
+        }
+
+        private static int count(State state) {
+            if (state.count < 0) {
+                int count = state.isFinal ? 1 : 0;
+                for (State target : state.targets) {
+                    count += count(target);
+                }
+                state.count = count;
+            }
+            return state.count;
+        }
+    }
+
+    /**
+     * Offline preprocessing: builds the index for the given OSM file and writes it next to
+     * it.
+     * @param args The path of the OSM file.
+     */
+    public static void main(String[] args) throws IOException {
+        String dbPath = args[0];
+        GraphDB g = GraphDB.load(dbPath);
+        long start = System.currentTimeMillis();
+        File file = new File(dbPath + SUFFIX);
+        write(g, file);
+        PrefixFst index = read(file);
+        System.out.println("Indexed " + index.size() + " names in " + file.length()
+                + " bytes in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+}
@@ -0,0 +1,87 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool of TYPE_INT_RGB output images for rastering, keyed by size in tiles.
+ *
+ * A viewport only ever produces a handful of tile grid sizes, so instead of allocating a
+ * fresh multi-megabyte image per raster request, MapServer borrows one here and gives it
+ * back once the PNG has been written. Borrowed images keep the pixels of their previous
+ * use; callers are expected to overwrite every pixel. Idle images are bounded by maxBytes,
+ * dropping the grid sizes that were released least recently first.
+ */
+class RasterBufferPool {
+
+    private final int tileSize;
+    private final long maxBytes;
+    /** Access-ordered, so iteration starts at the least recently used grid size. */
+    private final LinkedHashMap<Long, ArrayDeque<BufferedImage>> idle =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long idleBytes = 0;
+
+    /**
+     * @param tileSize Width and height of one tile in pixels.
+     * @param maxBytes Budget for the pixel data of idle images.
+     */
+    RasterBufferPool(int tileSize, long maxBytes) {
+        this.tileSize = tileSize;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Borrows an image of numHorizTiles x numVertTiles tiles. */
+    BufferedImage acquire(int numHorizTiles, int numVertTiles) {
+        synchronized (idle) {
+            ArrayDeque<BufferedImage> images = idle.get(key(numHorizTiles, numVertTiles));
+            if (images != null && !images.isEmpty()) {
+                BufferedImage img = images.pop();
+                idleBytes -= TileCache.sizeOf(img);
+                return img;
+            }
+        }
+        return new BufferedImage(numHorizTiles * tileSize, numVertTiles * tileSize,
+                BufferedImage.TYPE_INT_RGB);
+    }
+
+    /** Returns an image obtained from acquire() once nothing refers to it any more. */
+    void release(BufferedImage img) {
+        long size = TileCache.sizeOf(img);
+        if (size > maxBytes) {
+            return;
+        }
+        long key = key(img.getWidth() / tileSize, img.getHeight() / tileSize);
+        synchronized (idle) {
+            idle.computeIfAbsent(key, k -> new ArrayDeque<>()).push(img);
+            idleBytes += size;
+            Iterator<ArrayDeque<BufferedImage>> it = idle.values().iterator();
+            while (idleBytes > maxBytes && it.hasNext()) {
+                ArrayDeque<BufferedImage> images = it.next();
+                while (idleBytes > maxBytes && !images.isEmpty()) {
+                    idleBytes -= TileCache.sizeOf(images.removeLast());
+                }
+                if (images.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /** Bytes of pixel data held by idle images. */
+    long idleBytes() {
+        synchronized (idle) {
+            return idleBytes;
+        }
+    }
+
+    /** The backing pixel array of a TYPE_INT_RGB image, one int per pixel, row by row. */
+    static int[] pixels(BufferedImage img) {
+        return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+    }
+
+    private static long key(int numHorizTiles, int numVertTiles) {
+        return ((long) numHorizTiles << 32) | numVertTiles;
+    }
+}
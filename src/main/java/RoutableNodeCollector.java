@@ -0,0 +1,81 @@
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.util.Arrays;
+
+/**
+ * First pass of two-pass OSM ingestion: collects the ids of all nodes referenced by ways
+ * that GraphBuildingHandler would accept, without materializing any nodes. The ids are
+ * kept in primitive arrays, so the pass costs 8 bytes per way reference instead of a Node
+ * per node in the file. GraphBuildingHandler then only keeps those nodes (and named
+ * locations) on the second pass.
+ */
+public class RoutableNodeCollector extends DefaultHandler {
+    private long[] routable = new long[1024];
+    private int routableCount = 0;
+    private long[] wayRefs = new long[64];
+    private int wayRefCount = 0;
+    private boolean inWay = false;
+    private boolean validWay = false;
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes)
+            throws SAXException {
+        if (qName.equals("way")) {
+            inWay = true;
+            validWay = false;
+            wayRefCount = 0;
+        } else if (inWay && qName.equals("nd")) {
+            if (wayRefCount == wayRefs.length) {
+                wayRefs = Arrays.copyOf(wayRefs, 2 * wayRefCount);
+            }
+            wayRefs[wayRefCount] = Long.parseLong(attributes.getValue("ref"));
+            wayRefCount++;
+        } else if (inWay && qName.equals("tag") && "highway".equals(attributes.getValue("k"))) {
+            if (GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES.contains(attributes.getValue("v"))
+                    && wayRefCount > 1) {
+                validWay = true;
+            }
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (qName.equals("way")) {
+            if (validWay) {
+                if (routableCount + wayRefCount > routable.length) {
+                    routable = Arrays.copyOf(routable,
+                            Math.max(2 * routable.length, routableCount + wayRefCount));
+                }
+                System.arraycopy(wayRefs, 0, routable, routableCount, wayRefCount);
+                routableCount += wayRefCount;
+            }
+            inWay = false;
+            validWay = false;
+        }
+    }
+
+    /**
+     * Returns the collected node ids, sorted and without duplicates, for binary search.
+     */
+    long[] routableIds() {
+        return sortedUnique(routable, routableCount);
+    }
+
+    /**
+     * Returns the first count ids, sorted and without duplicates.
+     */
+    static long[] sortedUnique(long[] ids, int count) {
+        long[] sorted = Arrays.copyOf(ids, count);
+        Arrays.sort(sorted);
+        int unique = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (unique == 0 || sorted[i] != sorted[unique - 1]) {
+                sorted[unique] = sorted[i];
+                unique++;
+            }
+        }
+        return Arrays.copyOf(sorted, unique);
+    }
+}
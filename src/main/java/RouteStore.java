@@ -0,0 +1,117 @@
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.LongSupplier;
+
+/**
+ * Thread-safe store of the current route of each client, keyed by a route token that
+ * /route hands out and /raster and /clear_route send back. Tokens are always generated
+ * by put, so a client cannot choose one, or overwrite the route of another client.
+ *
+ * Entries expire ttlMillis after they were last used. The routes are kept in an
+ * access-ordered map behind one lock, so the least recently used entry is always the
+ * eldest: expired entries are dropped from that end, and once the store holds maxEntries
+ * routes each new one evicts the eldest. Memory thus stays bounded no matter how many
+ * clients come and go at once.
+ */
+class RouteStore {
+
+    private static class Entry {
+        final List<Long> route;
+        long lastUsed;
+
+        Entry(List<Long> route, long lastUsed) {
+            this.route = route;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    /** Routes by token, least recently used first; every access holds its lock. */
+    private final LinkedHashMap<String, Entry> routes;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+
+    RouteStore(int maxEntries, long ttlMillis) {
+        this(maxEntries, ttlMillis, System::currentTimeMillis);
+    }
+
+    RouteStore(int maxEntries, long ttlMillis, LongSupplier clock) {
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        routes = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /** Returns a fresh, unguessable route token. */
+    private static String newToken() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Stores route under a new token.
+     * @param route Node ids of the route; stored as an unmodifiable list.
+     * @return The token the client has to send back to use the route.
+     */
+    String put(List<Long> route) {
+        String token = newToken();
+        long now = clock.getAsLong();
+        synchronized (routes) {
+            dropExpired(now);
+            routes.put(token, new Entry(Collections.unmodifiableList(route), now));
+        }
+        return token;
+    }
+
+    /**
+     * Returns the route stored for token, or an empty list if there is none or it expired.
+     * @param token Route token of the client; may be null.
+     */
+    List<Long> get(String token) {
+        if (token == null) {
+            return Collections.emptyList();
+        }
+        long now = clock.getAsLong();
+        synchronized (routes) {
+            Entry entry = routes.get(token);
+            if (entry == null) {
+                return Collections.emptyList();
+            }
+            if (now - entry.lastUsed > ttlMillis) {
+                routes.remove(token);
+                return Collections.emptyList();
+            }
+            entry.lastUsed = now;
+            return entry.route;
+        }
+    }
+
+    /** Forgets the route of token, if any. */
+    void remove(String token) {
+        if (token != null) {
+            synchronized (routes) {
+                routes.remove(token);
+            }
+        }
+    }
+
+    int size() {
+        synchronized (routes) {
+            return routes.size();
+        }
+    }
+
+    /** Drops the expired entries, which are all at the least recently used end. */
+    private void dropExpired(long now) {
+        Iterator<Entry> it = routes.values().iterator();
+        while (it.hasNext() && now - it.next().lastUsed > ttlMillis) {
+            it.remove();
+        }
+    }
+}
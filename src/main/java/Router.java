@@ -1,5 +1,3 @@
-import sun.security.provider.certpath.Vertex;
-
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -14,106 +12,105 @@ import java.util.regex.Pattern;
  */
 public class Router {
 
-
-    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
-                                          double destlon, double destlat) {
+    /** The search algorithms shortestPath can use. */
+    public enum SearchMode {
+        /** Unidirectional A*. */
+        ASTAR,
+        /** A* over the overlay in which chains of degree-2 vertices are single edges. */
+        CHAINS,
+        /** Bidirectional A* with average potentials. */
+        BIDIRECTIONAL,
+        /** Contraction hierarchy query; falls back to A* if the graph has no hierarchy. */
+        CONTRACTION_HIERARCHY;
 
         /**
-         * Return a List of longs representing the shortest path from the node
-         * closest to a start location and the node closest to the destination
-         * location.
-         * @param g The graph to use.
-         * @param stlon The longitude of the start location.
-         * @param stlat The latitude of the start location.
-         * @param destlon The longitude of the destination location.
-         * @param destlat The latitude of the destination location.
-         * @return A list of node id's in the order visited on the shortest path.
+         * Parses a mode name case-insensitively, e.g. "bidirectional".
+         * @throws IllegalArgumentException If name is not a mode.
          */
+        public static SearchMode parse(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
 
-        long startID = g.closest(stlon, stlat);
-        long destinationID = g.closest(destlon, destlat);
-
-        Map<Long, Double> distanceTo = new HashMap<>();
-        Map<Long, Long> edges = new HashMap<>();
-        Set<Long> marked = new HashSet<>();
-        List<Long> path = new ArrayList<>();
-
-
-        class NodeComparator implements Comparator<Node>{
+    /** Mode used when none is given; set with -Drouter.mode=bidirectional. */
+    private static final SearchMode DEFAULT_MODE =
+            SearchMode.parse(System.getProperty("router.mode", "astar"));
+
+    /** Reusable A* state, one per server thread. */
+    private static final ThreadLocal<AStarSearch> SEARCH = ThreadLocal.withInitial(AStarSearch::new);
+    /** Reusable chain overlay A* state, one per server thread. */
+    private static final ThreadLocal<ChainAStarSearch> CHAIN_SEARCH =
+            ThreadLocal.withInitial(ChainAStarSearch::new);
+    /** Reusable bidirectional A* state, one per server thread. */
+    private static final ThreadLocal<BidirectionalAStarSearch> BIDIRECTIONAL_SEARCH =
+            ThreadLocal.withInitial(BidirectionalAStarSearch::new);
+    /** Reusable contraction hierarchy query state, one per server thread. */
+    private static final ThreadLocal<ContractionHierarchySearch> CH_SEARCH =
+            ThreadLocal.withInitial(ContractionHierarchySearch::new);
 
-            @Override
-            public int compare(Node node1, Node node2){
-                double heuristic1 = distanceTo.get(node1.getId()) + g.distance(node1.getId(), destinationID);
-                double heuristic2 = distanceTo.get(node2.getId()) + g.distance(node2.getId(), destinationID);
+    /**
+     * Return a List of longs representing the shortest path from the node
+     * closest to a start location and the node closest to the destination
+     * location.
+     * @param g The graph to use.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @return A list of node id's in the order visited on the shortest path.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, DEFAULT_MODE);
+    }
 
-                if(heuristic1 < heuristic2){
-                    return -1;
-                } else if(heuristic1 > heuristic2){
-                    return 1;
-                }
-                return 0;
-            }
+    /**
+     * Same as shortestPath above, using the given search algorithm.
+     * @param mode The search algorithm to use, or null for the configured default.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat, SearchMode mode) {
+        if (mode == null) {
+            mode = DEFAULT_MODE;
         }
-
-        PriorityQueue<Node> fringe = new PriorityQueue<>(new NodeComparator());
-        Node currentNode = g.getNode(startID);
-        long currentNodeID = startID;
-        fringe.add(currentNode);
-        distanceTo.put(currentNodeID, 0.0);
-        edges.put(currentNodeID, 0L);
-        boolean reachedDestination = false;
-
-        while(!reachedDestination){
-            currentNode = fringe.poll();
-            currentNodeID = currentNode.getId();
-
-            if(marked.contains(currentNodeID)){
-                continue;
-
-            }else if(currentNodeID == destinationID){
-                reachedDestination = true;
-                continue;
-
-            } else{
-                for(long adj: g.adjacent(currentNodeID)){
-                    if(distanceTo.containsKey(adj)){ //edit
-                        if(distanceTo.get(adj) > distanceTo.get(currentNodeID) + g.distance(currentNodeID, adj)){
-                            distanceTo.replace(adj, distanceTo.get(currentNodeID) + g.distance(currentNodeID, adj));
-                            edges.replace(adj, currentNodeID);
-                        }
-
-                    } else{
-                        distanceTo.put(adj, distanceTo.get(currentNodeID) + g.distance(currentNodeID, adj));
-                        edges.put(adj, currentNodeID);
-                    }
-                    fringe.add(g.getNode(adj));
-                    //edges.put(adj, currentNodeID);
-                }
-            }
-            marked.add(currentNodeID);
+        int start = g.indexOf(g.closest(stlon, stlat));
+        int destination = g.indexOf(g.closest(destlon, destlat));
+        if (mode == SearchMode.BIDIRECTIONAL) {
+            return BIDIRECTIONAL_SEARCH.get().shortestPath(g, start, destination);
         }
-
-        long idToAdd = destinationID;
-
-        while(idToAdd!= startID){
-            path.add(idToAdd);
-            idToAdd = edges.get(idToAdd);
+        if (mode == SearchMode.CHAINS && g.chains != null) {
+            return CHAIN_SEARCH.get().shortestPath(g, start, destination);
         }
-
-        path.add(idToAdd);
-        Collections.reverse(path);
-        return path;
+        if (mode == SearchMode.CONTRACTION_HIERARCHY && g.hierarchy != null) {
+            return CH_SEARCH.get().shortestPath(g.hierarchy, start, destination);
         }
+        return SEARCH.get().shortestPath(g, start, destination);
+    }
 
 
     /**
      * bearing helper for navigation
-     *
+     * @param v Vertex index of the first node.
+     * @param w Vertex index of the second node.
+     */
+
+    public static String bearingHelper(int v, int w, GraphDB g){
+        return bearingHelper(GraphDB.bearing(g.lonOf(v), g.latOf(v), g.lonOf(w), g.latOf(w)));
+    }
+
+    /**
+     * bearing helper for navigation, for callers that still hold Nodes; routeDirections
+     * uses the vertex index overload.
      */
 
     public static String bearingHelper(Node node1, Node node2, GraphDB g){
+        return bearingHelper(GraphDB.bearing(node1.getLon(), node1.getLat(),
+                node2.getLon(), node2.getLat()));
+    }
+
+    /** Direction to take for a bearing between two nodes, in degrees. */
+    private static String bearingHelper(double bearingDigit){
 
-        double bearingDigit = g.bearing(node1.getId(), node2.getId());
         double absBearing = Math.abs(bearingDigit);
 
         if(absBearing <= 15.0){
@@ -157,49 +154,53 @@ public class Router {
     public static List<NavigationDirection> routeDirections(GraphDB g, List<Long> route) {
 
         List<NavigationDirection> directions = new ArrayList<>();
+        if (route.size() < 2) {
+            return directions;
+        }
 
-        // set direction, way and distance
+        // set direction, way and distance; ways are compared by their way name ids
         String direction = NavigationDirection.DIRECTIONS[0]; // start from int to string
-        Node currentNode = g.getNode(route.get(0));
-        Node nextNode;
-        String way = currentNode.sharedWays(g.getNode(route.get(1))); //FIXME may need to loop to find a correct way name
+        int current = g.indexOf(route.get(0));
+        int way = wayOf(g, g.edgeBetween(current, g.indexOf(route.get(1))));
         double distance = 0.0;
 
         for(int i = 1; i < route.size(); i++){
 
-            // add distance if next way is same as current
-            nextNode = g.getNode(route.get(i));
+            int next = g.indexOf(route.get(i));
+            int edge = g.edgeBetween(current, next);
+            distance = distance + (edge >= 0 ? g.edgeWeight(edge)
+                    : g.distance(route.get(i - 1), route.get(i)));
 
             /*
-            next way is the same so update the distance
+            next way is different, so return a navdir object for the current way, then
+            set direction, reset distance, and set new way
              */
-            if(nextNode.hasWayName(way)){
-                distance = distance + g.distance(currentNode.getId(), nextNode.getId());
-            } else {
-                /*
-                next node is in different way so need to return a navdir object for current node then
-                set direction, reset distance, and set new way
-                 */
-                distance = distance + g.distance(currentNode.getId(), nextNode.getId());
-                String navigation = direction + " on " + way + " and continue for " + distance + " miles.";
-                directions.add(NavigationDirection.fromString(navigation));
-
-                /*
-                set new direction and way and reset distance to zero, may need helper for bearing.
-                 */
-
-                direction = bearingHelper(nextNode, currentNode, g);
-                way = currentNode.sharedWays(nextNode);
+            int nextWay = wayOf(g, edge);
+            if(nextWay != way){
+                directions.add(direction(direction, g, way, distance));
+                direction = bearingHelper(next, current, g);
+                way = nextWay;
                 distance = 0.0;
             }
-            currentNode = nextNode;
+            current = next;
         }
 
-        String navigation = direction + " on " + way + " and continue for " + distance + " miles.";
-        directions.add(NavigationDirection.fromString(navigation));
+        directions.add(direction(direction, g, way, distance));
         return directions;
     }
 
+    /** Way name id of edge e, or -1 if there is no such edge. */
+    private static int wayOf(GraphDB g, int e) {
+        return e >= 0 ? g.edgeWay(e) : -1;
+    }
+
+    private static NavigationDirection direction(String direction, GraphDB g, int way,
+                                                 double distance) {
+        String name = way >= 0 ? g.wayName(way) : NavigationDirection.UNKNOWN_ROAD;
+        String navigation = direction + " on " + name + " and continue for " + distance + " miles.";
+        return NavigationDirection.fromString(navigation);
+    }
+
 
     /**
      * Class to represent a navigation direction, which consists of 3 attributes:
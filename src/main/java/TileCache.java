@@ -0,0 +1,164 @@
+import javax.imageio.ImageIO;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory cache of decoded map tiles, keyed by the file names produced by
+ * Rasterer.getImages (e.g. "d3_x2_y5.png").
+ *
+ * Tiles are evicted least-recently-used first once the decoded pixel data exceeds maxBytes.
+ * Tiles at depth pinnedDepth or shallower are kept in a separate map and never evicted,
+ * since almost every viewport hits them. A tile that is requested by two threads at once
+ * may be decoded twice; the second copy simply replaces the first.
+ *
+ * Tiles are stored as TYPE_INT_RGB, whatever their PNG encoding, so MapServer can copy
+ * their pixel rows straight into the output image.
+ */
+class TileCache {
+
+    private final String imgRoot;
+    private final long maxBytes;
+    private final int pinnedDepth;
+
+    private final Map<String, BufferedImage> pinned = new ConcurrentHashMap<>();
+    /** Access-ordered, so iteration starts at the least recently used tile. */
+    private final LinkedHashMap<String, BufferedImage> lru = new LinkedHashMap<>(64, 0.75f, true);
+    private long lruBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param imgRoot Folder the tile images are read from.
+     * @param maxBytes Budget for decoded, unpinned tiles.
+     * @param pinnedDepth Tiles at this depth or shallower are never evicted; -1 pins nothing.
+     */
+    TileCache(String imgRoot, long maxBytes, int pinnedDepth) {
+        this.imgRoot = imgRoot;
+        this.maxBytes = maxBytes;
+        this.pinnedDepth = pinnedDepth;
+    }
+
+    /**
+     * Returns the decoded tile, reading it from disk on a miss.
+     * @param name Tile file name, relative to imgRoot.
+     * @return The decoded image, or null if it could not be read.
+     */
+    BufferedImage get(String name) {
+        BufferedImage tile = pinned.get(name);
+        if (tile == null) {
+            synchronized (lru) {
+                tile = lru.get(name);
+            }
+        }
+        if (tile != null) {
+            hits.incrementAndGet();
+            return tile;
+        }
+
+        misses.incrementAndGet();
+        tile = decode(name);
+        if (tile != null) {
+            put(name, tile);
+        }
+        return tile;
+    }
+
+    private void put(String name, BufferedImage tile) {
+        if (depthOf(name) <= pinnedDepth) {
+            pinned.put(name, tile);
+            return;
+        }
+        synchronized (lru) {
+            BufferedImage old = lru.put(name, tile);
+            if (old != null) {
+                lruBytes -= sizeOf(old);
+            }
+            lruBytes += sizeOf(tile);
+            Iterator<Map.Entry<String, BufferedImage>> it = lru.entrySet().iterator();
+            while (lruBytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, BufferedImage> eldest = it.next();
+                if (eldest.getKey().equals(name)) {
+                    break;
+                }
+                lruBytes -= sizeOf(eldest.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    private BufferedImage decode(String name) {
+        try {
+            BufferedImage tile = ImageIO.read(new File(imgRoot + name));
+            return tile == null ? null : toIntRgb(tile);
+        } catch (IOException | NullPointerException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Converts a tile to TYPE_INT_RGB by drawing it onto black, which is what drawing it
+     * into a fresh TYPE_INT_RGB output image used to do.
+     */
+    static BufferedImage toIntRgb(BufferedImage tile) {
+        if (tile.getType() == BufferedImage.TYPE_INT_RGB) {
+            return tile;
+        }
+        BufferedImage rgb = new BufferedImage(tile.getWidth(), tile.getHeight(),
+                BufferedImage.TYPE_INT_RGB);
+        Graphics graphic = rgb.getGraphics();
+        graphic.drawImage(tile, 0, 0, null);
+        graphic.dispose();
+        return rgb;
+    }
+
+    /** Approximate heap size of a decoded tile, assuming 4 bytes per pixel. */
+    static long sizeOf(BufferedImage tile) {
+        return 4L * tile.getWidth() * tile.getHeight();
+    }
+
+    /** Parses the depth out of a "d{depth}_x{x}_y{y}.png" name; unknown names get MAX_VALUE. */
+    static int depthOf(String name) {
+        int end = name.indexOf('_');
+        if (!name.startsWith("d") || end < 2) {
+            return Integer.MAX_VALUE;
+        }
+        try {
+            return Integer.parseInt(name.substring(1, end));
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    /** Drops every cached tile, pinned ones included. */
+    void clear() {
+        synchronized (lru) {
+            lru.clear();
+            lruBytes = 0;
+            pinned.clear();
+        }
+    }
+
+    /** Number of tiles currently cached, pinned ones included. */
+    int size() {
+        synchronized (lru) {
+            return lru.size() + pinned.size();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Inverted index from every word of every location name to the locations containing it,
+ * so that a search can match a name by any of its words, not just the first.
+ *
+ * Locations get dense ids in rank order: names shared by the most OSM nodes first, ties
+ * by name. Each word keeps the sorted ids of the names containing it as a posting list,
+ * stored as gaps between consecutive ids in a variable-length byte encoding (7 bits per
+ * byte, high bit set on all but the last byte), all in one byte array. Small gaps, which
+ * common words have, take one byte.
+ *
+ * A query matches the names containing all of its words, the last of which may be
+ * unfinished and matches every word it starts. The posting lists are intersected by
+ * leapfrogging, shortest first, and since ids are in rank order the best matches come
+ * out first, so the intersection stops as soon as it has limit of them.
+ */
+class TokenIndex {
+
+    private static final int NO_MORE = Integer.MAX_VALUE;
+
+    /** Full names by location id. */
+    private final String[] names;
+    /** Words in sorted order, and where their postings start and end in postings. */
+    private final String[] tokens;
+    private final int[] offsets;
+    private final int[] counts;
+    private final byte[] postings;
+
+    private TokenIndex(String[] names, String[] tokens, int[] offsets, int[] counts,
+                       byte[] postings) {
+        this.names = names;
+        this.tokens = tokens;
+        this.offsets = offsets;
+        this.counts = counts;
+        this.postings = postings;
+    }
+
+    /**
+     * Indexes the locations of a graph.
+     * @param locations GraphDB.locations: full names mapped to LocationObjects.
+     */
+    static TokenIndex build(Collection<Object> locations) {
+        List<LocationObject> ranked = new ArrayList<>();
+        for (Object o : locations) {
+            ranked.add((LocationObject) o);
+        }
+        ranked.sort((a, b) -> a.count != b.count ? Integer.compare(b.count, a.count)
+                : a.name.compareTo(b.name));
+
+        String[] names = new String[ranked.size()];
+        TreeMap<String, List<Integer>> ids = new TreeMap<>();
+        for (int id = 0; id < names.length; id++) {
+            names[id] = ranked.get(id).name;
+            for (String token : tokenize(names[id])) {
+                ids.computeIfAbsent(token, k -> new ArrayList<>()).add(id);
+            }
+        }
+
+        String[] tokens = ids.keySet().toArray(new String[0]);
+        int[] offsets = new int[tokens.length + 1];
+        int[] counts = new int[tokens.length];
+        ByteArrayOutputStream postings = new ByteArrayOutputStream();
+        for (int t = 0; t < tokens.length; t++) {
+            offsets[t] = postings.size();
+            List<Integer> list = ids.get(tokens[t]);
+            counts[t] = list.size();
+            int previous = -1;
+            for (int id : list) {
+                writeVarint(postings, id - previous);
+                previous = id;
+            }
+        }
+        offsets[tokens.length] = postings.size();
+        return new TokenIndex(names, tokens, offsets, counts, postings.toByteArray());
+    }
+
+    /** The distinct words of a name, cleaned as by GraphDB.cleanString. */
+    static Set<String> tokenize(String name) {
+        Set<String> tokens = new LinkedHashSet<>();
+        for (String token : GraphDB.cleanString(name).split(" ")) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /** Number of locations indexed. */
+    int size() {
+        return names.length;
+    }
+
+    /** Bytes used by the posting lists. */
+    int postingBytes() {
+        return postings.length;
+    }
+
+    /**
+     * Returns the full names containing every word of query, best first. The last word of
+     * the query also matches longer words it is a prefix of.
+     * @param query Any text; it is cleaned and split into words like the names.
+     * @param limit Maximum number of names to return.
+     */
+    List<String> search(String query, int limit) {
+        List<String> result = new ArrayList<>();
+        List<String> words = new ArrayList<>(tokenize(query));
+        if (words.isEmpty() || limit <= 0) {
+            return result;
+        }
+
+        List<DocIterator> lists = new ArrayList<>();
+        String last = words.remove(words.size() - 1);
+        for (String word : words) {
+            int t = Arrays.binarySearch(tokens, word);
+            if (t < 0) {
+                return result;
+            }
+            lists.add(new PostingIterator(t));
+        }
+        int from = lowerBound(last);
+        int to = from;
+        while (to < tokens.length && tokens[to].startsWith(last)) {
+            to++;
+        }
+        if (from == to) {
+            return result;
+        } else if (to - from == 1) {
+            lists.add(new PostingIterator(from));
+        } else {
+            lists.add(new UnionIterator(from, to));
+        }
+        lists.sort((a, b) -> Integer.compare(a.cost(), b.cost()));
+
+        int doc = 0;
+        while (result.size() < limit) {
+            int candidate = lists.get(0).advance(doc);
+            if (candidate == NO_MORE) {
+                break;
+            }
+            doc = candidate;
+            for (int i = 1; i < lists.size() && doc == candidate; i++) {
+                doc = lists.get(i).advance(candidate);
+            }
+            if (doc == candidate) {
+                result.add(names[candidate]);
+                doc++;
+            }
+        }
+        return result;
+    }
+
+    /** Index of the first token that is not smaller than word. */
+    private int lowerBound(String word) {
+        int t = Arrays.binarySearch(tokens, word);
+        return t >= 0 ? t : -t - 1;
+    }
+
+    /** Sorted location ids, walked forwards only. */
+    private interface DocIterator {
+        /** Returns the first id not below target, or NO_MORE if there is none. */
+        int advance(int target);
+
+        /** Rough number of ids, to intersect the shortest lists first. */
+        int cost();
+    }
+
+    /** Decodes the posting list of one token as it goes. */
+    private class PostingIterator implements DocIterator {
+        private final int token;
+        private int position;
+        private int current = -1;
+
+        PostingIterator(int token) {
+            this.token = token;
+            position = offsets[token];
+        }
+
+        @Override
+        public int advance(int target) {
+            int end = offsets[token + 1];
+            while (current < target) {
+                if (position >= end) {
+                    current = NO_MORE;
+                    break;
+                }
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = postings[position++];
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                current += gap;
+            }
+            return current;
+        }
+
+        @Override
+        public int cost() {
+            return counts[token];
+        }
+    }
+
+    /**
+     * Ids of any of the tokens in [from, to), for an unfinished last word. Their posting
+     * lists are merged lazily through a heap ordered by current id, so only as much of
+     * each list is decoded as the intersection asks for.
+     */
+    private class UnionIterator implements DocIterator {
+        private final PriorityQueue<PostingIterator> heap;
+        private int cost = 0;
+
+        UnionIterator(int from, int to) {
+            heap = new PriorityQueue<>(to - from, (a, b) -> Integer.compare(a.current, b.current));
+            for (int t = from; t < to; t++) {
+                heap.add(new PostingIterator(t));
+                cost += counts[t];
+            }
+        }
+
+        @Override
+        public int advance(int target) {
+            while (!heap.isEmpty() && heap.peek().current < target) {
+                PostingIterator it = heap.poll();
+                if (it.advance(target) != NO_MORE) {
+                    heap.add(it);
+                }
+            }
+            return heap.isEmpty() ? NO_MORE : heap.peek().current;
+        }
+
+        @Override
+        public int cost() {
+            return cost;
+        }
+    }
+}
@@ -1,92 +1,505 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * Radix trie from cleaned location names to full names.
+ *
+ * Every edge carries a whole run of characters, so a chain of single-child nodes is stored
+ * as one node, and every node keeps only the children it has, in arrays sorted by their
+ * first character. Children are therefore visited in character order, as in the 128-way
+ * array trie this replaced, but a node costs a few dozen bytes instead of half a kilobyte,
+ * and any char can appear in a key.
+ *
+ * Every name has a score, and every node keeps the TOP_K best entries of its subtree,
+ * so that a ranked query for at most TOP_K names costs O(prefix length + limit) however
+ * many keys share the prefix. The lists are recomputed along the path of every put and
+ * remove, from the lists of the children.
+ */
 public class Trie {
 
-    //support lowercase letters in the alphabet
-    private static final int R = 128;
+    /** Length of the ranked list kept at every node. */
+    static final int TOP_K = 10;
 
+    private static final char[] NO_CHARS = new char[0];
+    private static final Node[] NO_NODES = new Node[0];
+    private static final Entry[] NO_ENTRIES = new Entry[0];
 
-    private class Node {
-        /* up to R links */
-        boolean exists;
-        Node[] links;
-        String fullName;
+    /** Higher scores first; equal scores in key order, which is the order of the trie. */
+    private static final Comparator<Entry> RANK = (a, b) ->
+            a.score != b.score ? Integer.compare(b.score, a.score) : a.key.compareTo(b.key);
 
-        public Node() {
+    private static class Entry {
+        final String key;
+        final String fullName;
+        final int score;
 
-            exists = false;
-            links = new Node[R];
-            fullName = null;
+        Entry(String key, String fullName, int score) {
+            this.key = key;
+            this.fullName = fullName;
+            this.score = score;
+        }
+    }
+
+    private static class Node {
+        /* characters on the edge from the parent to this node; empty for the root */
+        String label;
+        /* entry stored under the key ending here, or null if no key ends here */
+        Entry entry;
+        /* first character of each child's label, sorted, and the children in that order */
+        char[] firsts = NO_CHARS;
+        Node[] children = NO_NODES;
+        /* best entries of this subtree by RANK, at most TOP_K of them */
+        Entry[] top = NO_ENTRIES;
+
+        Node(String label) {
+            this.label = label;
+        }
+
+        /** Copies the subtree of other. Entries and top lists are never changed in place. */
+        Node(Node other) {
+            label = other.label;
+            entry = other.entry;
+            firsts = other.firsts;
+            children = new Node[other.children.length];
+            for (int i = 0; i < children.length; i++) {
+                children[i] = new Node(other.children[i]);
+            }
+            if (children.length == 0) {
+                children = NO_NODES;
+            }
+            top = other.top;
+        }
+
+        /** Index of the child whose label starts with c, or ~insertion point if none does. */
+        int find(char c) {
+            return Arrays.binarySearch(firsts, c);
+        }
+
+        void insert(int i, Node child) {
+            char[] newFirsts = new char[firsts.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(firsts, 0, newFirsts, 0, i);
+            System.arraycopy(children, 0, newChildren, 0, i);
+            newFirsts[i] = child.label.charAt(0);
+            newChildren[i] = child;
+            System.arraycopy(firsts, i, newFirsts, i + 1, firsts.length - i);
+            System.arraycopy(children, i, newChildren, i + 1, children.length - i);
+            firsts = newFirsts;
+            children = newChildren;
         }
 
-        public void setName(String name) {
+        void delete(int i) {
+            char[] newFirsts = new char[firsts.length - 1];
+            Node[] newChildren = new Node[children.length - 1];
+            System.arraycopy(firsts, 0, newFirsts, 0, i);
+            System.arraycopy(children, 0, newChildren, 0, i);
+            System.arraycopy(firsts, i + 1, newFirsts, i, firsts.length - i - 1);
+            System.arraycopy(children, i + 1, newChildren, i, children.length - i - 1);
+            firsts = newFirsts.length == 0 ? NO_CHARS : newFirsts;
+            children = newChildren.length == 0 ? NO_NODES : newChildren;
+        }
 
-            fullName = name;
+        /** Recomputes top from entry and the top lists of the children. */
+        void rank() {
+            Entry[] best = new Entry[TOP_K];
+            int[] next = new int[children.length];
+            boolean own = entry != null;
+            int count = 0;
+            while (count < TOP_K) {
+                Entry candidate = own ? entry : null;
+                int from = -1;
+                for (int c = 0; c < children.length; c++) {
+                    Entry[] list = children[c].top;
+                    if (next[c] < list.length
+                            && (candidate == null || RANK.compare(list[next[c]], candidate) < 0)) {
+                        candidate = list[next[c]];
+                        from = c;
+                    }
+                }
+                if (candidate == null) {
+                    break;
+                }
+                if (from < 0) {
+                    own = false;
+                } else {
+                    next[from]++;
+                }
+                best[count] = candidate;
+                count++;
+            }
+            top = count == 0 ? NO_ENTRIES : Arrays.copyOf(best, count);
         }
     }
 
-    private Node root = new Node();
+    private final Node root;
 
-    // array stores nodes containing values and those arrays are indexed by characters
-    //they don't store characters.
+    public Trie() {
+        root = new Node("");
+    }
 
+    /** Creates a copy of other that can be changed without affecting it. */
+    public Trie(Trie other) {
+        root = new Node(other.root);
+    }
 
+    /** Maps key to name with score 0, replacing any name stored under key before. */
     public void put(String key, String name) {
-        put(root, key, 0, name);
+        put(key, name, 0);
     }
 
-    private Node put(Node x, String key, int d, String name) {
+    /**
+     * Maps key to name, replacing any name stored under key before.
+     * @param score Rank of the name in getPrefixes(prefix, limit); higher comes first.
+     */
+    public void put(String key, String name, int score) {
+        List<Node> path = new ArrayList<>();
+        Node x = root;
+        int d = 0;
+        while (d < key.length()) {
+            path.add(x);
+            int i = x.find(key.charAt(d));
+            if (i < 0) {
+                Node leaf = new Node(key.substring(d));
+                x.insert(~i, leaf);
+                x = leaf;
+                break;
+            }
+            Node child = x.children[i];
+            int common = commonLength(child.label, key, d);
+            if (common < child.label.length()) {
+                /* Split the edge where key leaves it. */
+                Node middle = new Node(child.label.substring(0, common));
+                child.label = child.label.substring(common);
+                middle.firsts = new char[] {child.label.charAt(0)};
+                middle.children = new Node[] {child};
+                x.children[i] = middle;
+                child = middle;
+            }
+            x = child;
+            d += common;
+        }
+        x.entry = new Entry(key, name, score);
+        x.rank();
+        for (int i = path.size() - 1; i >= 0; i--) {
+            path.get(i).rank();
+        }
+    }
 
-        if (x == null) {
-            x = new Node();
+    /** Length of the common prefix of label and key.substring(d). */
+    private static int commonLength(String label, String key, int d) {
+        int max = Math.min(label.length(), key.length() - d);
+        int i = 0;
+        while (i < max && label.charAt(i) == key.charAt(d + i)) {
+            i++;
         }
+        return i;
+    }
 
+    /**
+     * Removes key if it is mapped to name, pruning the nodes it no longer needs.
+     * Another name stored under the same key is left alone.
+     */
+    public void remove(String key, String name) {
+        remove(root, key, 0, name);
+    }
+
+    /**
+     * Removes key below x, where d characters of key lead to x.
+     * @return x, its only child merged into it, or null if x ends up without a value or children.
+     */
+    private Node remove(Node x, String key, int d, String name) {
         if (d == key.length()) {
-            x.exists = true;
-            x.setName(name);
+            if (x.entry != null && name.equals(x.entry.fullName)) {
+                x.entry = null;
+            }
+        } else {
+            int i = x.find(key.charAt(d));
+            if (i < 0) {
+                return x;
+            }
+            Node child = x.children[i];
+            if (!key.startsWith(child.label, d)) {
+                return x;
+            }
+            Node replacement = remove(child, key, d + child.label.length(), name);
+            if (replacement == null) {
+                x.delete(i);
+            } else {
+                x.children[i] = replacement;
+            }
+        }
+        x.rank();
+        if (x == root || x.entry != null || x.children.length > 1) {
             return x;
         }
-
-        char c = key.charAt(d);
-        x.links[c] = put(x.links[c], key, d + 1, name);
-        return x;
+        if (x.children.length == 0) {
+            return null;
+        }
+        Node only = x.children[0];
+        only.label = x.label + only.label;
+        return only;
     }
 
-
-
     // needs a search that takes all prefixes
     public List<String> getPrefixes(String key) {
 
         List<String> prefixes = new ArrayList<>();
+        Node currentNode = find(key);
+        if (currentNode != null) {
+            prefixSearch(prefixes, currentNode);
+        }
+        return prefixes;
+    }
 
-        // first get to proper node from key
-        Node currentNode = root;
-
-        for (int i = 0; i < key.length(); i++) {
-            currentNode = currentNode.links[key.charAt(i)];
-            if(currentNode == null){
-                return prefixes;
+    /**
+     * Returns the full names of the best keys starting with key: those with the highest
+     * scores, ties broken in key order. A limit of at most TOP_K is answered from the list
+     * precomputed at the node for key; larger limits rank the whole subtree.
+     * @param limit Maximum number of names to return.
+     */
+    public List<String> getPrefixes(String key, int limit) {
+        List<String> prefixes = new ArrayList<>();
+        Node currentNode = find(key);
+        if (currentNode == null || limit <= 0) {
+            return prefixes;
+        }
+        if (limit <= TOP_K) {
+            for (int i = 0; i < Math.min(limit, currentNode.top.length); i++) {
+                prefixes.add(currentNode.top[i].fullName);
             }
+            return prefixes;
+        }
+        List<Entry> all = new ArrayList<>();
+        collect(all, currentNode);
+        all.sort(RANK);
+        for (int i = 0; i < Math.min(limit, all.size()); i++) {
+            prefixes.add(all.get(i).fullName);
         }
-
-        // now we have correct node and we need to get all prefixes
-        prefixSearch(prefixes, currentNode);
         return prefixes;
     }
 
+    private void collect(List<Entry> result, Node n) {
+        if (n.entry != null) {
+            result.add(n.entry);
+        }
+        for (Node x : n.children) {
+            collect(result, x);
+        }
+    }
+
+    /**
+     * Returns the full names of the best keys within maxEdits edits of starting with prefix:
+     * those whose key has a prefix at Levenshtein distance at most maxEdits from it, closest
+     * first, then as in getPrefixes(prefix, limit).
+     *
+     * The trie is searched with the query's Levenshtein automaton, simulated one row of the
+     * edit distance table per trie character, so a branch is dropped as soon as no
+     * extension of it can come within maxEdits. Since distances only grow down a branch,
+     * each branch also stops once it cannot beat the best match already on its path. The
+     * best names under each matching node then come from its precomputed list for limits
+     * up to TOP_K.
+     *
+     * The search runs with 0, 1, ... maxEdits edits in turn and stops as soon as limit names
+     * are found, since more edits only add names ranked after them. If the budget runs out
+     * during a round, the names of the last finished round are returned, so exact prefix
+     * matches are found even when the budget is too small for fuzzy ones.
+     * @param budgetNanos Time allowed for the search.
+     */
+    public List<String> getFuzzyPrefixes(String prefix, int maxEdits, int limit,
+                                         long budgetNanos) {
+        long deadline = System.nanoTime() + budgetNanos;
+        List<Entry> found = new ArrayList<>();
+        for (int edits = 0; edits <= maxEdits && found.size() < limit; edits++) {
+            FuzzyMatcher matcher = new FuzzyMatcher(prefix, edits, deadline);
+            if (!matcher.run()) {
+                break;
+            }
+            found = matcher.ranked(limit);
+        }
+        List<String> names = new ArrayList<>(found.size());
+        for (Entry entry : found) {
+            names.add(entry.fullName);
+        }
+        return names;
+    }
 
-    private void prefixSearch(List<String> result, Node n){
-        if(n.exists){
-            result.add(n.fullName);
+    /** One round of getFuzzyPrefixes: the nodes within maxEdits of the query. */
+    private class FuzzyMatcher {
+        private final String query;
+        private final int maxEdits;
+        private final long deadline;
+        private int visited = 0;
+        /* Nodes whose whole subtree is within maxEdits, each closer than its matched ancestors. */
+        private final List<Node> matched = new ArrayList<>();
+
+        FuzzyMatcher(String query, int maxEdits, long deadline) {
+            this.query = query;
+            this.maxEdits = maxEdits;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Collects the matched nodes, starting from the root, whose key is empty.
+         * @return False if the deadline passed.
+         */
+        boolean run() {
+            int[] row = firstRow();
+            int best = Math.min(row[query.length()], maxEdits + 1);
+            if (best <= maxEdits) {
+                matched.add(root);
+            }
+            return search(root, row, best);
+        }
+
+        /** Distances from the empty key to every prefix of the query. */
+        int[] firstRow() {
+            int[] row = new int[query.length() + 1];
+            for (int j = 0; j < row.length; j++) {
+                row[j] = j;
+            }
+            return row;
+        }
+
+        /** The row for the key one character c longer than the key of row. */
+        int[] step(int[] row, char c) {
+            int[] next = new int[row.length];
+            next[0] = row[0] + 1;
+            for (int j = 1; j < row.length; j++) {
+                int substitute = row[j - 1] + (query.charAt(j - 1) == c ? 0 : 1);
+                next[j] = Math.min(substitute, Math.min(row[j], next[j - 1]) + 1);
+            }
+            return next;
+        }
+
+        /**
+         * Searches the children of x, whose key has distance table row.
+         * @param best Smallest distance of the query to a prefix of the key of x, or
+         *             maxEdits + 1 if none is within maxEdits.
+         * @return False if the deadline passed.
+         */
+        boolean search(Node x, int[] row, int best) {
+            for (Node child : x.children) {
+                if ((++visited & 0xFF) == 0 && System.nanoTime() > deadline) {
+                    return false;
+                }
+                int[] r = row;
+                int childBest = best;
+                boolean hopeless = false;
+                for (int i = 0; i < child.label.length() && !hopeless; i++) {
+                    r = step(r, child.label.charAt(i));
+                    childBest = Math.min(childBest, r[query.length()]);
+                    hopeless = min(r) >= childBest;
+                }
+                if (childBest < best) {
+                    matched.add(child);
+                }
+                if (!hopeless && !search(child, r, childBest)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** The best limit entries under the matched nodes, closest first. */
+        List<Entry> ranked(int limit) {
+            List<Entry> candidates = new ArrayList<>();
+            for (Node n : matched) {
+                if (limit <= TOP_K) {
+                    candidates.addAll(Arrays.asList(n.top));
+                } else {
+                    collect(candidates, n);
+                }
+            }
+            Map<Entry, Integer> distances = new IdentityHashMap<>();
+            for (Entry entry : candidates) {
+                distances.computeIfAbsent(entry, this::distance);
+            }
+            List<Entry> result = new ArrayList<>(distances.keySet());
+            result.sort(Comparator.<Entry>comparingInt(distances::get).thenComparing(RANK));
+            return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+        }
+
+        /** Smallest distance of the query to a prefix of the key of entry. */
+        private int distance(Entry entry) {
+            int[] row = firstRow();
+            int best = row[query.length()];
+            for (int i = 0; i < entry.key.length() && min(row) < best; i++) {
+                row = step(row, entry.key.charAt(i));
+                best = Math.min(best, row[query.length()]);
+            }
+            return best;
         }
+    }
 
-        for(Node x : n.links){
-            if(x != null){
-                prefixSearch(result,x);
+    private static int min(int[] row) {
+        int min = row[0];
+        for (int value : row) {
+            min = Math.min(min, value);
+        }
+        return min;
+    }
+
+    /**
+     * Returns the highest node whose key starts with prefix: the node for prefix itself, or
+     * the child whose edge prefix ends in the middle of. Returns null if no key starts with
+     * prefix.
+     */
+    private Node find(String prefix) {
+        Node x = root;
+        int d = 0;
+        while (d < prefix.length()) {
+            int i = x.find(prefix.charAt(d));
+            if (i < 0) {
+                return null;
+            }
+            Node child = x.children[i];
+            int common = commonLength(child.label, prefix, d);
+            if (d + common == prefix.length()) {
+                return child;
+            }
+            if (common < child.label.length()) {
+                return null;
             }
+            x = child;
+            d += common;
         }
+        return x;
+    }
 
+    private void prefixSearch(List<String> result, Node n){
+        if (n.entry != null) {
+            result.add(n.entry.fullName);
+        }
+        for (Node x : n.children) {
+            prefixSearch(result, x);
+        }
+    }
+
+    /**
+     * Returns every key stored in the trie mapped to its full name, in trie order.
+     * Used to persist the trie in a GraphSnapshot.
+     */
+    public Map<String, String> entries() {
+        Map<String, String> result = new LinkedHashMap<>();
+        entries(result, root, new StringBuilder());
+        return result;
+    }
+
+    private void entries(Map<String, String> result, Node n, StringBuilder key) {
+        int length = key.length();
+        key.append(n.label);
+        if (n.entry != null) {
+            result.put(key.toString(), n.entry.fullName);
+        }
+        for (Node x : n.children) {
+            entries(result, x, key);
+        }
+        key.setLength(length);
     }
 
 }
@@ -170,9 +170,10 @@ $(function() {
         $.get({
             async: true,
             url: route_server,
-            data: route_params,
+            data: $.extend({route_token: params.route_token}, route_params),
             success: function(data) {
                 data = JSON.parse(data);
+                params.route_token = data.route_token;
                 updateImg();
                 if (data.directions_success) {
                     $directionsText.html(data.directions);
@@ -407,6 +408,7 @@ $(function() {
         $.get({
             async: true,
             url: clear_route,
+            data: {route_token: params.route_token},
             success: function() {
                 dest.style.visibility = 'hidden';
                 $directionsText.html('No routing directions to display.');
@@ -0,0 +1,54 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that bidirectional A* returns the same paths as unidirectional A* on the tiny graph.
+ */
+public class TestBidirectionalRouter {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void test41to46() {
+        List<Long> actual = Router.shortestPath(graphTiny, 0.4, 38.1, 0.4, 38.6,
+                Router.SearchMode.BIDIRECTIONAL);
+        assertEquals(Arrays.asList(41L, 63L, 66L, 46L), actual);
+    }
+
+    @Test
+    public void testSameStartAndDestination() {
+        List<Long> actual = Router.shortestPath(graphTiny, 0.2, 38.2, 0.2, 38.2,
+                Router.SearchMode.BIDIRECTIONAL);
+        assertEquals(Arrays.asList(22L), actual);
+    }
+
+    @Test
+    public void testAllPairsMatchAStar() {
+        for (long v : graphTiny.vertices()) {
+            for (long w : graphTiny.vertices()) {
+                List<Long> expected = Router.shortestPath(graphTiny,
+                        graphTiny.lon(v), graphTiny.lat(v), graphTiny.lon(w), graphTiny.lat(w),
+                        Router.SearchMode.ASTAR);
+                List<Long> actual = Router.shortestPath(graphTiny,
+                        graphTiny.lon(v), graphTiny.lat(v), graphTiny.lon(w), graphTiny.lat(w),
+                        Router.SearchMode.BIDIRECTIONAL);
+                assertEquals(expected, actual);
+            }
+        }
+    }
+}
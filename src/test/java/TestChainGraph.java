@@ -0,0 +1,92 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the degree-2 chain overlay and that searching it gives the same paths as A* on the
+ * full graph, on a graph with the awkward cases: a loop back to its own intersection, a
+ * ring of shape points only, two chains between the same pair of intersections and
+ * unreachable vertices.
+ */
+public class TestChainGraph {
+    private static final long[][] NODES = {
+        {1, 3810, 100}, {2, 3812, 110}, {3, 3813, 125}, {4, 3815, 140}, {5, 3817, 160},
+        {6, 3820, 171}, {7, 3816, 150}, {8, 3819, 149}, {9, 3818, 137}, {10, 3811, 143},
+        {20, 3830, 300}, {21, 3832, 313}, {22, 3835, 309}, {23, 3833, 296},
+        {30, 3850, 500}, {31, 3850, 540}, {32, 3852, 519}, {33, 3846, 507}, {34, 3847, 531},
+        {35, 3855, 497}, {36, 3844, 544},
+    };
+    private static final long[][] WAYS = {
+        {1, 2, 3, 4, 5, 6}, {4, 7, 8, 9, 4}, {4, 10}, {20, 21, 22, 23, 20},
+        {30, 32, 31}, {30, 33, 34, 31}, {35, 30}, {31, 36},
+    };
+    private static GraphDB g;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        StringBuilder xml = new StringBuilder("<osm version=\"0.6\">\n");
+        for (long[] node : NODES) {
+            xml.append(String.format(" <node id=\"%d\" lat=\"%.2f\" lon=\"%.3f\"/>%n",
+                    node[0], node[1] / 100.0, node[2] / 1000.0));
+        }
+        for (int i = 0; i < WAYS.length; i++) {
+            xml.append(" <way id=\"").append(i + 1).append("\">");
+            for (long ref : WAYS[i]) {
+                xml.append("<nd ref=\"").append(ref).append("\"/>");
+            }
+            xml.append("<tag k=\"highway\" v=\"residential\"/></way>\n");
+        }
+        xml.append("</osm>\n");
+        File file = File.createTempFile("chains", ".osm.xml");
+        file.deleteOnExit();
+        Files.write(file.toPath(), xml.toString().getBytes(StandardCharsets.UTF_8));
+        g = new GraphDB(file.getPath(), false, 1);
+    }
+
+    @Test
+    public void testCoresAndChains() {
+        /* Which vertex of the ring 20-23 becomes its core depends on the vertex order. */
+        long ring = 20;
+        while (!g.chains.isCore(g.indexOf(ring))) {
+            ring++;
+        }
+        long[] expected = {1, 4, 6, 10, ring, 30, 31, 35, 36};
+        long[] actual = new long[g.chains.coreCount()];
+        for (int c = 0; c < actual.length; c++) {
+            actual[c] = g.idOf(g.chains.cores[c]);
+        }
+        Arrays.sort(actual);
+        assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+        assertEquals(9, g.chains.chainFrom.length);
+        assertEquals(g.vertexCount() - expected.length,
+                Arrays.stream(g.chains.chainOf).filter(k -> k >= 0).count());
+
+        int k = g.chains.chainOf[g.indexOf(8)];
+        assertEquals(g.chains.chainFrom[k], g.chains.chainTo[k]);
+        assertEquals(3, g.chains.viaCount(k));
+    }
+
+    @Test
+    public void testAllPairsMatchAStar() {
+        AStarSearch astar = new AStarSearch();
+        ChainAStarSearch chains = new ChainAStarSearch();
+        for (int v = 0; v < g.vertexCount(); v++) {
+            for (int w = 0; w < g.vertexCount(); w++) {
+                assertEquals(g.idOf(v) + " to " + g.idOf(w), astar.shortestPath(g, v, w),
+                        chains.shortestPath(g, v, w));
+            }
+        }
+    }
+
+    @Test
+    public void testRouterMode() {
+        assertEquals(Arrays.asList(2L, 3L, 4L, 7L),
+                Router.shortestPath(g, 0.110, 38.12, 0.150, 38.16, Router.SearchMode.CHAINS));
+    }
+}
@@ -0,0 +1,80 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that contraction hierarchy queries return the same paths as A* on the tiny graph,
+ * and that a hierarchy survives being written and read back.
+ */
+public class TestContractionHierarchy {
+    private static final String OSM_DB_PATH_TINY =
+            "../library-sp18/library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        graphTiny.hierarchy = ContractionHierarchy.build(graphTiny);
+        initialized = true;
+    }
+
+    @Test
+    public void test41to46() {
+        List<Long> actual = Router.shortestPath(graphTiny, 0.4, 38.1, 0.4, 38.6,
+                Router.SearchMode.CONTRACTION_HIERARCHY);
+        assertEquals(Arrays.asList(41L, 63L, 66L, 46L), actual);
+    }
+
+    @Test
+    public void testAllPairsMatchAStar() {
+        for (long v : graphTiny.vertices()) {
+            for (long w : graphTiny.vertices()) {
+                List<Long> expected = Router.shortestPath(graphTiny,
+                        graphTiny.lon(v), graphTiny.lat(v), graphTiny.lon(w), graphTiny.lat(w),
+                        Router.SearchMode.ASTAR);
+                List<Long> actual = Router.shortestPath(graphTiny,
+                        graphTiny.lon(v), graphTiny.lat(v), graphTiny.lon(w), graphTiny.lat(w),
+                        Router.SearchMode.CONTRACTION_HIERARCHY);
+                assertEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        File file = File.createTempFile("tiny", ContractionHierarchy.SUFFIX);
+        file.deleteOnExit();
+        ContractionHierarchy expected = graphTiny.hierarchy;
+        expected.write(file);
+        ContractionHierarchy actual = ContractionHierarchy.read(file);
+        assertTrue(actual.matches(graphTiny));
+        assertArrayEquals(expected.rank, actual.rank);
+        assertArrayEquals(expected.upOffsets, actual.upOffsets);
+        assertArrayEquals(expected.upTargets, actual.upTargets);
+        assertArrayEquals(expected.upWeights, actual.upWeights, 0.0);
+        assertArrayEquals(expected.upMiddles, actual.upMiddles);
+    }
+
+    @Test
+    public void testWriteLeavesNoTemporaryFile() throws Exception {
+        File dir = Files.createTempDirectory("hierarchy").toFile();
+        File file = new File(dir, "tiny" + ContractionHierarchy.SUFFIX);
+        graphTiny.hierarchy.write(file);
+        graphTiny.hierarchy.write(file);
+        assertArrayEquals(new String[] {file.getName()}, dir.list());
+        assertTrue(file.delete());
+        assertTrue(dir.delete());
+    }
+}
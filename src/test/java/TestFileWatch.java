@@ -0,0 +1,43 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that FileWatch only reports a change once the file has stopped changing.
+ */
+public class TestFileWatch {
+
+    @Test
+    public void testReportsSettledChangeOnce() throws Exception {
+        File file = File.createTempFile("watch", ".osm.xml");
+        file.deleteOnExit();
+        FileWatch watch = new FileWatch(file);
+        assertFalse(watch.poll());
+
+        Files.write(file.toPath(), new byte[10]);
+        assertTrue(file.setLastModified(1000000));
+        assertFalse(watch.poll());
+        /* Still being written: same modification time, but it grew. */
+        Files.write(file.toPath(), new byte[20]);
+        assertTrue(file.setLastModified(1000000));
+        assertFalse(watch.poll());
+
+        assertTrue(watch.poll());
+        assertFalse(watch.poll());
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void testDeletedFileCountsAsChange() throws Exception {
+        File file = File.createTempFile("watch", ".osc");
+        FileWatch watch = new FileWatch(file);
+        assertTrue(file.delete());
+        assertFalse(watch.poll());
+        assertTrue(watch.poll());
+        assertFalse(file.exists());
+    }
+}
@@ -0,0 +1,213 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Applies an OSM change file to the tiny graph and checks that the result is the graph
+ * parsed from the edited XML.
+ */
+public class TestGraphChanges {
+    private static final String OSM_DB_PATH_TINY =
+            "../library-sp18/library-sp18/data/tiny-clean.osm.xml";
+
+    /*
+     * Moves 46, renames 55, removes way 1 with its node 11 and the location 99, turns the
+     * footway 5 into a road and adds node 77 with a way 6 leading to it.
+     */
+    private static final String CHANGES = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<osmChange version=\"0.6\">\n"
+            + " <modify>\n"
+            + "  <node id=\"46\" lat=\"38.65\" lon=\"0.4\"/>\n"
+            + "  <node id=\"55\" lat=\"38.5\" lon=\"0.5\"><tag k=\"name\" v=\"Fifty Five Center\"/></node>\n"
+            + "  <way id=\"5\"><nd ref=\"22\"/><nd ref=\"41\"/><tag k=\"highway\" v=\"residential\"/>"
+            + "<tag k=\"name\" v=\"F Path\"/></way>\n"
+            + " </modify>\n"
+            + " <create>\n"
+            + "  <node id=\"77\" lat=\"38.7\" lon=\"0.7\"><tag k=\"name\" v=\"Seventy &amp; Seven\"/></node>\n"
+            + "  <way id=\"6\"><nd ref=\"66\"/><nd ref=\"77\"/><tag k=\"highway\" v=\"residential\"/>"
+            + "<tag k=\"name\" v=\"E Road\"/></way>\n"
+            + " </create>\n"
+            + " <delete>\n"
+            + "  <way id=\"1\"/>\n"
+            + "  <node id=\"11\"/>\n"
+            + "  <node id=\"99\"/>\n"
+            + " </delete>\n"
+            + "</osmChange>\n";
+
+    private static final String EDITED = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<osm version=\"0.6\">\n"
+            + " <node id=\"22\" lat=\"38.2\" lon=\"0.2\"><tag k=\"name\" v=\"Twenty Two\"/></node>\n"
+            + " <node id=\"41\" lat=\"38.1\" lon=\"0.4\"/>\n"
+            + " <node id=\"46\" lat=\"38.65\" lon=\"0.4\"/>\n"
+            + " <node id=\"55\" lat=\"38.5\" lon=\"0.5\"><tag k=\"name\" v=\"Fifty Five Center\"/></node>\n"
+            + " <node id=\"63\" lat=\"38.3\" lon=\"0.6\"/>\n"
+            + " <node id=\"66\" lat=\"38.6\" lon=\"0.6\"/>\n"
+            + " <node id=\"77\" lat=\"38.7\" lon=\"0.7\"><tag k=\"name\" v=\"Seventy &amp; Seven\"/></node>\n"
+            + " <way id=\"2\"><nd ref=\"22\"/><nd ref=\"46\"/><nd ref=\"66\"/><tag k=\"highway\" v=\"residential\"/>"
+            + "<tag k=\"name\" v=\"B Street\"/></way>\n"
+            + " <way id=\"3\"><nd ref=\"41\"/><nd ref=\"63\"/><nd ref=\"66\"/><tag k=\"highway\" v=\"primary\"/>"
+            + "<tag k=\"name\" v=\"C Avenue\"/></way>\n"
+            + " <way id=\"4\"><nd ref=\"63\"/><nd ref=\"55\"/><tag k=\"highway\" v=\"residential\"/>"
+            + "<tag k=\"name\" v=\"D Lane\"/></way>\n"
+            + " <way id=\"5\"><nd ref=\"22\"/><nd ref=\"41\"/><tag k=\"highway\" v=\"residential\"/>"
+            + "<tag k=\"name\" v=\"F Path\"/></way>\n"
+            + " <way id=\"6\"><nd ref=\"66\"/><nd ref=\"77\"/><tag k=\"highway\" v=\"residential\"/>"
+            + "<tag k=\"name\" v=\"E Road\"/></way>\n"
+            + "</osm>\n";
+
+    private static OsmChangeSet changes(String xml) throws IOException {
+        return OsmChangeSet.read(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static GraphDB editedGraph() throws IOException {
+        File file = File.createTempFile("tiny-edited", ".osm.xml");
+        file.deleteOnExit();
+        Files.write(file.toPath(), EDITED.getBytes(StandardCharsets.UTF_8));
+        return new GraphDB(file.getPath(), false, 1);
+    }
+
+    /**
+     * Compares two graphs vertex by vertex, since applyChanges appends new vertices
+     * instead of laying the graph out again.
+     */
+    private static void assertSameGraph(GraphDB expected, GraphDB actual) {
+        assertEquals(expected.vertexCount(), actual.vertexCount());
+        for (int v = 0; v < expected.vertexCount(); v++) {
+            long id = expected.idOf(v);
+            int w = actual.indexOf(id);
+            assertTrue("missing vertex " + id, w >= 0);
+            assertEquals(expected.latOf(v), actual.latOf(w), 0.0);
+            assertEquals(expected.lonOf(v), actual.lonOf(w), 0.0);
+            assertEquals(expected.edgeEnd(v) - expected.edgeStart(v),
+                    actual.edgeEnd(w) - actual.edgeStart(w));
+            for (int e = expected.edgeStart(v), f = actual.edgeStart(w); e < expected.edgeEnd(v);
+                 e++, f++) {
+                assertEquals(expected.idOf(expected.edgeTarget(e)), actual.idOf(actual.edgeTarget(f)));
+                assertEquals(expected.edgeWeight(e), actual.edgeWeight(f), 1e-12);
+                assertEquals(expected.wayName(expected.edgeWay(e)), actual.wayName(actual.edgeWay(f)));
+            }
+        }
+        assertEquals(expected.locations.keySet(), actual.locations.keySet());
+        assertEquals(expected.prefixTrie().entries(), actual.prefixTrie().entries());
+        assertEquals(expected.ways.keySet(), actual.ways.keySet());
+        assertEquals(expected.closest(0.69, 38.69), actual.closest(0.69, 38.69));
+        assertEquals(expected.closest(0.41, 38.64), actual.closest(0.41, 38.64));
+        assertEquals(expected.chains.coreCount(), actual.chains.coreCount());
+    }
+
+    @Test
+    public void testSameGraphAsEditedXml() throws IOException {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY, false, 1);
+        GraphDB edited = g.applyChanges(changes(CHANGES));
+        assertEquals(0, edited.skippedWays);
+        assertSameGraph(editedGraph(), edited);
+    }
+
+    @Test
+    public void testLeavesOriginalUnchanged() throws IOException {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY, false, 1);
+        g.applyChanges(changes(CHANGES));
+        assertSameGraph(new GraphDB(OSM_DB_PATH_TINY, false, 1), g);
+    }
+
+    @Test
+    public void testTrieBuiltBeforeOrAfterChanges() throws IOException {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY, false, 1);
+        GraphDB built = g.applyChanges(changes(CHANGES));
+        g.prefixTrie();
+        GraphDB updated = g.applyChanges(changes(CHANGES));
+        assertEquals(built.prefixTrie().entries(), updated.prefixTrie().entries());
+        assertEquals(built.prefixTrie().getPrefixes("", 10),
+                updated.prefixTrie().getPrefixes("", 10));
+    }
+
+    @Test
+    public void testAppliesToSnapshot() throws IOException {
+        File snapshot = File.createTempFile("tiny", GraphSnapshot.SUFFIX);
+        snapshot.deleteOnExit();
+        GraphSnapshot.write(new GraphDB(OSM_DB_PATH_TINY, false, 1), snapshot);
+        GraphDB g = new GraphDB();
+        GraphSnapshot.read(g, snapshot);
+        GraphDB edited = g.applyChanges(changes(CHANGES));
+        assertEquals(0, edited.skippedWays);
+        assertSameGraph(editedGraph(), edited);
+    }
+
+    @Test
+    public void testSkipsWaysWithUnknownNodes() throws IOException {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY, false, 1);
+        String unknown = "<osmChange version=\"0.6\"><create>"
+                + "<way id=\"7\"><nd ref=\"66\"/><nd ref=\"12345\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>"
+                + "</create></osmChange>";
+        GraphDB edited = g.applyChanges(changes(unknown));
+        assertEquals(1, edited.skippedWays);
+        assertTrue(edited.indexOf(12345) < 0);
+        assertEquals(7, edited.vertexCount());
+    }
+
+    @Test
+    public void testSharedNameOutlivesOneNode() throws IOException {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY, false, 1).applyChanges(changes(
+                "<osmChange version=\"0.6\"><create>"
+                + "<node id=\"101\" lat=\"38.1\" lon=\"0.1\"><tag k=\"name\" v=\"Twin\"/></node>"
+                + "<node id=\"102\" lat=\"38.2\" lon=\"0.2\"><tag k=\"name\" v=\"Twin\"/></node>"
+                + "</create></osmChange>"));
+        assertEquals(102, ((LocationObject) g.locations.get("Twin")).id);
+
+        g = g.applyChanges(changes("<osmChange version=\"0.6\"><delete>"
+                + "<node id=\"102\"/></delete></osmChange>"));
+        LocationObject twin = (LocationObject) g.locations.get("Twin");
+        assertEquals(101, twin.id);
+        assertEquals(38.1, twin.lat, 0.0);
+        assertEquals(Collections.singletonList("Twin"), g.prefixTrie().getPrefixes("twi"));
+
+        g = g.applyChanges(changes("<osmChange version=\"0.6\"><delete>"
+                + "<node id=\"101\"/></delete></osmChange>"));
+        assertNull(g.locations.get("Twin"));
+        assertTrue(g.prefixTrie().getPrefixes("twi").isEmpty());
+    }
+
+    @Test
+    public void testCountsFollowChanges() throws IOException {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY, false, 1).applyChanges(changes(
+                "<osmChange version=\"0.6\"><create>"
+                + "<node id=\"101\" lat=\"38.1\" lon=\"0.1\"><tag k=\"name\" v=\"Oak\"/></node>"
+                + "<node id=\"102\" lat=\"38.1\" lon=\"0.1\"><tag k=\"name\" v=\"Oak\"/></node>"
+                + "<node id=\"103\" lat=\"38.1\" lon=\"0.1\"><tag k=\"name\" v=\"Oak\"/></node>"
+                + "<node id=\"104\" lat=\"38.1\" lon=\"0.1\"><tag k=\"name\" v=\"Oat\"/></node>"
+                + "<node id=\"105\" lat=\"38.1\" lon=\"0.1\"><tag k=\"name\" v=\"Oat\"/></node>"
+                + "</create></osmChange>"));
+        assertEquals(3, ((LocationObject) g.locations.get("Oak")).count);
+        assertEquals(Arrays.asList("Oak", "Oat"), g.prefixTrie().getPrefixes("oa", 2));
+
+        /* Moving the node the location is recorded at, then another one, keeps the count. */
+        g = g.applyChanges(changes("<osmChange version=\"0.6\"><modify>"
+                + "<node id=\"103\" lat=\"38.3\" lon=\"0.3\"><tag k=\"name\" v=\"Oak\"/></node>"
+                + "</modify></osmChange>"));
+        assertEquals(3, ((LocationObject) g.locations.get("Oak")).count);
+        g = g.applyChanges(changes("<osmChange version=\"0.6\"><modify>"
+                + "<node id=\"101\" lat=\"38.3\" lon=\"0.3\"><tag k=\"name\" v=\"Oak\"/></node>"
+                + "</modify></osmChange>"));
+        assertEquals(3, ((LocationObject) g.locations.get("Oak")).count);
+
+        /* Renaming and deleting nodes counts down, and the ranking follows. */
+        g = g.applyChanges(changes("<osmChange version=\"0.6\"><modify>"
+                + "<node id=\"101\" lat=\"38.3\" lon=\"0.3\"><tag k=\"name\" v=\"Elm\"/></node>"
+                + "</modify><delete><node id=\"102\"/></delete></osmChange>"));
+        assertEquals(1, ((LocationObject) g.locations.get("Oak")).count);
+        assertEquals(2, ((LocationObject) g.locations.get("Oat")).count);
+        assertEquals(Arrays.asList("Oat", "Oak"), g.prefixTrie().getPrefixes("oa", 2));
+    }
+}
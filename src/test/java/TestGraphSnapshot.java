@@ -0,0 +1,170 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a graph read back from a GraphSnapshot matches the graph parsed from XML.
+ */
+public class TestGraphSnapshot {
+    private static final String OSM_DB_PATH_TINY =
+            "../library-sp18/library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static GraphDB snapshotTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        File snapshot = File.createTempFile("tiny", GraphSnapshot.SUFFIX);
+        snapshot.deleteOnExit();
+        GraphSnapshot.write(graphTiny, snapshot);
+        snapshotTiny = GraphDB.load(snapshot.getPath().substring(0,
+                snapshot.getPath().length() - GraphSnapshot.SUFFIX.length()));
+        initialized = true;
+    }
+
+    @Test
+    public void testVerticesAndCoordinates() {
+        Set<Long> expected = new HashSet<>();
+        Set<Long> actual = new HashSet<>();
+        for (long v : graphTiny.vertices()) {
+            expected.add(v);
+        }
+        for (long v : snapshotTiny.vertices()) {
+            actual.add(v);
+            assertEquals(graphTiny.lon(v), snapshotTiny.lon(v), 0.0);
+            assertEquals(graphTiny.lat(v), snapshotTiny.lat(v), 0.0);
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testAdjacent() {
+        for (long v : graphTiny.vertices()) {
+            Set<Long> expected = new HashSet<>();
+            Set<Long> actual = new HashSet<>();
+            for (long w : graphTiny.adjacent(v)) {
+                expected.add(w);
+            }
+            for (long w : snapshotTiny.adjacent(v)) {
+                actual.add(w);
+            }
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testLocationsAndTrie() {
+        assertEquals(graphTiny.locations.keySet(), snapshotTiny.locations.keySet());
+        assertEquals(graphTiny.prefixTrie().entries(), snapshotTiny.prefixTrie().entries());
+    }
+
+    @Test
+    public void testEdgeWeights() {
+        for (int v = 0; v < snapshotTiny.vertexCount(); v++) {
+            for (int e = snapshotTiny.edgeStart(v); e < snapshotTiny.edgeEnd(v); e++) {
+                long w = snapshotTiny.idOf(snapshotTiny.edgeTarget(e));
+                assertEquals(graphTiny.distance(snapshotTiny.idOf(v), w),
+                        snapshotTiny.edgeWeight(e), 0.0);
+                assertEquals(snapshotTiny.edgeWeight(e),
+                        snapshotTiny.weight(snapshotTiny.idOf(v), w), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testStoredIndexes() {
+        Random random = new Random(3);
+        for (int i = 0; i < 200; i++) {
+            double lon = random.nextDouble();
+            double lat = 38 + random.nextDouble();
+            assertEquals(graphTiny.closest(lon, lat), snapshotTiny.closest(lon, lat));
+        }
+        assertEquals(graphTiny.chains.coreCount(), snapshotTiny.chains.coreCount());
+        for (int v = 0; v < graphTiny.vertexCount(); v++) {
+            assertEquals(graphTiny.chains.coreOf[v], snapshotTiny.chains.coreOf[v]);
+            assertEquals(graphTiny.chains.chainOf[v], snapshotTiny.chains.chainOf[v]);
+        }
+        assertEquals(Router.shortestPath(graphTiny, 0.1, 38.2, 0.6, 38.6, Router.SearchMode.CHAINS),
+                Router.shortestPath(snapshotTiny, 0.1, 38.2, 0.6, 38.6, Router.SearchMode.CHAINS));
+    }
+
+    @Test
+    public void testWriteLeavesNoTemporaryFile() throws Exception {
+        File dir = Files.createTempDirectory("snapshot").toFile();
+        File snapshot = new File(dir, "tiny" + GraphSnapshot.SUFFIX);
+        GraphSnapshot.write(graphTiny, snapshot);
+        GraphSnapshot.write(graphTiny, snapshot);
+        assertArrayEquals(new String[] {snapshot.getName()}, dir.list());
+        assertTrue(snapshot.delete());
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void testTruncatedXmlIsNotSaved() throws Exception {
+        File dir = Files.createTempDirectory("snapshot").toFile();
+        File xml = new File(dir, "tiny.osm.xml");
+        byte[] bytes = Files.readAllBytes(new File(OSM_DB_PATH_TINY).toPath());
+        Files.write(xml.toPath(), Arrays.copyOf(bytes, bytes.length / 2));
+        assertFalse(new GraphDB(xml.getPath(), false, 1).parsed);
+        assertFalse(new GraphDB(xml.getPath(), false, 2).parsed);
+        GraphDB.load(xml.getPath());
+        assertFalse(GraphSnapshot.snapshotFile(xml.getPath()).exists());
+        assertTrue(xml.delete());
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void testVertexOrder() {
+        assertEquals(graphTiny.vertexCount(), snapshotTiny.vertexCount());
+        for (int v = 0; v < snapshotTiny.vertexCount(); v++) {
+            assertEquals(graphTiny.idOf(v), snapshotTiny.idOf(v));
+            assertEquals(v, snapshotTiny.indexOf(snapshotTiny.idOf(v)));
+        }
+        assertTrue(snapshotTiny.indexOf(Long.MAX_VALUE) < 0);
+    }
+
+    @Test
+    public void testHilbertIndex() {
+        int side = 1 << 15;
+        assertEquals(0, GraphDB.hilbertIndex(0, 0));
+        assertEquals(side * side - 1, GraphDB.hilbertIndex(side - 1, 0));
+        /* The first 64 positions fill the corner 8x8 block, each next to the one before. */
+        for (int x = 0; x < 8; x++) {
+            for (int y = 0; y < 8; y++) {
+                int d = GraphDB.hilbertIndex(x, y);
+                if (d < 63) {
+                    assertEquals(1, neighborsAt(d + 1, x, y));
+                }
+            }
+        }
+    }
+
+    /** Number of the four cells next to (x, y) whose Hilbert index is d. */
+    private static int neighborsAt(int d, int x, int y) {
+        int count = 0;
+        int[][] steps = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+        for (int[] step : steps) {
+            int nx = x + step[0];
+            int ny = y + step[1];
+            if (nx >= 0 && ny >= 0 && GraphDB.hilbertIndex(nx, ny) == d) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,59 @@
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares KDTree nearest-vertex queries against a linear great-circle scan.
+ */
+public class TestKDTree {
+    private static final String OSM_DB_PATH_TINY =
+            "../library-sp18/library-sp18/data/tiny-clean.osm.xml";
+
+    @Test
+    public void testRandomPoints() {
+        Random random = new Random(61);
+        int n = 5000;
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        for (int i = 0; i < n; i++) {
+            lons[i] = MapServer.ROOT_ULLON
+                    + (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) * random.nextDouble();
+            lats[i] = MapServer.ROOT_LRLAT
+                    + (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) * random.nextDouble();
+        }
+        KDTree tree = new KDTree(lons, lats);
+
+        for (int q = 0; q < 1000; q++) {
+            double lon = MapServer.ROOT_ULLON - 0.01
+                    + (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON + 0.02) * random.nextDouble();
+            double lat = MapServer.ROOT_LRLAT - 0.01
+                    + (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT + 0.02) * random.nextDouble();
+            int expected = 0;
+            for (int i = 1; i < n; i++) {
+                if (GraphDB.distance(lon, lat, lons[i], lats[i])
+                        < GraphDB.distance(lon, lat, lons[expected], lats[expected])) {
+                    expected = i;
+                }
+            }
+            assertEquals(expected, tree.nearest(lon, lat));
+        }
+    }
+
+    @Test
+    public void testEmptyTree() {
+        KDTree tree = new KDTree(new double[0], new double[0]);
+        assertEquals(-1, tree.nearest(0.0, 0.0));
+    }
+
+    @Test
+    public void testMatchesBruteForceOnGraph() {
+        GraphDB graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        for (double lon = 0.0; lon <= 0.7; lon += 0.05) {
+            for (double lat = 38.0; lat <= 38.7; lat += 0.05) {
+                assertEquals(graphTiny.closestBruteForce(lon, lat), graphTiny.closest(lon, lat));
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that MapDataHolder swaps versions atomically and only releases an old version
+ * once its last reader is done.
+ */
+public class TestMapDataHolder {
+
+    private static MapData version(long version) {
+        return new MapData(version, new GraphDB(), new Rasterer(),
+                new TileCache("", 1 << 20, -1));
+    }
+
+    @Test
+    public void testReadersFinishOnOldVersion() throws Exception {
+        MapData first = version(1);
+        MapDataHolder holder = new MapDataHolder(first);
+        MapData reader = holder.acquire();
+        assertSame(first, reader);
+
+        MapData second = holder.refresh(TestMapDataHolder::version).get();
+        assertEquals(2, second.version);
+        assertEquals(2, holder.version());
+        assertFalse(first.isReleased());
+
+        MapData next = holder.acquire();
+        assertSame(second, next);
+        next.release();
+
+        reader.release();
+        assertTrue(first.isReleased());
+        assertFalse(first.retain());
+        assertFalse(second.isReleased());
+    }
+
+    @Test
+    public void testFailedRefreshKeepsVersion() throws InterruptedException {
+        MapData first = version(1);
+        MapDataHolder holder = new MapDataHolder(first);
+        Future<MapData> refresh = holder.refresh(v -> {
+            throw new IOException("broken extract");
+        });
+        try {
+            refresh.get();
+            fail("Expected the refresh to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertSame(first, holder.acquire());
+        assertFalse(first.isReleased());
+    }
+
+    @Test
+    public void testChangedGraphKeepsTiles() throws Exception {
+        File dir = Files.createTempDirectory("tiles").toFile();
+        File tile = new File(dir, "d1_x0_y0.png");
+        ImageIO.write(new BufferedImage(MapServer.TILE_SIZE, MapServer.TILE_SIZE,
+                BufferedImage.TYPE_INT_RGB), "png", tile);
+        MapData first = new MapData(1, new GraphDB(), new Rasterer(),
+                new TileCache(dir.getPath() + File.separator, 1 << 20, 1));
+        first.tiles.get(tile.getName());
+        MapDataHolder holder = new MapDataHolder(first);
+
+        MapData second = holder.refresh(v -> first.withGraph(v, new GraphDB())).get();
+        assertTrue(first.isReleased());
+        assertSame(first.tiles, second.tiles);
+        assertEquals(1, second.tiles.size());
+
+        holder.refresh(TestMapDataHolder::version).get();
+        assertTrue(second.isReleased());
+        assertEquals(0, second.tiles.size());
+        assertTrue(tile.delete());
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void testNeverHandsOutReleasedVersion() throws Exception {
+        MapDataHolder holder = new MapDataHolder(version(1));
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicReference<String> failure = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread reader = new Thread(() -> {
+                while (!done.get()) {
+                    MapData data = holder.acquire();
+                    if (data.isReleased()) {
+                        failure.set("Got released version " + data.version);
+                    }
+                    data.release();
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        for (int i = 0; i < 200; i++) {
+            holder.refresh(TestMapDataHolder::version).get();
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+        assertEquals(201, holder.version());
+    }
+}
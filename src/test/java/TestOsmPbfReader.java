@@ -0,0 +1,270 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a PBF encoding of the tiny graph loads into the same graph as its XML.
+ * The PBF file is written by a small encoder below: a header blob, a zlib-compressed blob
+ * with dense nodes plus one plain node, and uncompressed blobs with the ways, all in one or
+ * one per way.
+ */
+public class TestOsmPbfReader {
+    private static final String OSM_DB_PATH_TINY =
+            "../library-sp18/library-sp18/data/tiny-clean.osm.xml";
+    private static final long LAT_OFFSET = 500;
+    private static final long LON_OFFSET = -300;
+
+    /** Protobuf wire-format writer. */
+    private static class Pb {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Pb varint(long v) {
+            while ((v & ~0x7FL) != 0) {
+                out.write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.write((int) v);
+            return this;
+        }
+
+        Pb sint(long v) {
+            return varint((v << 1) ^ (v >> 63));
+        }
+
+        Pb field(int field, long v) {
+            return varint(field << 3).varint(v);
+        }
+
+        Pb bytes(int field, byte[] b) {
+            varint(field << 3 | 2).varint(b.length);
+            out.write(b, 0, b.length);
+            return this;
+        }
+
+        Pb bytes(int field, Pb message) {
+            return bytes(field, message.out.toByteArray());
+        }
+
+        Pb string(int field, String s) {
+            return bytes(field, s.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static class XmlNode {
+        long id;
+        long lat;
+        long lon;
+        Map<String, String> tags = new LinkedHashMap<>();
+    }
+
+    private static class XmlWay {
+        long id;
+        List<Long> refs = new ArrayList<>();
+        Map<String, String> tags = new LinkedHashMap<>();
+    }
+
+    private final List<String> strings = new ArrayList<>(Arrays.asList(""));
+
+    private int string(String s) {
+        int i = strings.indexOf(s);
+        if (i < 0) {
+            strings.add(s);
+            i = strings.size() - 1;
+        }
+        return i;
+    }
+
+    private static long nano(String degrees) {
+        return new java.math.BigDecimal(degrees).movePointRight(9).longValueExact();
+    }
+
+    private Pb block(Pb group) {
+        Pb table = new Pb();
+        for (String s : strings) {
+            table.string(1, s);
+        }
+        return new Pb().bytes(1, table).bytes(2, group)
+                .field(17, 100).field(19, LAT_OFFSET).field(20, LON_OFFSET);
+    }
+
+    private static void writeBlob(DataOutputStream out, String type, byte[] data,
+                                  boolean compress) throws IOException {
+        Pb blob = new Pb();
+        if (compress) {
+            ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+            try (OutputStream z = new DeflaterOutputStream(zipped)) {
+                z.write(data);
+            }
+            blob.field(2, data.length).bytes(3, zipped.toByteArray());
+        } else {
+            blob.bytes(1, data);
+        }
+        byte[] blobBytes = blob.out.toByteArray();
+        byte[] header = new Pb().string(1, type).field(3, blobBytes.length).out.toByteArray();
+        out.writeInt(header.length);
+        out.write(header);
+        out.write(blobBytes);
+    }
+
+    private static byte[] header(String... features) {
+        Pb header = new Pb();
+        for (String feature : features) {
+            header.string(4, feature);
+        }
+        return header.out.toByteArray();
+    }
+
+    private File writeTinyPbf(boolean blobPerWay) throws IOException {
+        List<XmlNode> nodes = new ArrayList<>();
+        List<XmlWay> ways = new ArrayList<>();
+        try (OsmXmlReader reader = OsmXmlReader.open(OSM_DB_PATH_TINY)) {
+            Map<String, String> tags = null;
+            int event;
+            while ((event = reader.next()) != OsmXmlReader.END_DOCUMENT) {
+                if (event != OsmXmlReader.START) {
+                    continue;
+                }
+                if (reader.element() == OsmXmlReader.NODE) {
+                    XmlNode node = new XmlNode();
+                    node.id = Long.parseLong(reader.attribute("id"));
+                    node.lat = (nano(reader.attribute("lat")) - LAT_OFFSET) / 100;
+                    node.lon = (nano(reader.attribute("lon")) - LON_OFFSET) / 100;
+                    nodes.add(node);
+                    tags = node.tags;
+                } else if (reader.element() == OsmXmlReader.WAY) {
+                    XmlWay way = new XmlWay();
+                    way.id = Long.parseLong(reader.attribute("id"));
+                    ways.add(way);
+                    tags = way.tags;
+                } else if (reader.element() == OsmXmlReader.ND) {
+                    ways.get(ways.size() - 1).refs.add(Long.parseLong(reader.attribute("ref")));
+                } else if (reader.element() == OsmXmlReader.TAG) {
+                    tags.put(reader.attribute("k"), reader.attribute("v"));
+                }
+            }
+        }
+
+        /* All nodes but the last as DenseNodes, the last one as a plain Node. */
+        Pb ids = new Pb();
+        Pb lats = new Pb();
+        Pb lons = new Pb();
+        Pb keysVals = new Pb();
+        XmlNode previous = new XmlNode();
+        for (XmlNode node : nodes.subList(0, nodes.size() - 1)) {
+            ids.sint(node.id - previous.id);
+            lats.sint(node.lat - previous.lat);
+            lons.sint(node.lon - previous.lon);
+            for (Map.Entry<String, String> tag : node.tags.entrySet()) {
+                keysVals.varint(string(tag.getKey())).varint(string(tag.getValue()));
+            }
+            keysVals.varint(0);
+            previous = node;
+        }
+        XmlNode last = nodes.get(nodes.size() - 1);
+        Pb keys = new Pb();
+        Pb vals = new Pb();
+        for (Map.Entry<String, String> tag : last.tags.entrySet()) {
+            keys.varint(string(tag.getKey()));
+            vals.varint(string(tag.getValue()));
+        }
+        Pb plain = new Pb().varint(1 << 3).sint(last.id).bytes(2, keys).bytes(3, vals)
+                .varint(8 << 3).sint(last.lat).varint(9 << 3).sint(last.lon);
+        Pb dense = new Pb().bytes(1, ids).bytes(8, lats).bytes(9, lons).bytes(10, keysVals);
+        Pb nodeGroup = new Pb().bytes(2, dense).bytes(1, plain);
+
+        List<Pb> wayGroups = new ArrayList<>();
+        Pb wayGroup = new Pb();
+        for (XmlWay way : ways) {
+            if (blobPerWay) {
+                wayGroup = new Pb();
+                wayGroups.add(wayGroup);
+            }
+            Pb wayKeys = new Pb();
+            Pb wayVals = new Pb();
+            for (Map.Entry<String, String> tag : way.tags.entrySet()) {
+                wayKeys.varint(string(tag.getKey()));
+                wayVals.varint(string(tag.getValue()));
+            }
+            Pb refs = new Pb();
+            long previousRef = 0;
+            for (long ref : way.refs) {
+                refs.sint(ref - previousRef);
+                previousRef = ref;
+            }
+            wayGroup.bytes(3, new Pb().field(1, way.id).bytes(2, wayKeys).bytes(3, wayVals)
+                    .bytes(8, refs));
+        }
+        if (!blobPerWay) {
+            wayGroups.add(wayGroup);
+        }
+
+        File file = File.createTempFile("tiny", ".osm.pbf");
+        file.deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            writeBlob(out, "OSMHeader", header("OsmSchema-V0.6", "DenseNodes"), true);
+            writeBlob(out, "OSMData", block(nodeGroup).out.toByteArray(), true);
+            for (Pb group : wayGroups) {
+                writeBlob(out, "OSMData", block(group).out.toByteArray(), false);
+            }
+        }
+        return file;
+    }
+
+    @Test
+    public void testSameGraphAsXml() throws IOException {
+        GraphDB expected = new GraphDB(OSM_DB_PATH_TINY, false, 1);
+        GraphDB actual = new GraphDB(writeTinyPbf(false).getPath(), false, 2);
+        assertArrayEquals(expected.ids, actual.ids);
+        assertArrayEquals(expected.lats, actual.lats, 0.0);
+        assertArrayEquals(expected.lons, actual.lons, 0.0);
+        assertArrayEquals(expected.offsets, actual.offsets);
+        assertArrayEquals(expected.neighbors, actual.neighbors);
+        assertEquals(expected.locations.keySet(), actual.locations.keySet());
+        assertEquals(expected.prefixTrie().entries(), actual.prefixTrie().entries());
+        for (int e = 0; e < expected.edgeWays.length; e++) {
+            assertEquals(expected.wayName(expected.edgeWay(e)), actual.wayName(actual.edgeWay(e)));
+        }
+    }
+
+    @Test
+    public void testManyBlobsOneWorker() throws IOException {
+        /* More blobs than the two one worker may have in flight. */
+        GraphDB expected = new GraphDB(OSM_DB_PATH_TINY, false, 1);
+        GraphDB actual = new GraphDB(writeTinyPbf(true).getPath(), false, 1);
+        assertArrayEquals(expected.ids, actual.ids);
+        assertArrayEquals(expected.offsets, actual.offsets);
+        assertArrayEquals(expected.neighbors, actual.neighbors);
+        assertEquals(expected.prefixTrie().entries(), actual.prefixTrie().entries());
+    }
+
+    @Test
+    public void testRejectsUnsupportedFeatures() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeBlob(out, "OSMHeader", header("OsmSchema-V0.6", "HistoricalInformation"), false);
+        }
+        try {
+            new OsmPbfReader(new ByteArrayInputStream(bytes.toByteArray())).nextDataBlob();
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertEquals("Unsupported PBF feature HistoricalInformation", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the OsmXmlReader tokenizer, and that compressed files load the same graph.
+ */
+public class TestOsmXmlReader {
+    private static final String OSM_DB_PATH_TINY =
+            "../library-sp18/library-sp18/data/tiny-clean.osm.xml";
+    private static final String XML = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<!-- a comment with <node> inside -->\n"
+            + "<osm version=\"0.6\">\n"
+            + "  <node id=\"1\" lat=\"37.5\" lon='-122.25'>\n"
+            + "    <tag k=\"name\" v=\"Caf\u00e9 &amp; Bar &lt;1&gt; &#65;&#x42;\"/>\n"
+            + "  </node>\n"
+            + "  <way id=\"7\">\n"
+            + "    <nd ref=\"1\"/><nd ref=\"2\" />\n"
+            + "    <tag k=\"note\" v=\"a > b\"/>\n"
+            + "  </way>\n"
+            + "  <relation id=\"9\"></relation>\n"
+            + "</osm>\n";
+
+    private static List<String> events(int bufferSize) throws IOException {
+        OsmXmlReader reader = new OsmXmlReader(
+                new ByteArrayInputStream(XML.getBytes(StandardCharsets.UTF_8)), bufferSize);
+        List<String> events = new ArrayList<>();
+        int event;
+        while ((event = reader.next()) != OsmXmlReader.END_DOCUMENT) {
+            String e = (event == OsmXmlReader.START ? "+" : "-") + reader.element();
+            if (event == OsmXmlReader.START && reader.element() == OsmXmlReader.NODE) {
+                e += reader.attribute("id") + "," + reader.attribute("lat") + ","
+                        + reader.attribute("lon");
+                assertNull(reader.attribute("version"));
+            } else if (event == OsmXmlReader.START && reader.element() == OsmXmlReader.TAG) {
+                e += reader.attribute("k") + "=" + reader.attribute("v");
+            } else if (event == OsmXmlReader.START && reader.element() == OsmXmlReader.ND) {
+                e += reader.attribute("ref");
+            }
+            events.add(e);
+        }
+        return events;
+    }
+
+    @Test
+    public void testEvents() throws IOException {
+        List<String> expected = Arrays.asList("+0", "+1" + "1,37.5,-122.25",
+                "+4name=Caf\u00e9 & Bar <1> AB", "-4", "-1", "+2", "+31", "-3", "+32", "-3",
+                "+4note=a > b", "-4", "-2", "+5", "-5", "-0");
+        assertEquals(expected, events(1 << 20));
+    }
+
+    @Test
+    public void testMalformedEntities() throws IOException {
+        String xml = "<osm><tag v=\"&#xZZ; &#; &#99999999; &#x41;\"/></osm>";
+        OsmXmlReader reader = new OsmXmlReader(
+                new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), 1 << 20);
+        assertEquals(OsmXmlReader.START, reader.next());
+        assertEquals(OsmXmlReader.START, reader.next());
+        assertEquals(OsmXmlReader.TAG, reader.element());
+        assertEquals("&#xZZ; &#; &#99999999; A", reader.attribute("v"));
+    }
+
+    @Test
+    public void testTagsAcrossBufferBoundaries() throws IOException {
+        List<String> expected = events(1 << 20);
+        for (int bufferSize = 1; bufferSize < 64; bufferSize++) {
+            assertEquals(expected, events(bufferSize));
+        }
+    }
+
+    @Test
+    public void testCompressedInput() throws IOException {
+        byte[] xml = Files.readAllBytes(Paths.get(OSM_DB_PATH_TINY));
+        File gz = File.createTempFile("tiny", ".osm.gz");
+        File bz2 = File.createTempFile("tiny", ".osm.bz2");
+        gz.deleteOnExit();
+        bz2.deleteOnExit();
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(gz))) {
+            out.write(xml);
+        }
+        try (OutputStream out = new BZip2CompressorOutputStream(new FileOutputStream(bz2))) {
+            out.write(xml);
+        }
+        for (File file : new File[]{gz, bz2}) {
+            try (InputStream in = OsmXmlReader.openInput(file)) {
+                ByteArrayOutputStream read = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    read.write(buffer, 0, n);
+                }
+                assertArrayEquals(xml, read.toByteArray());
+            }
+            GraphDB expected = new GraphDB(OSM_DB_PATH_TINY, false, 1);
+            GraphDB actual = new GraphDB(file.getPath(), false, 2);
+            assertArrayEquals(expected.ids, actual.ids);
+            assertArrayEquals(expected.neighbors, actual.neighbors);
+        }
+    }
+}
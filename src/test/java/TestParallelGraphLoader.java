@@ -0,0 +1,63 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the parallel loader builds the same graph and locations as a sequential parse,
+ * with batches small enough that the tiny graph spans several of them.
+ */
+public class TestParallelGraphLoader {
+    private static final String OSM_DB_PATH_TINY =
+            "../library-sp18/library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB sequential;
+    private static GraphDB parallel;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        sequential = new GraphDB(OSM_DB_PATH_TINY, false, 1);
+        parallel = new GraphDB();
+        try (InputStream in = new FileInputStream(OSM_DB_PATH_TINY)) {
+            new ParallelGraphLoader(parallel, 3, 2).load(in);
+        }
+        parallel.buildIndex();
+        initialized = true;
+    }
+
+    @Test
+    public void testSameGraph() {
+        assertArrayEquals(sequential.ids, parallel.ids);
+        assertArrayEquals(sequential.lats, parallel.lats, 0.0);
+        assertArrayEquals(sequential.lons, parallel.lons, 0.0);
+        assertArrayEquals(sequential.offsets, parallel.offsets);
+        assertArrayEquals(sequential.neighbors, parallel.neighbors);
+    }
+
+    @Test
+    public void testSameLocations() {
+        assertEquals(sequential.locations.keySet(), parallel.locations.keySet());
+        assertEquals(sequential.prefixTrie().entries(), parallel.prefixTrie().entries());
+    }
+
+    @Test
+    public void testSingleWorker() throws Exception {
+        /* One worker keeps at most two batches in flight, so the reader waits on almost every one. */
+        GraphDB single = new GraphDB();
+        try (InputStream in = new FileInputStream(OSM_DB_PATH_TINY)) {
+            new ParallelGraphLoader(single, 1, 2).load(in);
+        }
+        single.buildIndex();
+        assertArrayEquals(sequential.ids, single.ids);
+        assertArrayEquals(sequential.offsets, single.offsets);
+        assertArrayEquals(sequential.neighbors, single.neighbors);
+        assertEquals(sequential.prefixTrie().entries(), single.prefixTrie().entries());
+    }
+}
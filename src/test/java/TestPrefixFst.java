@@ -0,0 +1,100 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the memory-mapped PrefixFst answers prefix queries exactly like the Trie it
+ * is compiled from, and that shared suffixes are merged.
+ */
+public class TestPrefixFst {
+    private static final String OSM_DB_PATH_TINY =
+            "../library-sp18/library-sp18/data/tiny-clean.osm.xml";
+
+    private static PrefixFst compile(Map<String, String> entries, Map<String, Integer> scores)
+            throws IOException {
+        File file = File.createTempFile("prefix", PrefixFst.SUFFIX);
+        file.deleteOnExit();
+        PrefixFst.write(entries, scores, file);
+        return PrefixFst.read(file);
+    }
+
+    @Test
+    public void testSharedSuffixes() throws IOException {
+        Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("tops", "Tops");
+        entries.put("tap", "Tap");
+        entries.put("top", "Top");
+        entries.put("taps", "Taps");
+        PrefixFst index = compile(entries, new HashMap<>());
+
+        /* start, t, ta = to, tap = top, taps = tops */
+        assertEquals(5, index.stateCount());
+        assertEquals(4, index.size());
+        assertEquals(Arrays.asList("Tap", "Taps", "Top", "Tops"), index.getPrefixes("t"));
+        assertEquals(Arrays.asList("Top", "Tops"), index.getPrefixes("top"));
+        assertEquals(Collections.emptyList(), index.getPrefixes("tx"));
+        assertEquals(Collections.emptyList(), index.getPrefixes("topsy"));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        PrefixFst index = compile(new HashMap<>(), new HashMap<>());
+        assertEquals(0, index.size());
+        assertEquals(Collections.emptyList(), index.getPrefixes(""));
+        assertEquals(Collections.emptyList(), index.getPrefixes("a", 3));
+    }
+
+    @Test
+    public void testMatchesTrie() throws IOException {
+        Trie trie = new Trie();
+        Map<String, String> entries = new HashMap<>();
+        Map<String, Integer> scores = new HashMap<>();
+        Random random = new Random(11);
+        String alphabet = "abc d\u00e9";
+        for (int i = 0; i < 3000; i++) {
+            StringBuilder key = new StringBuilder();
+            for (int j = random.nextInt(8); j >= 0; j--) {
+                key.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            String name = key.toString().toUpperCase() + " #" + i;
+            String old = entries.put(key.toString(), name);
+            if (old != null) {
+                scores.remove(old);
+            }
+            int score = random.nextInt(5);
+            scores.put(name, score);
+            trie.put(key.toString(), name, score);
+        }
+        PrefixFst index = compile(entries, scores);
+
+        assertEquals(entries.size(), index.size());
+        for (String prefix : new String[] {"", "a", "ab", "b c", "\u00e9", "dd", "cab", "z"}) {
+            assertEquals(prefix, trie.getPrefixes(prefix), index.getPrefixes(prefix));
+            for (int limit : new int[] {0, 1, 4, Trie.TOP_K, 100}) {
+                assertEquals(prefix + " " + limit, trie.getPrefixes(prefix, limit),
+                        index.getPrefixes(prefix, limit));
+            }
+        }
+    }
+
+    @Test
+    public void testGraphLocations() throws IOException {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        File file = File.createTempFile("tiny", PrefixFst.SUFFIX);
+        file.deleteOnExit();
+        PrefixFst.write(g, file);
+        PrefixFst index = PrefixFst.read(file);
+        assertEquals(g.prefixTrie().entries().size(), index.size());
+        assertEquals(g.prefixTrie().getPrefixes(""), index.getPrefixes(""));
+    }
+}
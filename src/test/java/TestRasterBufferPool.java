@@ -0,0 +1,57 @@
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that RasterBufferPool reuses images by grid size and stays within its budget.
+ */
+public class TestRasterBufferPool {
+    private static final int TILE = 4;
+    private static final long TILE_BYTES = 4L * TILE * TILE;
+
+    @Test
+    public void testReusesImagesOfTheSameGridSize() {
+        RasterBufferPool pool = new RasterBufferPool(TILE, 100 * TILE_BYTES);
+        BufferedImage first = pool.acquire(3, 2);
+        assertEquals(3 * TILE, first.getWidth());
+        assertEquals(2 * TILE, first.getHeight());
+        assertEquals(BufferedImage.TYPE_INT_RGB, first.getType());
+        pool.release(first);
+        assertEquals(6 * TILE_BYTES, pool.idleBytes());
+
+        assertNotSame(first, pool.acquire(2, 3));
+        assertSame(first, pool.acquire(3, 2));
+        assertEquals(0, pool.idleBytes());
+    }
+
+    @Test
+    public void testDropsLeastRecentlyReleasedSizesOverBudget() {
+        RasterBufferPool pool = new RasterBufferPool(TILE, 10 * TILE_BYTES);
+        BufferedImage small = pool.acquire(2, 2);
+        BufferedImage medium = pool.acquire(3, 2);
+        BufferedImage large = pool.acquire(4, 2);
+        BufferedImage huge = pool.acquire(4, 4);
+        pool.release(small);
+        pool.release(medium);
+        pool.release(large);
+        assertEquals(8 * TILE_BYTES, pool.idleBytes());
+        pool.release(huge);
+        assertEquals(8 * TILE_BYTES, pool.idleBytes());
+
+        assertNotSame(small, pool.acquire(2, 2));
+        assertNotSame(medium, pool.acquire(3, 2));
+        assertSame(large, pool.acquire(4, 2));
+    }
+
+    @Test
+    public void testPixelsAreBacking() {
+        RasterBufferPool pool = new RasterBufferPool(TILE, TILE_BYTES);
+        BufferedImage img = pool.acquire(1, 1);
+        RasterBufferPool.pixels(img)[TILE + 1] = 0x123456;
+        assertEquals(0x123456, img.getRGB(1, 1) & 0xFFFFFF);
+    }
+}
@@ -0,0 +1,103 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that RouteStore keeps routes per token, expires them and stays bounded.
+ */
+public class TestRouteStore {
+    private long now = 0;
+
+    @Test
+    public void testRoutesArePerToken() {
+        RouteStore store = new RouteStore(10, 1000, () -> now);
+        List<Long> first = Arrays.asList(1L, 2L, 3L);
+        List<Long> second = Arrays.asList(4L, 5L);
+        String a = store.put(first);
+        String b = store.put(second);
+        assertEquals(first, store.get(a));
+        assertEquals(second, store.get(b));
+        assertTrue(store.get("c").isEmpty());
+        assertTrue(store.get(null).isEmpty());
+
+        store.remove(a);
+        assertTrue(store.get(a).isEmpty());
+        assertEquals(second, store.get(b));
+    }
+
+    @Test
+    public void testExpiry() {
+        RouteStore store = new RouteStore(10, 1000, () -> now);
+        String a = store.put(Arrays.asList(1L, 2L));
+        now = 900;
+        assertEquals(2, store.get(a).size());
+        now = 1800;
+        assertEquals(2, store.get(a).size());
+        now = 2801;
+        assertTrue(store.get(a).isEmpty());
+    }
+
+    @Test
+    public void testPutDropsExpired() {
+        RouteStore store = new RouteStore(10, 1000, () -> now);
+        store.put(Arrays.asList(1L, 2L));
+        now = 500;
+        String b = store.put(Arrays.asList(3L, 4L));
+        now = 1200;
+        store.put(Arrays.asList(5L, 6L));
+        assertEquals(2, store.size());
+        assertEquals(2, store.get(b).size());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedWhenFull() {
+        RouteStore store = new RouteStore(2, 1000, () -> now);
+        String a = store.put(Arrays.asList(1L, 2L));
+        now = 1;
+        String b = store.put(Arrays.asList(3L, 4L));
+        now = 2;
+        store.get(a);
+        now = 3;
+        String c = store.put(Arrays.asList(5L, 6L));
+
+        assertEquals(2, store.size());
+        assertTrue(store.get(b).isEmpty());
+        assertEquals(2, store.get(a).size());
+        assertEquals(2, store.get(c).size());
+    }
+
+    @Test
+    public void testStaysBoundedUnderConcurrentPuts() throws InterruptedException {
+        RouteStore store = new RouteStore(50, 1000);
+        AtomicInteger largest = new AtomicInteger();
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread client = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    store.put(Arrays.asList(1L, 2L));
+                    largest.accumulateAndGet(store.size(), Math::max);
+                }
+            });
+            clients.add(client);
+            client.start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        assertEquals(50, store.size());
+        assertEquals(50, largest.get());
+    }
+
+    @Test
+    public void testTokensAreUnique() {
+        RouteStore store = new RouteStore(10, 1000, () -> now);
+        assertNotEquals(store.put(Arrays.asList(1L, 2L)), store.put(Arrays.asList(1L, 2L)));
+    }
+}
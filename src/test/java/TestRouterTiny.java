@@ -63,4 +63,26 @@ public class TestRouterTiny {
         expected.add(55L);
         assertEquals(expected, actual);
     }
+
+    @Test
+    public void testDirections41to46() {
+        List<Long> route = Router.shortestPath(graphTiny, 0.4, 38.1, 0.4, 38.6);
+        List<Router.NavigationDirection> directions = Router.routeDirections(graphTiny, route);
+        assertEquals(2, directions.size());
+        assertEquals(Router.NavigationDirection.START, directions.get(0).direction);
+        assertEquals("C Avenue", directions.get(0).way);
+        assertEquals("B Street", directions.get(1).way);
+    }
+
+    @Test
+    public void testBearingHelperOverloadsAgree() {
+        for (int v = 0; v < graphTiny.vertexCount(); v++) {
+            for (int w = 0; w < graphTiny.vertexCount(); w++) {
+                Node first = new Node(graphTiny.idOf(v), graphTiny.latOf(v), graphTiny.lonOf(v));
+                Node second = new Node(graphTiny.idOf(w), graphTiny.latOf(w), graphTiny.lonOf(w));
+                assertEquals(Router.bearingHelper(v, w, graphTiny),
+                        Router.bearingHelper(first, second, graphTiny));
+            }
+        }
+    }
 }
@@ -0,0 +1,80 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks hit/miss accounting, LRU eviction and pinning of TileCache on a few generated tiles.
+ */
+public class TestTileCache {
+    private static final int TILE_BYTES = 4 * MapServer.TILE_SIZE * MapServer.TILE_SIZE;
+    private String imgRoot;
+
+    @Before
+    public void setUp() throws Exception {
+        File dir = Files.createTempDirectory("tiles").toFile();
+        dir.deleteOnExit();
+        String[] names = {"d1_x0_y0.png", "d4_x0_y0.png", "d4_x1_y0.png", "d4_x2_y0.png"};
+        for (String name : names) {
+            BufferedImage img = new BufferedImage(MapServer.TILE_SIZE, MapServer.TILE_SIZE,
+                    BufferedImage.TYPE_INT_RGB);
+            File file = new File(dir, name);
+            ImageIO.write(img, "png", file);
+            file.deleteOnExit();
+        }
+        imgRoot = dir.getPath() + File.separator;
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        TileCache cache = new TileCache(imgRoot, 10L * TILE_BYTES, -1);
+        BufferedImage first = cache.get("d4_x0_y0.png");
+        assertNotNull(first);
+        assertSame(first, cache.get("d4_x0_y0.png"));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        TileCache cache = new TileCache(imgRoot, 2L * TILE_BYTES, -1);
+        cache.get("d4_x0_y0.png");
+        cache.get("d4_x1_y0.png");
+        cache.get("d4_x0_y0.png");
+        cache.get("d4_x2_y0.png");
+        assertEquals(2, cache.size());
+
+        long misses = cache.misses();
+        cache.get("d4_x0_y0.png");
+        assertEquals(misses, cache.misses());
+        cache.get("d4_x1_y0.png");
+        assertEquals(misses + 1, cache.misses());
+    }
+
+    @Test
+    public void testPinnedDepthsAreNeverEvicted() {
+        TileCache cache = new TileCache(imgRoot, TILE_BYTES, 3);
+        cache.get("d1_x0_y0.png");
+        cache.get("d4_x0_y0.png");
+        cache.get("d4_x1_y0.png");
+        cache.get("d4_x2_y0.png");
+
+        long misses = cache.misses();
+        cache.get("d1_x0_y0.png");
+        assertEquals(misses, cache.misses());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testDepthOf() {
+        assertEquals(7, TileCache.depthOf("d7_x12_y3.png"));
+        assertEquals(Integer.MAX_VALUE, TileCache.depthOf("root.png"));
+    }
+}
@@ -0,0 +1,100 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks word searches on the TokenIndex against a scan of every name.
+ */
+public class TestTokenIndex {
+
+    private static Map<String, Object> locations(String... names) {
+        Map<String, Object> locations = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            LocationObject location = (LocationObject) locations.get(names[i]);
+            if (location != null) {
+                location.count++;
+            } else {
+                locations.put(names[i], new LocationObject(i, 37.87, -122.26, names[i]));
+            }
+        }
+        return locations;
+    }
+
+    @Test
+    public void testWords() {
+        TokenIndex index = TokenIndex.build(locations("Wheeler Hall", "Hall of Health",
+                "Dwinelle Hall", "Peet's Coffee", "Peet's Coffee", "Hallmark", "Caffe Strada")
+                .values());
+
+        assertEquals(6, index.size());
+        assertEquals(Arrays.asList("Dwinelle Hall", "Hall of Health", "Hallmark",
+                "Wheeler Hall"), index.search("hall", 10));
+        assertEquals(Arrays.asList("Dwinelle Hall", "Hall of Health"),
+                index.search("hall", 2));
+        assertEquals(Arrays.asList("Wheeler Hall"), index.search("HALL wheel", 10));
+        assertEquals(Arrays.asList("Hall of Health"), index.search("health hall", 10));
+        assertEquals(Arrays.asList("Peet's Coffee", "Caffe Strada"), index.search("c", 10));
+        assertEquals(Arrays.asList("Peet's Coffee"), index.search("peets coffee", 10));
+        assertEquals(Collections.emptyList(), index.search("hal wheeler", 10));
+        assertEquals(Collections.emptyList(), index.search("hall zebra", 10));
+        assertEquals(Collections.emptyList(), index.search("  !", 10));
+    }
+
+    @Test
+    public void testMatchesScan() {
+        String[] words = {"north", "south", "hall", "halloway", "park", "parking", "a", "b"};
+        Random random = new Random(9);
+        String[] names = new String[5000];
+        for (int i = 0; i < names.length; i++) {
+            StringBuilder name = new StringBuilder();
+            for (int j = random.nextInt(4); j >= 0; j--) {
+                name.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            name.append(random.nextInt(400));
+            names[i] = name.toString();
+        }
+        Map<String, Object> locations = locations(names);
+        TokenIndex index = TokenIndex.build(locations.values());
+        /* Thousands of ids in a few lists: most gaps fit in one byte. */
+        int postings = 0;
+        for (String name : locations.keySet()) {
+            postings += TokenIndex.tokenize(name).size();
+        }
+        assertTrue(index.postingBytes() < postings * 1.1);
+
+        List<LocationObject> ranked = new ArrayList<>();
+        for (Object o : locations.values()) {
+            ranked.add((LocationObject) o);
+        }
+        ranked.sort((a, b) -> a.count != b.count ? b.count - a.count : a.name.compareTo(b.name));
+        for (String query : new String[] {"hall", "hall park", "park hall", "hal", "south p",
+                "a b north", "parking", "north south park hall"}) {
+            List<String> expected = new ArrayList<>();
+            List<String> queryWords = new ArrayList<>(TokenIndex.tokenize(query));
+            String last = queryWords.remove(queryWords.size() - 1);
+            for (LocationObject location : ranked) {
+                List<String> nameWords = new ArrayList<>(TokenIndex.tokenize(location.name));
+                boolean match = nameWords.containsAll(queryWords);
+                boolean prefix = false;
+                for (String word : nameWords) {
+                    prefix |= word.startsWith(last);
+                }
+                if (match && prefix) {
+                    expected.add(location.name);
+                }
+            }
+            assertEquals(query, expected, index.search(query, Integer.MAX_VALUE));
+            assertEquals(query, expected.subList(0, Math.min(7, expected.size())),
+                    index.search(query, 7));
+        }
+    }
+}
@@ -1,7 +1,11 @@
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
 
 import static org.junit.Assert.assertEquals;
 
@@ -33,4 +37,273 @@ public class TestTrie {
 
     }
 
+    @Test
+    public void TestRemove(){
+
+        Trie trie = new Trie();
+
+        trie.put("abc", "Number1");
+
+        trie.put("ab", "Number2");
+
+        trie.remove("ab", "Other");
+
+        trie.remove("abc", "Number1");
+
+        List<String> expected = new ArrayList<>();
+
+        expected.add("Number2");
+
+        assertEquals(expected, trie.getPrefixes("a"));
+
+        trie.remove("ab", "Number2");
+
+        assertEquals(new ArrayList<String>(), trie.getPrefixes("a"));
+
+    }
+
+    @Test
+    public void TestSplitAndMerge(){
+
+        Trie trie = new Trie();
+
+        trie.put("berkeley", "Number1");
+
+        trie.put("berk", "Number2");
+
+        trie.put("bowl", "Number3");
+
+        trie.put("berkeley", "Number4");
+
+        List<String> expected = new ArrayList<>();
+
+        expected.add("Number2");
+        expected.add("Number4");
+
+        assertEquals(expected, trie.getPrefixes("ber"));
+        assertEquals(expected, trie.getPrefixes("berk"));
+        assertEquals(1, trie.getPrefixes("berke").size());
+        assertEquals(0, trie.getPrefixes("berkx").size());
+        assertEquals(0, trie.getPrefixes("berkeleys").size());
+
+        trie.remove("berk", "Number2");
+
+        trie.remove("bowl", "Number3");
+
+        Map<String, String> entries = new LinkedHashMap<>();
+
+        entries.put("berkeley", "Number4");
+
+        assertEquals(entries, trie.entries());
+        assertEquals(1, trie.getPrefixes("b").size());
+
+    }
+
+    @Test
+    public void TestNonAscii(){
+
+        Trie trie = new Trie();
+
+        trie.put("caf\u00e9 strada", "Caf\u00e9 Strada");
+
+        trie.put("caffe med", "Caffe Med");
+
+        trie.put("\u00fcber", "\u00dcber");
+
+        List<String> expected = new ArrayList<>();
+
+        expected.add("Caffe Med");
+        expected.add("Caf\u00e9 Strada");
+
+        assertEquals(expected, trie.getPrefixes("caf"));
+        assertEquals(1, trie.getPrefixes("\u00fc").size());
+
+    }
+
+    @Test
+    public void TestRanked(){
+
+        Trie trie = new Trie();
+
+        trie.put("abc", "Number1", 1);
+
+        trie.put("abd", "Number2", 5);
+
+        trie.put("a", "Number3", 1);
+
+        trie.put("b", "Number4", 9);
+
+        List<String> expected = new ArrayList<>();
+
+        expected.add("Number2");
+        expected.add("Number3");
+
+        assertEquals(expected, trie.getPrefixes("a", 2));
+
+        trie.remove("abd", "Number2");
+
+        expected.clear();
+        expected.add("Number3");
+        expected.add("Number1");
+
+        assertEquals(expected, trie.getPrefixes("a", 5));
+        assertEquals(expected, trie.getPrefixes("a", 50));
+        assertEquals(new ArrayList<String>(), trie.getPrefixes("a", 0));
+
+    }
+
+    @Test
+    public void TestRankedMatchesSorting(){
+
+        Trie trie = new Trie();
+        Map<String, Integer> scores = new TreeMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder key = new StringBuilder();
+            for (int j = random.nextInt(6); j >= 0; j--) {
+                key.append((char) ('a' + random.nextInt(4)));
+            }
+            int score = random.nextInt(20);
+            trie.put(key.toString(), key.toString(), score);
+            scores.put(key.toString(), score);
+            if (random.nextInt(4) == 0) {
+                String old = scores.keySet().iterator().next();
+                trie.remove(old, old);
+                scores.remove(old);
+            }
+        }
+
+        for (String prefix : new String[] {"", "a", "ab", "abc", "dd", "cab"}) {
+            List<String> expected = new ArrayList<>();
+            for (String key : scores.keySet()) {
+                if (key.startsWith(prefix)) {
+                    expected.add(key);
+                }
+            }
+            expected.sort((a, b) -> scores.get(b) - scores.get(a));
+            for (int limit : new int[] {1, 3, Trie.TOP_K, 40}) {
+                assertEquals(expected.subList(0, Math.min(limit, expected.size())),
+                        trie.getPrefixes(prefix, limit));
+            }
+        }
+
+    }
+
+    @Test
+    public void TestFuzzy(){
+
+        Trie trie = new Trie();
+
+        trie.put("wheeler hall", "Wheeler Hall", 1);
+
+        trie.put("wheel house", "Wheel House", 3);
+
+        trie.put("whole foods", "Whole Foods", 9);
+
+        trie.put("shattuck", "Shattuck", 9);
+
+        List<String> expected = new ArrayList<>();
+
+        expected.add("Wheel House");
+        expected.add("Wheeler Hall");
+
+        assertEquals(expected, trie.getFuzzyPrefixes("wheel", 0, 5, Long.MAX_VALUE / 2));
+
+        expected.clear();
+        expected.add("Wheeler Hall");
+
+        assertEquals(expected, trie.getFuzzyPrefixes("wheler", 1, 5, Long.MAX_VALUE / 2));
+        assertEquals(expected, trie.getFuzzyPrefixes("wheler", 2, 1, Long.MAX_VALUE / 2));
+
+        expected.add("Whole Foods");
+        expected.add("Wheel House");
+
+        assertEquals(expected, trie.getFuzzyPrefixes("wheler", 2, 5, Long.MAX_VALUE / 2));
+
+    }
+
+    @Test
+    public void TestFuzzyMatchesBruteForce(){
+
+        Trie trie = new Trie();
+        Map<String, Integer> scores = new TreeMap<>();
+        Random random = new Random(3);
+        for (int i = 0; i < 3000; i++) {
+            StringBuilder key = new StringBuilder();
+            for (int j = random.nextInt(8); j >= 0; j--) {
+                key.append((char) ('a' + random.nextInt(5)));
+            }
+            int score = random.nextInt(20);
+            trie.put(key.toString(), key.toString(), score);
+            scores.put(key.toString(), score);
+        }
+
+        for (String query : new String[] {"abc", "eeda", "b", "cabbage", "ddddddd"}) {
+            for (int edits = 0; edits <= 2; edits++) {
+                Map<String, Integer> distances = new TreeMap<>();
+                for (String key : scores.keySet()) {
+                    int d = prefixDistance(query, key);
+                    if (d <= edits) {
+                        distances.put(key, d);
+                    }
+                }
+                List<String> expected = new ArrayList<>(distances.keySet());
+                expected.sort((a, b) -> distances.get(a).equals(distances.get(b))
+                        ? scores.get(b) - scores.get(a) : distances.get(a) - distances.get(b));
+                for (int limit : new int[] {1, Trie.TOP_K, 30}) {
+                    assertEquals(query + " " + edits + " " + limit,
+                            expected.subList(0, Math.min(limit, expected.size())),
+                            trie.getFuzzyPrefixes(query, edits, limit, Long.MAX_VALUE / 2));
+                }
+            }
+        }
+
+    }
+
+    @Test
+    public void TestFuzzyBudget(){
+
+        Trie trie = new Trie();
+        Random random = new Random(5);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder key = new StringBuilder();
+            for (int j = 0; j < 12; j++) {
+                key.append((char) ('a' + random.nextInt(26)));
+            }
+            trie.put(key.toString(), key.toString());
+        }
+        trie.put("berkeley", "Berkeley");
+
+        List<String> expected = new ArrayList<>();
+
+        expected.add("Berkeley");
+
+        assertEquals(expected, trie.getFuzzyPrefixes("berk", 2, 5, 0));
+
+    }
+
+    /** Smallest Levenshtein distance between query and a prefix of key. */
+    private static int prefixDistance(String query, String key) {
+        int best = Integer.MAX_VALUE;
+        for (int i = 0; i <= key.length(); i++) {
+            best = Math.min(best, levenshtein(query, key.substring(0, i)));
+        }
+        return best;
+    }
+
+    private static int levenshtein(String a, String b) {
+        int[][] d = new int[a.length() + 1][b.length() + 1];
+        for (int i = 0; i <= a.length(); i++) {
+            for (int j = 0; j <= b.length(); j++) {
+                if (i == 0 || j == 0) {
+                    d[i][j] = i + j;
+                } else {
+                    d[i][j] = Math.min(d[i - 1][j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1),
+                            Math.min(d[i - 1][j], d[i][j - 1]) + 1);
+                }
+            }
+        }
+        return d[a.length()][b.length()];
+    }
+
 }
@@ -0,0 +1,54 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that two-pass ingestion builds the same graph and locations as the single pass.
+ */
+public class TestTwoPassIngestion {
+    private static final String OSM_DB_PATH_TINY =
+            "../library-sp18/library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB onePass;
+    private static GraphDB twoPass;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        onePass = new GraphDB(OSM_DB_PATH_TINY, false);
+        twoPass = new GraphDB(OSM_DB_PATH_TINY, true);
+        initialized = true;
+    }
+
+    @Test
+    public void testVerticesAndAdjacent() {
+        Set<Long> expected = new HashSet<>();
+        Set<Long> actual = new HashSet<>();
+        for (long v : onePass.vertices()) {
+            expected.add(v);
+        }
+        for (long v : twoPass.vertices()) {
+            actual.add(v);
+            assertEquals(onePass.lon(v), twoPass.lon(v), 0.0);
+            assertEquals(onePass.lat(v), twoPass.lat(v), 0.0);
+            Set<Long> expectedAdjacent = new HashSet<>();
+            Set<Long> actualAdjacent = new HashSet<>();
+            onePass.adjacent(v).forEach(expectedAdjacent::add);
+            twoPass.adjacent(v).forEach(actualAdjacent::add);
+            assertEquals(expectedAdjacent, actualAdjacent);
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testLocations() {
+        assertEquals(onePass.locations.keySet(), twoPass.locations.keySet());
+        assertEquals(onePass.prefixTrie().entries(), twoPass.prefixTrie().entries());
+    }
+}